@@ -0,0 +1,60 @@
+package org.modencode.tools.liftover.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.TextCigarCodec;
+
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.updater.SAMUpdater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rewriting a CIGAR for a change to the reference in the middle of the read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CigarBenchmark {
+	@Param({ "50M", "20M2I28M", "10M5D40M", "12M3I10M2D5M1I19M" })
+	public String cigar;
+
+	// Length of the inserted or deleted reference
+	@Param({ "3" })
+	public int length;
+
+	private SAMUpdater updater;
+	private Cigar parsed;
+	private int position;
+
+	@Setup
+	public void setUp() {
+		updater = new SAMUpdater(new ArrayList<MappingData>());
+		parsed = TextCigarCodec.getSingleton().decode(cigar);
+		position = parsed.getReferenceLength() / 2;
+	}
+
+	@Benchmark
+	public Cigar insertedReference() {
+		return updater.updateCigarForInsertedReference(parsed, position, length);
+	}
+
+	@Benchmark
+	public Cigar deletedReference() {
+		return updater.updateCigarForDeletedReference(parsed, position, length);
+	}
+}
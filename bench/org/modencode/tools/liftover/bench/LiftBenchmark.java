@@ -0,0 +1,75 @@
+package org.modencode.tools.liftover.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.updater.BEDUpdater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lifting single features through 1, 10 or 100 releases, both through updateFeature
+ * (with a new feature each time, as the file updaters do) and through the primitive
+ * lift kernel. The releases come from generateMappings (read through MappingCache when
+ * there is one), and the updater composes them into one breakpoint table as it's built,
+ * in setup; so most lifts are a single lookup in that table, and only features it can't
+ * resolve walk the mismatch tables of every hop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LiftBenchmark {
+	private static final int FEATURES = 1 << 16;
+
+	@Param({ "1", "10", "100" })
+	public int hops;
+
+	@Param({ "122" })
+	public int fromRelease;
+
+	private BEDUpdater updater;
+	private String[] chromosomes = new String[FEATURES];
+	private int[] starts = new int[FEATURES];
+	private int[] ends = new int[FEATURES];
+	private int next;
+
+	@Setup
+	public void setUp() throws MappingException {
+		List<MappingData> mappingData = MappingDataFactory.generateMappings(fromRelease, fromRelease + hops);
+		updater = new BEDUpdater(mappingData);
+		SyntheticInputs inputs = new SyntheticInputs(mappingData, 42);
+		for (int i = 0; i < FEATURES; i++) {
+			inputs.nextFeature();
+			chromosomes[i] = inputs.getChromosome();
+			starts[i] = inputs.getStart();
+			ends[i] = inputs.getEnd();
+		}
+	}
+
+	@Benchmark
+	public Object updateFeature() throws MappingException {
+		int i = next++ & (FEATURES - 1);
+		return updater.updateFeature(updater.new BEDFeature(chromosomes[i], starts[i], ends[i], "0"));
+	}
+
+	@Benchmark
+	public long lift() throws MappingException {
+		int i = next++ & (FEATURES - 1);
+		return updater.lift(chromosomes[i], starts[i], ends[i]);
+	}
+}
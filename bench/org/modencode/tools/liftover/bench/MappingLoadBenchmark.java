@@ -0,0 +1,55 @@
+package org.modencode.tools.liftover.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.modencode.tools.liftover.MappingCache;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the sequence differences for a span of releases with generateMappings, from
+ * the text files or from the binary cache. Each parameter combination gets its own
+ * JVM, so the cache setting takes effect before MappingCache is first used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MappingLoadBenchmark {
+	@Param({ "1", "10", "100" })
+	public int hops;
+
+	@Param({ "122" })
+	public int fromRelease;
+
+	// Where to keep the cache; empty to always parse the text files
+	@Param({ "", "bench-cache" })
+	public String cacheDir;
+
+	@Setup
+	public void setUp() throws MappingException {
+		System.setProperty(MappingCache.CACHE_DIR_PROPERTY, cacheDir);
+		// Build the cache up front so it isn't timed
+		MappingDataFactory.generateMappings(fromRelease, fromRelease + hops);
+	}
+
+	@Benchmark
+	public List<MappingData> generateMappings() throws MappingException {
+		return MappingDataFactory.generateMappings(fromRelease, fromRelease + hops);
+	}
+}
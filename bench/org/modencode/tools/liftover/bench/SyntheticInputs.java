@@ -0,0 +1,151 @@
+package org.modencode.tools.liftover.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingException;
+
+/**
+ * Makes up features and input files for the benchmarks. Features are placed on the
+ * chromosomes the mapping data covers; a share of them start close to one of its
+ * sequence differences, so they take the slow paths through the lift about as often
+ * as real annotation does, and the rest are spread evenly along the chromosome.
+ * The same seed always gives the same features.
+ */
+public class SyntheticInputs {
+	// Share of features placed within NEAR_DISTANCE of a difference
+	private static final double NEAR_SHARE = 0.3;
+	private static final int NEAR_DISTANCE = 2000;
+	private static final int MAX_FEATURE_LENGTH = 2000;
+	private static final int READ_LENGTH = 50;
+	private static final String[] CIGARS = { "50M", "50M", "50M", "20M2I28M", "10M5D40M", "25M100N25M" };
+
+	private String[] chromosomes;
+	private int[] lengths;
+	private int[][] differences; // Sorted difference starts per chromosome
+	private Random random;
+
+	// The feature most recently made by nextFeature
+	private int chromosome, start, end;
+
+	public SyntheticInputs(List<MappingData> mappingData, long seed) throws MappingException {
+		List<String> chrs = new ArrayList<String>();
+		for (MappingData md : mappingData) {
+			for (String chr : md.getChromosomes()) {
+				if (!chrs.contains(chr)) { chrs.add(chr); }
+			}
+		}
+		if (chrs.isEmpty()) {
+			throw new MappingException("No sequence differences to place features around");
+		}
+		chromosomes = chrs.toArray(new String[chrs.size()]);
+		Arrays.sort(chromosomes);
+		lengths = new int[chromosomes.length];
+		differences = new int[chromosomes.length][];
+		for (int c = 0; c < chromosomes.length; c++) {
+			// Later releases are in their own coordinates, but they're close enough for placing features
+			List<Integer> starts = new ArrayList<Integer>();
+			for (MappingData md : mappingData) {
+				for (MappingData.MismatchPair mm : md.getMismatchPairs(chromosomes[c])) {
+					starts.add(mm.previousMismatch.start);
+					lengths[c] = Math.max(lengths[c], mm.previousMismatch.end);
+				}
+			}
+			differences[c] = new int[starts.size()];
+			for (int i = 0; i < differences[c].length; i++) { differences[c][i] = starts.get(i); }
+			Arrays.sort(differences[c]);
+			lengths[c] += NEAR_DISTANCE + MAX_FEATURE_LENGTH;
+		}
+		random = new Random(seed);
+	}
+
+	public String[] getChromosomes() {
+		return chromosomes;
+	}
+
+	/**
+	 * Make up the next feature, available from getChromosome, getStart and getEnd.
+	 */
+	public void nextFeature() {
+		chromosome = random.nextInt(chromosomes.length);
+		int[] near = differences[chromosome];
+		if (near.length > 0 && random.nextDouble() < NEAR_SHARE) {
+			start = near[random.nextInt(near.length)] + random.nextInt(2 * NEAR_DISTANCE) - NEAR_DISTANCE;
+		} else {
+			start = random.nextInt(lengths[chromosome] - MAX_FEATURE_LENGTH);
+		}
+		start = Math.max(1, start);
+		end = start + random.nextInt(MAX_FEATURE_LENGTH);
+	}
+	public String getChromosome() {
+		return chromosomes[chromosome];
+	}
+	public int getStart() {
+		return start;
+	}
+	public int getEnd() {
+		return end;
+	}
+
+	public void writeGFF(File file, int features) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		w.write("##gff-version 3\n");
+		for (int c = 0; c < chromosomes.length; c++) {
+			w.write("##sequence-region " + chromosomes[c] + " 1 " + lengths[c] + "\n");
+		}
+		for (int i = 0; i < features; i++) {
+			nextFeature();
+			w.write(getChromosome() + "\tsynthetic\tgene\t" + start + "\t" + end + "\t.\t" +
+					(random.nextBoolean() ? "+" : "-") + "\t.\tID=gene" + i + ";Name=g" + i + "\n");
+		}
+		w.close();
+	}
+
+	public void writeBED(File file, int features) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		for (int i = 0; i < features; i++) {
+			nextFeature();
+			w.write(getChromosome() + "\t" + start + "\t" + end + "\t" + random.nextInt(1000) + "\n");
+		}
+		w.close();
+	}
+
+	// A variableStep track per chromosome, with positions in order
+	public void writeWIG(File file, int features) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		w.write("track type=wiggle_0 name=synthetic\n");
+		int perChromosome = Math.max(1, features / chromosomes.length);
+		for (int c = 0; c < chromosomes.length; c++) {
+			w.write("variableStep chrom=chr" + chromosomes[c] + " span=25\n");
+			int step = Math.max(1, (lengths[c] - MAX_FEATURE_LENGTH) / perChromosome);
+			for (int pos = 1, i = 0; i < perChromosome; pos += step, i++) {
+				w.write(pos + "\t" + (random.nextInt(1000) / 10.0) + "\n");
+			}
+		}
+		w.close();
+	}
+
+	// Single-end reads, some with insertions, deletions or skipped regions in their CIGARs
+	public void writeSAM(File file, int features) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		w.write("@HD\tVN:1.0\n");
+		for (int c = 0; c < chromosomes.length; c++) {
+			w.write("@SQ\tSN:" + chromosomes[c] + "\tLN:" + lengths[c] + "\n");
+		}
+		char[] bases = new char[READ_LENGTH];
+		for (int i = 0; i < features; i++) {
+			nextFeature();
+			for (int b = 0; b < bases.length; b++) { bases[b] = "ACGT".charAt(random.nextInt(4)); }
+			w.write("read" + i + "\t" + (random.nextBoolean() ? 0 : 16) + "\t" + getChromosome() + "\t" + start +
+					"\t255\t" + CIGARS[random.nextInt(CIGARS.length)] + "\t*\t0\t0\t" + new String(bases) + "\t*\n");
+		}
+		w.close();
+	}
+}
@@ -0,0 +1,107 @@
+package org.modencode.tools.liftover.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.updater.BEDUpdater;
+import org.modencode.tools.liftover.updater.GFFUpdater;
+import org.modencode.tools.liftover.updater.SAMUpdater;
+import org.modencode.tools.liftover.updater.WIGUpdater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lifting a whole synthetic file with one of the updaters, set up the way Liftover sets
+ * them up. The input is written once per trial; each operation reads it and writes the
+ * lifted copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UpdaterBenchmark {
+	@Param({ "gff", "bed", "wig", "sam" })
+	public String format;
+
+	@Param({ "100000" })
+	public int features;
+
+	@Param({ "190" })
+	public int fromRelease;
+
+	@Param({ "220" })
+	public int toRelease;
+
+	// Only used for GFF and SAM
+	@Param({ "1" })
+	public int threads;
+
+	private List<MappingData> mappingData;
+	private File inFile, outFile;
+
+	@Setup
+	public void setUp() throws MappingException, IOException {
+		mappingData = MappingDataFactory.generateComposedMapping(fromRelease, toRelease).getMappingData();
+		SyntheticInputs inputs = new SyntheticInputs(mappingData, 42);
+		inFile = File.createTempFile("liftover-bench", "." + format);
+		outFile = File.createTempFile("liftover-bench", ".out." + format);
+		if (format.equals("gff")) {
+			inputs.writeGFF(inFile, features);
+		} else if (format.equals("bed")) {
+			inputs.writeBED(inFile, features);
+		} else if (format.equals("wig")) {
+			inputs.writeWIG(inFile, features);
+		} else if (format.equals("sam")) {
+			inputs.writeSAM(inFile, features);
+		} else {
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		inFile.delete();
+		outFile.delete();
+	}
+
+	@Benchmark
+	public long processFile() throws MappingException {
+		if (format.equals("gff")) {
+			GFFUpdater gffu = new GFFUpdater(mappingData);
+			gffu.setVerbose(true);
+			gffu.setThreads(threads);
+			gffu.processFile(inFile, outFile);
+		} else if (format.equals("bed")) {
+			BEDUpdater bedu = new BEDUpdater(mappingData);
+			bedu.setVerbose(true);
+			bedu.processFile(inFile, outFile);
+		} else if (format.equals("wig")) {
+			WIGUpdater wigu = new WIGUpdater(mappingData);
+			wigu.setVerbose(true);
+			wigu.processFile(inFile, outFile);
+		} else {
+			SAMUpdater samu = new SAMUpdater(mappingData);
+			samu.setVerbose(true);
+			samu.setThreads(threads);
+			samu.processFile(inFile, outFile);
+		}
+		return outFile.length();
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * JMH benchmarks for the lift engine and the file updaters.
+ * <p>
+ * The benchmarks live in their own source folder so the tool itself doesn't depend on JMH.
+ * To run them, compile this folder with the liftover classes, Picard, jmh-core and
+ * jmh-generator-annprocess (which generates the benchmark harness while compiling) on the
+ * classpath, then run {@code org.openjdk.jmh.Main}, e.g.
+ * <pre>
+ * java -cp bench-classes:liftover-classes:picard.jar:jmh-core.jar org.openjdk.jmh.Main LiftBenchmark -p hops=1,10
+ * </pre>
+ * Inputs are made up by {@link org.modencode.tools.liftover.bench.SyntheticInputs} from the
+ * real CHROMOSOME_DIFFERENCES data; {@code -p features=N} sets the size of the files
+ * UpdaterBenchmark lifts.
+ */
+package org.modencode.tools.liftover.bench;
@@ -0,0 +1,272 @@
+package org.modencode.tools.liftover;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A single-hop view of a chain of MappingData releases. For each chromosome it holds
+ * a sorted table of breakpoints in source (1-based) coordinates; the segment starting
+ * at each breakpoint either maps linearly to the destination release by a fixed offset,
+ * or is marked as indeterminate (its bases were replaced by a change in length) or
+ * inverted. Lookups are a binary search instead of a walk over every mismatch of every
+ * release. Instances are not modified after compose, so they can be shared between threads
+ * as long as nothing calls the mutators of the underlying MappingData; those of the ones
+ * from MappingDataFactory.generateComposedMapping throw instead.
+ */
+public class ComposedMapping {
+	// Segment flags
+	public static final int CHANGED = 1;       // Linear, but the bases were substituted
+	public static final int INDETERMINATE = 2; // Replaced by a region of a different length
+	public static final int INVERTED = 4;      // Inside a flipped region
+	public static final int SHIFTED = 8;       // Past the end of a mismatch, even if the net offset is zero
+
+	private static final int OPAQUE = INDETERMINATE | INVERTED;
+
+	private Chain mappingData;
+	private HashMap<String, Segments> chromosomes;
+
+	private ComposedMapping(List<MappingData> mappingData, HashMap<String, Segments> chromosomes) {
+		this.mappingData = new Chain(mappingData.toArray(new MappingData[mappingData.size()]));
+		this.chromosomes = chromosomes;
+	}
+
+	/**
+	 * Compose an ordered chain of releases (as returned by MappingDataFactory.generateMappings)
+	 * into a single breakpoint table per chromosome. Passing the list from getMappingData
+	 * returns the ComposedMapping it came from.
+	 */
+	public static ComposedMapping compose(List<MappingData> mappingData) {
+		if (mappingData instanceof Chain) {
+			return ((Chain)mappingData).owner();
+		}
+		HashMap<String, Segments> chromosomes = new HashMap<String, Segments>();
+		if (mappingData == null) {
+			return new ComposedMapping(Collections.<MappingData>emptyList(), chromosomes);
+		}
+		for (MappingData md : mappingData) {
+			Set<String> chrs = new HashSet<String>(chromosomes.keySet());
+			chrs.addAll(md.getChromosomes());
+			for (String chr : chrs) {
+				List<MappingData.MismatchPair> pairs = md.getMismatchPairs(chr);
+				if (pairs.isEmpty()) { continue; }
+				Segments current = chromosomes.get(chr);
+				if (current == null) { current = Segments.identity(); }
+				chromosomes.put(chr, current.then(new ReleaseMap(pairs)));
+			}
+		}
+		return new ComposedMapping(mappingData, chromosomes);
+	}
+
+	// The releases in the chain, in lifting order; the list is read-only
+	public List<MappingData> getMappingData() {
+		return mappingData;
+	}
+	public Set<String> getChromosomes() {
+		return chromosomes.keySet();
+	}
+	// Number of segments in the breakpoint table for chromosome (1 if it is unchanged)
+	public int getSegmentCount(String chromosome) {
+		Segments s = chromosomes.get(chromosome);
+		return (s == null) ? 1 : s.size;
+	}
+
+	/**
+	 * Lift a 1-based range using only the breakpoint table, returning a packed LiftResult.
+	 * Returns LiftResult.UNRESOLVED if either end falls in an indeterminate or inverted
+	 * segment, or if an inversion lies inside the range; those need the release-by-release
+	 * rules in AbstractUpdater.lift.
+	 */
+	public long lift(String chromosome, int start, int end) throws MappingException {
+		Segments s = chromosomes.get(chromosome);
+		if (s == null) {
+			return LiftResult.pack(0, 0, 0); // Nothing changed on this chromosome
+		}
+		if (end < start) { return LiftResult.UNRESOLVED; }
+		int i = s.find(start), j = s.find(end);
+		if ((s.flags[i] & OPAQUE) != 0 || (s.flags[j] & OPAQUE) != 0) {
+			return LiftResult.UNRESOLVED;
+		}
+		int result = (i != j) ? LiftResult.CHANGED : 0;
+		for (int k = i; k <= j; k++) {
+			if ((s.flags[k] & INVERTED) != 0) { return LiftResult.UNRESOLVED; }
+			if ((s.flags[k] & CHANGED) != 0) { result |= LiftResult.CHANGED; }
+		}
+		// Only report the ends that a mismatch upstream would have moved, as the release-by-release
+		// rules do; ChadoXMLFeature reports any end that was set as shifted.
+		int startOffset = 0, endOffset = 0;
+		if ((s.flags[i] & SHIFTED) != 0) { startOffset = s.offsets[i]; result |= LiftResult.START_SET; }
+		if ((s.flags[j] & SHIFTED) != 0) { endOffset = s.offsets[j]; result |= LiftResult.END_SET; }
+		return LiftResult.pack(startOffset, endOffset, result);
+	}
+
+	// Read-only list of the releases that knows which ComposedMapping it belongs to
+	private class Chain extends AbstractList<MappingData> implements RandomAccess {
+		private final MappingData[] releases;
+
+		private Chain(MappingData[] releases) {
+			this.releases = releases;
+		}
+		private ComposedMapping owner() {
+			return ComposedMapping.this;
+		}
+		public MappingData get(int index) {
+			return releases[index];
+		}
+		public int size() {
+			return releases.length;
+		}
+	}
+
+	// The breakpoint table for one chromosome. Segment k covers [starts[k], starts[k+1]).
+	private static class Segments {
+		private int size;
+		private long[] starts;
+		private int[] offsets;
+		private byte[] flags;
+
+		private Segments(int capacity) {
+			starts = new long[capacity];
+			offsets = new int[capacity];
+			flags = new byte[capacity];
+		}
+		private static Segments identity() {
+			Segments s = new Segments(1);
+			s.add(Long.MIN_VALUE / 2, 0, 0);
+			return s;
+		}
+		private void add(long start, int offset, int flag) {
+			if (size == starts.length) {
+				int capacity = size * 2;
+				starts = Arrays.copyOf(starts, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				flags = Arrays.copyOf(flags, capacity);
+			}
+			starts[size] = start;
+			offsets[size] = offset;
+			flags[size] = (byte)flag;
+			size++;
+		}
+		private long end(int k) {
+			return (k + 1 < size) ? starts[k+1] : Long.MAX_VALUE / 2;
+		}
+		// Index of the segment containing position
+		private int find(long position) {
+			int lo = 0, hi = size - 1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (starts[mid] <= position) { lo = mid; } else { hi = mid - 1; }
+			}
+			return lo;
+		}
+		// Compose this table with the next release: the result maps source coordinates
+		// straight through both.
+		private Segments then(ReleaseMap g) {
+			Segments res = new Segments(size + 2 * g.size + 1);
+			for (int k = 0; k < size; k++) {
+				if ((flags[k] & OPAQUE) != 0) {
+					// Whatever the next release does here, a feature ending in this segment
+					// has to be walked release by release anyway.
+					res.add(starts[k], offsets[k], flags[k]);
+					continue;
+				}
+				long o = offsets[k];
+				long x = starts[k] + o, imageEnd = end(k) + o;
+				while (x < imageEnd) {
+					int i = g.find(x);
+					long pieceEnd;
+					int pieceFlags = flags[k];
+					int delta;
+					if (i >= 0 && x < g.ends[i]) {
+						// Inside the mismatch region
+						pieceEnd = Math.min(g.ends[i], imageEnd);
+						pieceFlags |= g.flags[i];
+						if (i > 0 && g.shifted[i-1]) { pieceFlags |= SHIFTED; }
+						delta = g.cumulative[i];
+					} else {
+						pieceEnd = (i + 1 < g.size) ? Math.min(g.starts[i+1], imageEnd) : imageEnd;
+						if (i >= 0 && g.shifted[i]) { pieceFlags |= SHIFTED; }
+						delta = (i >= 0) ? g.cumulative[i] + g.deltas[i] : 0;
+					}
+					res.add(x - o, (int)(o + delta), pieceFlags);
+					x = pieceEnd;
+				}
+			}
+			return res;
+		}
+	}
+
+	// One release's mismatches for a chromosome, in 1-based half-open coordinates and sorted by start.
+	private static class ReleaseMap {
+		private int size;
+		private long[] starts, ends;
+		private int[] deltas;     // Shift applied to everything at or past the end of the region
+		private int[] cumulative; // Shift from all earlier regions
+		private boolean[] shifted; // Whether any region up to and including this one can shift what follows
+		private byte[] flags;
+
+		private ReleaseMap(List<MappingData.MismatchPair> pairs) {
+			List<MappingData.MismatchPair> sorted = new ArrayList<MappingData.MismatchPair>(pairs.size());
+			for (MappingData.MismatchPair mm : pairs) {
+				// Zero-length inversions don't do anything
+				if (!(mm.flipped && mm.previousMismatch.length == 0)) { sorted.add(mm); }
+			}
+			Collections.sort(sorted, new Comparator<MappingData.MismatchPair>() {
+				public int compare(MappingData.MismatchPair a, MappingData.MismatchPair b) {
+					if (a.previousMismatch.start != b.previousMismatch.start) {
+						return (a.previousMismatch.start < b.previousMismatch.start) ? -1 : 1;
+					}
+					if (a.previousMismatch.end != b.previousMismatch.end) {
+						return (a.previousMismatch.end < b.previousMismatch.end) ? -1 : 1;
+					}
+					return 0;
+				}
+			});
+			size = sorted.size();
+			starts = new long[size];
+			ends = new long[size];
+			deltas = new int[size];
+			cumulative = new int[size];
+			shifted = new boolean[size];
+			flags = new byte[size];
+			int shift = 0;
+			for (int i = 0; i < size; i++) {
+				MappingData.MismatchPair mm = sorted.get(i);
+				// Same conversion as AbstractUpdater.updateFeature: 1-based, still half-open
+				starts[i] = mm.previousMismatch.start + 1;
+				ends[i] = mm.previousMismatch.end + 1;
+				cumulative[i] = shift;
+				if (mm.flipped) {
+					// Inversions don't shift anything downstream
+					flags[i] = INVERTED;
+				} else if (mm.previousMismatch.length == 0) {
+					// Pure insertion; no region, just a breakpoint
+					deltas[i] = mm.thisMismatch.length;
+				} else if (mm.thisMismatch.length == mm.previousMismatch.length) {
+					flags[i] = CHANGED;
+				} else {
+					flags[i] = INDETERMINATE;
+					deltas[i] = mm.thisMismatch.length - mm.previousMismatch.length;
+				}
+				shift += deltas[i];
+				shifted[i] = !mm.flipped || (i > 0 && shifted[i-1]);
+			}
+		}
+		// Index of the last region starting at or before position, or -1
+		private int find(long position) {
+			int lo = 0, hi = size - 1, res = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (starts[mid] <= position) { res = mid; lo = mid + 1; } else { hi = mid - 1; }
+			}
+			return res;
+		}
+	}
+}
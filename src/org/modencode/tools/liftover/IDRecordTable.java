@@ -0,0 +1,143 @@
+package org.modencode.tools.liftover;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A table from feature ID to a fixed number of ints, for files with millions of IDs. It's
+ * open-addressed, and both the slots and the entries are kept in direct buffers off the Java
+ * heap: an entry is the ID's hash, the length of its UTF-8 bytes, the ints, then the bytes.
+ * An ID can be cleared, which keeps it (so it can't be put again) but drops its ints.
+ * Not synchronized.
+ */
+public class IDRecordTable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CLEARED = 0x80000000; // Set in an entry's length once cleared
+
+	private final int recordInts;
+	private ByteBuffer entries;
+	private int entriesLength = 0;
+	private ByteBuffer slots; // Offset of each slot's entry, plus one; 0 if empty
+	private int slotCount;
+	private int size = 0;
+
+	public IDRecordTable(int recordInts) {
+		this.recordInts = recordInts;
+		entries = ByteBuffer.allocateDirect(1 << 16);
+		slotCount = 1 << 10;
+		slots = ByteBuffer.allocateDirect(slotCount * 4);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Adds the ID with its record, unless it's already there (cleared or not)
+	public boolean put(String id, int[] record) {
+		if (record.length != recordInts) {
+			throw new IllegalArgumentException("Records have " + recordInts + " ints, not " + record.length);
+		}
+		byte[] key = id.getBytes(UTF8);
+		int hash = hash(key);
+		int slot = find(key, hash);
+		if (slots.getInt(slot * 4) != 0) { return false; }
+		if ((size + 1) * 2 > slotCount) {
+			growSlots();
+			slot = find(key, hash);
+		}
+		int entrySize = 8 + 4 * recordInts + key.length;
+		ensureEntries(entrySize);
+		int entry = entriesLength;
+		entries.putInt(entry, hash);
+		entries.putInt(entry + 4, key.length);
+		for (int i = 0; i < recordInts; i++) {
+			entries.putInt(entry + 8 + 4 * i, record[i]);
+		}
+		for (int i = 0; i < key.length; i++) {
+			entries.put(entry + 8 + 4 * recordInts + i, key[i]);
+		}
+		entriesLength += entrySize;
+		slots.putInt(slot * 4, entry + 1);
+		size++;
+		return true;
+	}
+	public boolean contains(String id) {
+		byte[] key = id.getBytes(UTF8);
+		return slots.getInt(find(key, hash(key)) * 4) != 0;
+	}
+	// The ID's record, or null if it isn't there or has been cleared
+	public int[] get(String id) {
+		byte[] key = id.getBytes(UTF8);
+		int entry = slots.getInt(find(key, hash(key)) * 4) - 1;
+		if (entry < 0 || (entries.getInt(entry + 4) & CLEARED) != 0) { return null; }
+		int[] record = new int[recordInts];
+		for (int i = 0; i < recordInts; i++) {
+			record[i] = entries.getInt(entry + 8 + 4 * i);
+		}
+		return record;
+	}
+	public void clear(String id) {
+		byte[] key = id.getBytes(UTF8);
+		int entry = slots.getInt(find(key, hash(key)) * 4) - 1;
+		if (entry >= 0) {
+			entries.putInt(entry + 4, entries.getInt(entry + 4) | CLEARED);
+		}
+	}
+
+	// The slot holding the key, or the empty slot where it would go
+	private int find(byte[] key, int hash) {
+		int mask = slotCount - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = slots.getInt(slot * 4) - 1;
+			if (entry < 0 || (entries.getInt(entry) == hash && keyEquals(entry, key))) {
+				return slot;
+			}
+		}
+	}
+	private boolean keyEquals(int entry, byte[] key) {
+		if ((entries.getInt(entry + 4) & ~CLEARED) != key.length) { return false; }
+		int keyStart = entry + 8 + 4 * recordInts;
+		for (int i = 0; i < key.length; i++) {
+			if (entries.get(keyStart + i) != key[i]) { return false; }
+		}
+		return true;
+	}
+	private void growSlots() {
+		ByteBuffer old = slots;
+		int oldCount = slotCount;
+		slotCount *= 2;
+		slots = ByteBuffer.allocateDirect(slotCount * 4);
+		int mask = slotCount - 1;
+		for (int i = 0; i < oldCount; i++) {
+			int entry = old.getInt(i * 4) - 1;
+			if (entry < 0) { continue; }
+			int slot = entries.getInt(entry) & mask;
+			while (slots.getInt(slot * 4) != 0) { slot = (slot + 1) & mask; }
+			slots.putInt(slot * 4, entry + 1);
+		}
+	}
+	private void ensureEntries(int n) {
+		if (entriesLength + n <= entries.capacity()) { return; }
+		long capacity = Math.max(entries.capacity() * 2L, (long)entriesLength + n);
+		if (capacity > Integer.MAX_VALUE) {
+			if ((long)entriesLength + n > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Too many IDs to hold: " + size);
+			}
+			capacity = Integer.MAX_VALUE;
+		}
+		ByteBuffer grown = ByteBuffer.allocateDirect((int)capacity);
+		ByteBuffer used = entries.duplicate();
+		used.position(0);
+		used.limit(entriesLength);
+		grown.put(used);
+		entries = grown;
+	}
+	// FNV-1a, spread so that the low bits pick the slot
+	private static int hash(byte[] key) {
+		int h = 0x811c9dc5;
+		for (byte b : key) {
+			h = (h ^ (b & 0xff)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+}
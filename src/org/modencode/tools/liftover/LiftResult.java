@@ -0,0 +1,54 @@
+package org.modencode.tools.liftover;
+
+/**
+ * Helpers for the packed long returned by the primitive lift kernel
+ * (AbstractUpdater.lift and ComposedMapping.lift). The low 56 bits hold the signed
+ * change to the start and end (28 bits each); status flags sit above them. Offsets
+ * are relative to the coordinates passed in, so any int coordinate can be lifted as
+ * long as it moves by less than 2^27 bases.
+ */
+public final class LiftResult {
+	public static final int CHANGED = 1;
+	public static final int FLIPPED = 2;
+	public static final int DROPPED = 4;
+	public static final int INDETERMINATE = 8;
+	// The start/end was moved by at least one mismatch, even if it ended up where it began
+	public static final int START_SET = 16;
+	public static final int END_SET = 32;
+	// The feature was inverted an odd number of times, so its strand changes
+	public static final int STRAND_TOGGLED = 64;
+
+	// Returned by ComposedMapping.lift when the feature needs the release-by-release rules
+	public static final long UNRESOLVED = -1L;
+
+	private static final int OFFSET_BITS = 28;
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+	private static final int MAX_OFFSET = (1 << (OFFSET_BITS - 1)) - 1;
+	private static final int MIN_OFFSET = -(1 << (OFFSET_BITS - 1));
+
+	private LiftResult() { }
+
+	public static long pack(int startOffset, int endOffset, int flags) throws MappingException {
+		if (startOffset > MAX_OFFSET || startOffset < MIN_OFFSET || endOffset > MAX_OFFSET || endOffset < MIN_OFFSET) {
+			throw new MappingException("Lifted coordinates moved too far to represent (" + startOffset + ", " + endOffset + ")");
+		}
+		return ((long)flags << (2 * OFFSET_BITS)) | ((startOffset & OFFSET_MASK) << OFFSET_BITS) | (endOffset & OFFSET_MASK);
+	}
+
+	public static int getStart(long result, int originalStart) {
+		return originalStart + signExtend(result >>> OFFSET_BITS);
+	}
+	public static int getEnd(long result, int originalEnd) {
+		return originalEnd + signExtend(result);
+	}
+	public static int getFlags(long result) {
+		return (int)(result >>> (2 * OFFSET_BITS));
+	}
+	public static boolean hasFlag(long result, int flag) {
+		return (getFlags(result) & flag) != 0;
+	}
+
+	private static int signExtend(long bits) {
+		return (int)((bits & OFFSET_MASK) << (64 - OFFSET_BITS) >> (64 - OFFSET_BITS));
+	}
+}
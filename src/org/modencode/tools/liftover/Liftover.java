@@ -52,6 +52,24 @@ public class Liftover {
 						new FlaggedOption("sam-stringency", StringStringParser.getParser(), null, JSAP.NOT_REQUIRED, 'y', "sam-stringency",
 								"The SAM validation stringency; one of STRICT, LENIENT, or SILENT."
 						),
+						new FlaggedOption("threads", JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED, 't', "threads",
+								"The number of worker threads to lift with (GFF, SAM/BAM and ChadoXML)."
+						),
+						new FlaggedOption("sam-batch-size", JSAP.INTEGER_PARSER, "1000", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "sam-batch-size",
+								"The number of SAM/BAM records each worker thread lifts at a time."
+						),
+						new FlaggedOption("bam-sort-window", JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED, JSAP.NO_SHORTFLAG, "bam-sort-window",
+								"Hold back this many BAM records to write them in coordinate order (0 to write them as lifted)."
+						),
+						new Switch("bam-index", JSAP.NO_SHORTFLAG, "bam-index",
+								"Write a BAI index (output.bam.bai) for coordinate-sorted BAM output."
+						),
+						new Switch("bam-by-reference", JSAP.NO_SHORTFLAG, "bam-by-reference",
+								"Lift a coordinate-sorted, indexed BAM file one reference sequence per thread."
+						),
+						new Switch("sam-sync-mates", JSAP.NO_SHORTFLAG, "sam-sync-mates",
+								"Lift each SAM/BAM read on its own, then take its mate's fields from the lifted mate (two passes; handles mates on other chromosomes)."
+						),
 				}
 		);
 		
@@ -64,7 +82,7 @@ public class Liftover {
 			System.exit(1);
 		}
 		
-		List<MappingData> mappingData = MappingDataFactory.generateMappings(config.getInt("release1"), config.getInt("release2"));
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(config.getInt("release1"), config.getInt("release2")).getMappingData();
 		File outFile = config.getFile("out");
 		
 		if (config.contains("gff")) {
@@ -72,6 +90,7 @@ public class Liftover {
 
 			GFFUpdater gffu = new GFFUpdater(mappingData);
 			gffu.setVerbose(true); // Includes commented lines showing what's changed
+			gffu.setThreads(config.getInt("threads"));
 			gffu.processFile(gffFile, outFile);
 		} else if (config.contains("wig")) {
 			File wigFile = config.getFile("wig");
@@ -96,12 +115,19 @@ public class Liftover {
 			}
 			
 			samu.setVerbose(true);
+			samu.setThreads(config.getInt("threads"));
+			samu.setBatchSize(config.getInt("sam-batch-size"));
+			samu.setSyncMates(config.getBoolean("sam-sync-mates"));
+			samu.setSortWindow(config.getInt("bam-sort-window"));
+			samu.setCreateIndex(config.getBoolean("bam-index"));
+			samu.setByReference(config.getBoolean("bam-by-reference"));
 			samu.processFile(samFile, outFile);
 			
 		} else if (config.contains("xml")) {
 			File xmlFile = config.getFile("xml");
 			ChadoXMLUpdater xmlu = new ChadoXMLUpdater(mappingData);
 			xmlu.setVerbose(true);
+			xmlu.setThreads(config.getInt("threads"));
 			xmlu.processFile(xmlFile, outFile);
 		}
 		
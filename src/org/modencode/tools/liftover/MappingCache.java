@@ -0,0 +1,379 @@
+package org.modencode.tools.liftover;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary, memory-mapped copy of every sequence_differences.WS* release, so that a run
+ * doesn't have to parse the text resources each time it starts. The cache is written
+ * the first time it is needed into the directory named by the liftover.cache.dir
+ * system property (default: .liftover-cache under user.home; set it to an empty
+ * string to turn the cache off), and rewritten whenever it is missing, has the wrong
+ * version, or any release file has been added, removed, or changed in modification time
+ * or size since it was built. The cache is trusted as it stands, so it isn't used unless
+ * the running user owns both the directory and the cache file.
+ *
+ * Layout (big-endian):
+ *   int magic, int version, int releaseCount
+ *   releaseCount x { int release, int offset, long fileModified, long fileLength }
+ *   per release: int chromosomeCount, then per chromosome:
+ *     short nameLength, UTF-8 name, int pairCount,
+ *     pairCount x { prevStart, prevEnd, prevLength, thisStart, thisEnd, thisLength, flipped }
+ * Pairs are stored in file order.
+ */
+public class MappingCache {
+	public static final String CACHE_DIR_PROPERTY = "liftover.cache.dir";
+
+	private static final int MAGIC = 0x4C4F4D43; // "LOMC"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 12;
+	private static final int RELEASE_ENTRY_SIZE = 24;
+	private static final String RELEASE_DIRECTORY = "/CHROMOSOME_DIFFERENCES/";
+	private static final Pattern RELEASE_FILE = Pattern.compile("sequence_differences\\.WS(\\d+)");
+
+	private static MappingCache instance;
+	private static boolean initialized = false;
+
+	private ByteBuffer buffer;
+	private int[] releases;
+	private int[] offsets;
+	// The modification time and size each release file had when the cache was built
+	private long[] fileModified;
+	private long[] fileLength;
+
+	private MappingCache(ByteBuffer buffer) throws MappingException {
+		this.buffer = buffer;
+		int releaseCount = buffer.getInt(8);
+		if (releaseCount < 0 || HEADER_SIZE + (long)releaseCount * RELEASE_ENTRY_SIZE > buffer.limit()) {
+			throw new MappingException("Corrupt mapping cache: bad release count " + releaseCount);
+		}
+		releases = new int[releaseCount];
+		offsets = new int[releaseCount];
+		fileModified = new long[releaseCount];
+		fileLength = new long[releaseCount];
+		for (int i = 0; i < releaseCount; i++) {
+			int entry = HEADER_SIZE + i * RELEASE_ENTRY_SIZE;
+			releases[i] = buffer.getInt(entry);
+			offsets[i] = buffer.getInt(entry + 4);
+			fileModified[i] = buffer.getLong(entry + 8);
+			fileLength[i] = buffer.getLong(entry + 16);
+			if (offsets[i] < 0 || offsets[i] >= buffer.limit()) {
+				throw new MappingException("Corrupt mapping cache: bad offset for release " + releases[i]);
+			}
+		}
+	}
+
+	/**
+	 * The shared cache, opening or building it on first use. Returns null if the cache is
+	 * turned off or can't be used, in which case callers parse the text resources.
+	 */
+	public static synchronized MappingCache getInstance() {
+		if (!initialized) {
+			initialized = true;
+			String dir = System.getProperty(CACHE_DIR_PROPERTY, System.getProperty("user.home") + File.separator + ".liftover-cache");
+			if (dir.length() > 0) {
+				try {
+					instance = openOrBuild(new File(dir));
+				} catch (MappingException e) {
+					System.err.println("Not using the mapping cache: " + e.getMessage());
+				}
+			}
+		}
+		return instance;
+	}
+
+	private static MappingCache openOrBuild(File dir) throws MappingException {
+		File source = getSourceLocation();
+		String key = (source == null) ? "default" : Integer.toHexString(source.getAbsolutePath().hashCode());
+		File cacheFile = new File(dir, "mappings-" + key + ".bin");
+		List<ReleaseFile> releaseFiles = getReleaseFiles();
+
+		if (cacheFile.isFile()) {
+			checkOwner(dir);
+			checkOwner(cacheFile);
+			try {
+				MappingCache cache = open(cacheFile);
+				if (cache.isBuiltFrom(releaseFiles)) {
+					return cache;
+				}
+			} catch (MappingException e) {
+				System.err.println("Rebuilding mapping cache " + cacheFile + ": " + e.getMessage());
+			}
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new MappingException("Couldn't create cache directory " + dir);
+		}
+		checkOwner(dir);
+		try {
+			// Write to a temporary file and rename, so a concurrent run never maps a partial cache
+			File tmp = File.createTempFile("mappings-", ".tmp", dir);
+			try {
+				write(tmp, releaseFiles);
+				if (!tmp.renameTo(cacheFile)) {
+					cacheFile.delete();
+					if (!tmp.renameTo(cacheFile)) {
+						throw new MappingException("Couldn't move " + tmp + " to " + cacheFile);
+					}
+				}
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			throw new MappingException("Couldn't write mapping cache " + cacheFile, e);
+		}
+		return open(cacheFile);
+	}
+
+	// Another user could have put a cache here for this one to trust
+	private static void checkOwner(File file) throws MappingException {
+		try {
+			UserPrincipal user = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+			UserPrincipal owner = Files.getOwner(file.toPath());
+			if (!owner.equals(user)) {
+				throw new MappingException(file + " belongs to " + owner.getName() + ", not " + user.getName());
+			}
+		} catch (UnsupportedOperationException e) {
+			throw new MappingException("Can't tell who owns " + file, e);
+		} catch (IOException e) {
+			throw new MappingException("Can't tell who owns " + file, e);
+		}
+	}
+
+	/**
+	 * Map an existing cache file, checking its magic number and version.
+	 */
+	public static MappingCache open(File cacheFile) throws MappingException {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+					throw new MappingException("Corrupt mapping cache " + cacheFile);
+				}
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+					throw new MappingException("Mapping cache " + cacheFile + " is not version " + VERSION);
+				}
+				return new MappingCache(buffer);
+			} finally {
+				// The mapping stays valid after the channel is closed
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new MappingException("Couldn't open mapping cache " + cacheFile, e);
+		}
+	}
+
+	// Whether the cache holds exactly these releases, built from files with these times and sizes
+	private boolean isBuiltFrom(List<ReleaseFile> releaseFiles) {
+		if (releaseFiles.size() != releases.length) { return false; }
+		for (int i = 0; i < releases.length; i++) {
+			ReleaseFile file = releaseFiles.get(i);
+			if (file.release != releases[i] || file.modified != fileModified[i] || file.length != fileLength[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse the releases and write them to cacheFile.
+	 */
+	private static void write(File cacheFile, List<ReleaseFile> releaseFiles) throws MappingException, IOException {
+		List<MappingData> all = new ArrayList<MappingData>();
+		for (ReleaseFile file : releaseFiles) {
+			all.add(MappingDataFactory.parseRelease(file.release));
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(all.size());
+			int offset = HEADER_SIZE + all.size() * RELEASE_ENTRY_SIZE;
+			for (int i = 0; i < all.size(); i++) {
+				out.writeInt(all.get(i).getRelease());
+				out.writeInt(offset);
+				out.writeLong(releaseFiles.get(i).modified);
+				out.writeLong(releaseFiles.get(i).length);
+				offset += sizeOf(all.get(i));
+			}
+			for (MappingData md : all) {
+				out.writeInt(md.getChromosomes().size());
+				for (String chr : md.getChromosomes()) {
+					byte[] name = chr.getBytes("UTF-8");
+					out.writeShort(name.length);
+					out.write(name);
+					List<MappingData.MismatchPair> pairs = md.getMismatchPairs(chr);
+					out.writeInt(pairs.size());
+					for (MappingData.MismatchPair mm : pairs) {
+						out.writeInt(mm.previousMismatch.start);
+						out.writeInt(mm.previousMismatch.end);
+						out.writeInt(mm.previousMismatch.length);
+						out.writeInt(mm.thisMismatch.start);
+						out.writeInt(mm.thisMismatch.end);
+						out.writeInt(mm.thisMismatch.length);
+						out.writeInt(mm.flipped ? 1 : 0);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	private static int sizeOf(MappingData md) throws IOException {
+		int size = 4;
+		for (String chr : md.getChromosomes()) {
+			size += 2 + chr.getBytes("UTF-8").length + 4 + md.getMismatchPairs(chr).size() * 28;
+		}
+		return size;
+	}
+
+	/**
+	 * A fresh MappingData for release, with its pairs in file order (not yet reversed),
+	 * or null if the release isn't in the cache.
+	 */
+	public MappingData load(int release) throws MappingException {
+		int idx = Arrays.binarySearch(releases, release);
+		if (idx < 0) { return null; }
+		MappingData md = new MappingData(release);
+		try {
+			// Absolute reads only, so several threads can share the buffer
+			int pos = offsets[idx];
+			int chromosomeCount = buffer.getInt(pos);
+			pos += 4;
+			for (int c = 0; c < chromosomeCount; c++) {
+				int nameLength = buffer.getShort(pos) & 0xFFFF;
+				pos += 2;
+				byte[] name = new byte[nameLength];
+				for (int i = 0; i < nameLength; i++) { name[i] = buffer.get(pos + i); }
+				pos += nameLength;
+				String chr = new String(name, "UTF-8");
+				int pairCount = buffer.getInt(pos);
+				pos += 4;
+				for (int i = 0; i < pairCount; i++, pos += 28) {
+					md.addMismatchPair(chr,
+							buffer.getInt(pos), buffer.getInt(pos + 4), buffer.getInt(pos + 8),
+							buffer.getInt(pos + 12), buffer.getInt(pos + 16), buffer.getInt(pos + 20),
+							buffer.getInt(pos + 24) != 0);
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new MappingException("Corrupt mapping cache entry for release " + release, e);
+		} catch (IOException e) {
+			throw new MappingException("Couldn't decode mapping cache entry for release " + release, e);
+		}
+		return md;
+	}
+
+	// Every sequence_differences.WS* resource, in release order, with its modification time and size
+	private static List<ReleaseFile> getReleaseFiles() throws MappingException {
+		URL url = MappingDataFactory.class.getResource(RELEASE_DIRECTORY);
+		if (url == null) {
+			throw new MappingException("Couldn't find the release files in " + RELEASE_DIRECTORY);
+		}
+		List<ReleaseFile> files = new ArrayList<ReleaseFile>();
+		try {
+			if ("file".equals(url.getProtocol())) {
+				File[] listed = new File(url.toURI()).listFiles();
+				for (File f : (listed == null) ? new File[0] : listed) {
+					Matcher m = RELEASE_FILE.matcher(f.getName());
+					if (m.matches() && f.isFile()) {
+						files.add(new ReleaseFile(Integer.parseInt(m.group(1)), f.lastModified(), f.length()));
+					}
+				}
+			} else {
+				URLConnection connection = url.openConnection();
+				if (!(connection instanceof JarURLConnection)) {
+					throw new MappingException("Can't list the release files in " + url);
+				}
+				// The entries' own times and sizes, not the jar's
+				JarURLConnection jar = (JarURLConnection)connection;
+				String prefix = jar.getEntryName();
+				for (Enumeration<JarEntry> entries = jar.getJarFile().entries(); entries.hasMoreElements(); ) {
+					JarEntry entry = entries.nextElement();
+					if (!entry.getName().startsWith(prefix)) { continue; }
+					Matcher m = RELEASE_FILE.matcher(entry.getName().substring(prefix.length()));
+					if (m.matches()) {
+						files.add(new ReleaseFile(Integer.parseInt(m.group(1)), entry.getTime(), entry.getSize()));
+					}
+				}
+			}
+		} catch (URISyntaxException e) {
+			throw new MappingException("Couldn't find release files in " + url, e);
+		} catch (IOException e) {
+			throw new MappingException("Couldn't list release files in " + url, e);
+		}
+		Collections.sort(files, new Comparator<ReleaseFile>() {
+			public int compare(ReleaseFile a, ReleaseFile b) {
+				return (a.release < b.release) ? -1 : (a.release == b.release ? 0 : 1);
+			}
+		});
+		return files;
+	}
+	private static class ReleaseFile {
+		private int release;
+		private long modified;
+		private long length;
+
+		private ReleaseFile(int release, long modified, long length) {
+			this.release = release;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+
+	// The jar or class directory the sequence differences were loaded from, to name the cache by
+	private static File getSourceLocation() {
+		URL url = MappingDataFactory.class.getResource(RELEASE_DIRECTORY);
+		CodeSource cs = MappingDataFactory.class.getProtectionDomain().getCodeSource();
+		if (cs == null || cs.getLocation() == null) { return null; }
+		try {
+			File location = new File(cs.getLocation().toURI());
+			if (location.isDirectory() && url != null && "file".equals(url.getProtocol())) {
+				// Running from a class directory; use the resource directory
+				return new File(url.toURI());
+			}
+			return location;
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Build the cache ahead of time, e.g. in the directory a batch of runs by the same
+	 * user then points liftover.cache.dir at: MappingCache <cache directory>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: MappingCache <cache directory>");
+			System.exit(1);
+		}
+		openOrBuild(new File(args[0]));
+	}
+}
@@ -3,6 +3,7 @@ package org.modencode.tools.liftover;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
 
@@ -10,16 +11,23 @@ public class MappingData {
 
 	private int release;
 	private HashMap<String,ArrayList<MismatchPair>> mismatches;
+	// Packed copies of the mismatch lists, built on demand. The map is never changed once it's
+	// published, only replaced, so lifting threads can read it without taking a lock.
+	private volatile Map<String,MismatchTable> tables;
+	// Set once the release is cached and handed to every caller; it can't be changed after that
+	private volatile boolean shared = false;
 
 	public MappingData(int release) {
 		this.release = release;
 		mismatches = new HashMap<String, ArrayList<MismatchPair>>(); 
+		tables = Collections.emptyMap();
 	}
 
 	public Set<String> getChromosomes() {
-		return mismatches.keySet();
+		return Collections.unmodifiableSet(mismatches.keySet());
 	}
 	public void setRelease(int release) {
+		checkNotShared();
 		this.release = release;
 	}
 
@@ -31,6 +39,7 @@ public class MappingData {
 	}
 	
 	public void addMismatchPair(String chromosome, int previousStart, int previousEnd, int previousLength, int thisStart, int thisEnd, int thisLength, boolean flipped) {
+		checkNotShared();
 		MismatchPair newPair = new MismatchPair();
 		newPair.previousMismatch.start = previousStart;
 		newPair.previousMismatch.end = previousEnd;
@@ -41,16 +50,41 @@ public class MappingData {
 		newPair.flipped = flipped;
 		if (mismatches.get(chromosome) == null)	mismatches.put(chromosome, new ArrayList<MismatchPair>());
 		mismatches.get(chromosome).add(newPair);
+		clearTables();
 	}
 	
+	// Read-only; the pairs are changed only through this class's own methods
 	public List<MismatchPair> getMismatchPairs(String chromosome) {
 		if (mismatches.get(chromosome) != null) {
-			return mismatches.get(chromosome);
+			return Collections.unmodifiableList(mismatches.get(chromosome));
 		} else {
-			return new ArrayList<MismatchPair>();
+			return Collections.emptyList();
 		}
 	}
 	
+	// Returns the packed, sorted form of the mismatches on chromosome, or null if there are none.
+	public MismatchTable getMismatchTable(String chromosome) {
+		MismatchTable table = tables.get(chromosome);
+		if (table == null && mismatches.get(chromosome) != null) {
+			table = buildMismatchTable(chromosome);
+		}
+		return table;
+	}
+	// Only the first lookup of each chromosome takes the lock
+	private synchronized MismatchTable buildMismatchTable(String chromosome) {
+		MismatchTable table = tables.get(chromosome);
+		if (table == null) {
+			table = new MismatchTable(mismatches.get(chromosome));
+			HashMap<String,MismatchTable> built = new HashMap<String, MismatchTable>(tables);
+			built.put(chromosome, table);
+			tables = Collections.unmodifiableMap(built);
+		}
+		return table;
+	}
+	private synchronized void clearTables() {
+		tables = Collections.emptyMap();
+	}
+	
 	// Reverse  the list of MismatchPairs attached to each chromosome.
 	// If this isn't done, when lifting takes place there may be an error if the partially-lifted feature
 	// should overlap with a MappingPair, but has been offset by earlier MappingPairs and doesn't (or vice versa).
@@ -65,9 +99,52 @@ public class MappingData {
 	// With the list reversed, the second pair sets the feature to 140 - 160, and *then*
 	// the first pair offsets it to 240 - 260, its true value.
 	public void reverseMismatchLists(){
+		checkNotShared();
 		for (String chr : this.getChromosomes()) {
 			Collections.reverse(mismatches.get(chr));
 		}
+		clearTables();
+	}
+	
+	// Swap the previous and current coordinates of every pair, for lifting from this release
+	// back to the previous one.
+	public void invert() {
+		checkNotShared();
+		for (String chr : this.getChromosomes()) {
+			for (MismatchPair mp : mismatches.get(chr)) {
+				MismatchCoords tmp = mp.previousMismatch;
+				mp.previousMismatch = mp.thisMismatch;
+				mp.thisMismatch = tmp;
+			}
+		}
+		clearTables();
+	}
+	
+	// Stop the mutators working, as the release is about to be shared between callers
+	void share() {
+		shared = true;
+	}
+	private void checkNotShared() {
+		if (shared) {
+			throw new IllegalStateException("Release " + release + " is shared, so it can't be changed; change a copy from inverted() or generateMappings instead");
+		}
+	}
+	
+	// A copy of this release with previous and current coordinates swapped, leaving this one untouched
+	public MappingData inverted() {
+		MappingData md = new MappingData(release);
+		for (String chr : this.getChromosomes()) {
+			ArrayList<MismatchPair> pairs = new ArrayList<MismatchPair>(mismatches.get(chr).size());
+			for (MismatchPair mp : mismatches.get(chr)) {
+				MismatchPair copy = mp.clone();
+				MismatchCoords tmp = copy.previousMismatch;
+				copy.previousMismatch = copy.thisMismatch;
+				copy.thisMismatch = tmp;
+				pairs.add(copy);
+			}
+			md.mismatches.put(chr, pairs);
+		}
+		return md;
 	}
 	
 	public class MismatchCoords {
@@ -91,10 +168,12 @@ public class MappingData {
 			this.thisMismatch = new MismatchCoords();
 		}
 		
+		// A copy with its own coordinates; flipped is copied too, so the lift rules see inversions
 		public MismatchPair clone() {
 			MismatchPair mp = new MismatchPair();
 			mp.previousMismatch = this.previousMismatch.clone();
 			mp.thisMismatch = this.thisMismatch.clone();
+			mp.flipped = this.flipped;
 			return mp;
 		}
 	}
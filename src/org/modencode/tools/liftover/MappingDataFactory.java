@@ -5,11 +5,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MappingDataFactory {
 	
 	public final static String RELEASE_FILE_TEMPLATE = "/CHROMOSOME_DIFFERENCES/sequence_differences.WS%d";
+	// Maximum number of release pairs kept by generateComposedMapping
+	public final static String CHAIN_CACHE_SIZE_PROPERTY = "liftover.chain.cache.size";
+	
+	private final static int chainCacheSize = Integer.getInteger(CHAIN_CACHE_SIZE_PROPERTY, 16);
+	// Keyed by (lower release, higher release); least recently used pairs are evicted first
+	private final static LinkedHashMap<Long, CachedChain> chainCache = new LinkedHashMap<Long, CachedChain>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Long, CachedChain> eldest) {
+			return size() > chainCacheSize;
+		}
+	};
+	private final static AtomicLong chainCacheHits = new AtomicLong();
+	private final static AtomicLong chainCacheMisses = new AtomicLong();
+	
+	// Each direction is loaded by the first caller to ask for it, outside the cache's lock;
+	// other callers for the same pair of releases wait for it
+	private static class CachedChain {
+		FutureTask<ComposedMapping> forward;
+		FutureTask<ComposedMapping> reverse; // Derived from forward the first time it is asked for
+	}
 
 	public static List<MappingData> generateMappings(int startRelease, int destinationRelease) throws MappingException {
 		List<MappingData> mappings;
@@ -17,13 +43,7 @@ public class MappingDataFactory {
 			mappings =  doGenerateMappings(destinationRelease, startRelease);
 			// Invert mapping information
 			for (MappingData md : mappings) {
-				for (String chr : md.getChromosomes()) {
-					for (MappingData.MismatchPair mp : md.getMismatchPairs(chr)) {
-						MappingData.MismatchCoords tmp = mp.previousMismatch;
-						mp.previousMismatch = mp.thisMismatch;
-						mp.thisMismatch = tmp;
-					}
-				}
+				md.invert();
 			}
 			List<MappingData> reverseList = new ArrayList<MappingData>();
 			for (int i = mappings.size()-1; i >= 0; i--) {
@@ -35,45 +55,105 @@ public class MappingDataFactory {
 		}
 		return mappings;
 	}
+	/**
+	 * The same chain as generateMappings, composed into a single breakpoint table per chromosome.
+	 * Results are shared and kept in a size-bounded LRU cache, so the MappingData they hold are
+	 * read-only: their mutators throw IllegalStateException. Lifting back (startRelease >
+	 * destinationRelease) reuses the forward entry for the same pair of releases, inverting
+	 * copies of it rather than reading the files again. The releases are read without holding
+	 * the cache's lock, so other pairs can be looked up meanwhile.
+	 */
+	public static ComposedMapping generateComposedMapping(int startRelease, int destinationRelease) throws MappingException {
+		final int low = Math.min(startRelease, destinationRelease);
+		final int high = Math.max(startRelease, destinationRelease);
+		Long key = Long.valueOf(((long)low << 32) | (high & 0xFFFFFFFFL));
+		final CachedChain chain;
+		FutureTask<ComposedMapping> task;
+		synchronized (chainCache) {
+			CachedChain cached = chainCache.get(key);
+			if (cached == null) {
+				chainCacheMisses.incrementAndGet();
+				cached = new CachedChain();
+				cached.forward = new FutureTask<ComposedMapping>(new Callable<ComposedMapping>() {
+					public ComposedMapping call() throws MappingException {
+						return share(ComposedMapping.compose(doGenerateMappings(low, high)));
+					}
+				});
+				chainCache.put(key, cached);
+			} else {
+				chainCacheHits.incrementAndGet();
+			}
+			chain = cached;
+			if (startRelease <= destinationRelease) {
+				task = chain.forward;
+			} else {
+				if (chain.reverse == null) {
+					chain.reverse = new FutureTask<ComposedMapping>(new Callable<ComposedMapping>() {
+						public ComposedMapping call() throws MappingException {
+							List<MappingData> forward = getChain(chain.forward).getMappingData();
+							List<MappingData> reverseList = new ArrayList<MappingData>(forward.size());
+							for (int i = forward.size()-1; i >= 0; i--) {
+								reverseList.add(forward.get(i).inverted());
+							}
+							return share(ComposedMapping.compose(reverseList));
+						}
+					});
+				}
+				task = chain.reverse;
+			}
+		}
+		try {
+			return getChain(task);
+		} catch (MappingException e) {
+			// Don't keep the failure; the next call tries again
+			synchronized (chainCache) {
+				if (chainCache.get(key) == chain) {
+					chainCache.remove(key);
+				}
+			}
+			throw e;
+		}
+	}
+	// Run the load if no other caller has started it, otherwise wait for it
+	private static ComposedMapping getChain(FutureTask<ComposedMapping> task) throws MappingException {
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while loading the releases", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't load the releases", e);
+		}
+	}
+	private static ComposedMapping share(ComposedMapping composed) {
+		for (MappingData md : composed.getMappingData()) {
+			md.share();
+		}
+		return composed;
+	}
+	// Number of generateComposedMapping calls answered from the cache
+	public static long getChainCacheHits() {
+		return chainCacheHits.get();
+	}
+	// Number of generateComposedMapping calls that had to load the releases
+	public static long getChainCacheMisses() {
+		return chainCacheMisses.get();
+	}
+	public static void clearChainCache() {
+		synchronized (chainCache) {
+			chainCache.clear();
+		}
+	}
 	private static List<MappingData> doGenerateMappings(int startRelease, int destinationRelease) throws MappingException {
 		ArrayList<MappingData> allMappingData = new ArrayList<MappingData>();
+		MappingCache cache = MappingCache.getInstance();
 		
 		for (int curRelease = startRelease+1; curRelease <= destinationRelease; curRelease++) {
-			String path = String.format(RELEASE_FILE_TEMPLATE, curRelease);
-			
-			InputStream differencesFile = MappingDataFactory.class.getResourceAsStream(path);
-			if (differencesFile == null) {
-				System.err.println("Couldn't open " + path);
-				throw new MappingException("Couldn't open " + path);
-			}
-			BufferedReader reader;
-			reader = new BufferedReader(new InputStreamReader(differencesFile));
-			
-			MappingData md = new MappingData(curRelease);
-			try {
-				String currentChromosome = null;
-				String line = null;
-				while ((line = reader.readLine()) != null) {
-					if (line.matches("^\\s*#")) continue; // Comments
-					if (line.matches("^\\s*$")) continue; // Blank lines
-					if (line.startsWith("Chromosome: ")) {
-						// Set the chromosome
-						currentChromosome = line.substring(12);
-					} else {
-						String[] fields = line.split("\t");
-						boolean flipped = false;
-						if (Integer.parseInt(fields[6]) > 0) { flipped = true; }
-						
-						md.addMismatchPair(currentChromosome,
-								Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
-								Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
-								flipped);
-					}
-				}
-				reader.close();
-			} catch (IOException e) {
-				System.err.println("Couldn't read line from " + differencesFile);
-				throw new MappingException("Couldn't read line from " + differencesFile, e);
+			MappingData md = (cache == null) ? null : cache.load(curRelease);
+			if (md == null) {
+				md = parseRelease(curRelease);
 			}
 			// For each chromosome, reverse the order the mismatches are in.
 			// This is to prevent errors in partially-lifted features.
@@ -96,5 +176,47 @@ public class MappingDataFactory {
 		}
 		return allMappingData;
 	}
-
+	
+	// Read one sequence_differences file, keeping the mismatch pairs in file order
+	public static MappingData parseRelease(int release) throws MappingException {
+		String path = String.format(RELEASE_FILE_TEMPLATE, release);
+		
+		InputStream differencesFile = MappingDataFactory.class.getResourceAsStream(path);
+		if (differencesFile == null) {
+			System.err.println("Couldn't open " + path);
+			throw new MappingException("Couldn't open " + path);
+		}
+		BufferedReader reader;
+		reader = new BufferedReader(new InputStreamReader(differencesFile));
+		
+		MappingData md = new MappingData(release);
+		try {
+			String currentChromosome = null;
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String trimmed = line.trim();
+				if (trimmed.length() == 0) continue; // Blank lines
+				if (trimmed.startsWith("#")) continue; // Comments
+				if (line.startsWith("Chromosome: ")) {
+					// Set the chromosome
+					currentChromosome = line.substring(12);
+				} else {
+					String[] fields = line.split("\t");
+					boolean flipped = false;
+					// Some releases (e.g. WS120) leave off the flipped column
+					if (fields.length > 6 && Integer.parseInt(fields[6]) > 0) { flipped = true; }
+					
+					md.addMismatchPair(currentChromosome,
+							Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+							Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+							flipped);
+				}
+			}
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("Couldn't read line from " + differencesFile);
+			throw new MappingException("Couldn't read line from " + differencesFile, e);
+		}
+		return md;
+	}
 }
@@ -0,0 +1,127 @@
+package org.modencode.tools.liftover;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packed form of the MismatchPairs for one chromosome of one release: parallel int arrays
+ * sorted by previous start, and a BitSet for the flipped flag. Coordinates are the same
+ * 0-based, half-open values as in MappingData.MismatchCoords.
+ */
+public class MismatchTable {
+	private final int size;
+	private final int[] previousStart, previousEnd, previousLength;
+	private final int[] thisStart, thisEnd, thisLength;
+	private final BitSet flipped;
+	// For walks that only shift: see getUnflippedShift and getMaxShiftedEnd
+	private final int[] unflippedShift, maxShiftedEnd;
+
+	public MismatchTable(List<MappingData.MismatchPair> pairs) {
+		List<MappingData.MismatchPair> sorted = new ArrayList<MappingData.MismatchPair>(pairs);
+		// Stable, so pairs with the same start keep their relative order
+		Collections.sort(sorted, new Comparator<MappingData.MismatchPair>() {
+			public int compare(MappingData.MismatchPair a, MappingData.MismatchPair b) {
+				if (a.previousMismatch.start == b.previousMismatch.start) { return 0; }
+				return (a.previousMismatch.start < b.previousMismatch.start) ? -1 : 1;
+			}
+		});
+		// The table is walked from the highest index down, so reverse each run of equal starts
+		// to keep the list's own order for ties.
+		for (int i = 0; i < sorted.size(); ) {
+			int j = i + 1;
+			while (j < sorted.size() && sorted.get(j).previousMismatch.start == sorted.get(i).previousMismatch.start) { j++; }
+			if (j - i > 1) { Collections.reverse(sorted.subList(i, j)); }
+			i = j;
+		}
+		size = sorted.size();
+		previousStart = new int[size];
+		previousEnd = new int[size];
+		previousLength = new int[size];
+		thisStart = new int[size];
+		thisEnd = new int[size];
+		thisLength = new int[size];
+		flipped = new BitSet(size);
+		for (int i = 0; i < size; i++) {
+			MappingData.MismatchPair mm = sorted.get(i);
+			previousStart[i] = mm.previousMismatch.start;
+			previousEnd[i] = mm.previousMismatch.end;
+			previousLength[i] = mm.previousMismatch.length;
+			thisStart[i] = mm.thisMismatch.start;
+			thisEnd[i] = mm.thisMismatch.end;
+			thisLength[i] = mm.thisMismatch.length;
+			if (mm.flipped) { flipped.set(i); }
+		}
+		unflippedShift = new int[size + 1];
+		for (int i = size - 1; i >= 0; i--) {
+			unflippedShift[i] = unflippedShift[i + 1] + (flipped.get(i) ? 0 : thisLength[i] - previousLength[i]);
+		}
+		maxShiftedEnd = new int[size + 1];
+		maxShiftedEnd[0] = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			maxShiftedEnd[i + 1] = maxShiftedEnd[i];
+			if (!flipped.get(i)) {
+				maxShiftedEnd[i + 1] = Math.max(maxShiftedEnd[i + 1], previousEnd[i] - unflippedShift[i + 1]);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The number of pairs whose previous start is at or before coordinate (0-based); these
+	 * are the pairs at indices [0, count). Walking them from count-1 down to 0 visits them
+	 * in the same order as MappingData.getMismatchPairs.
+	 */
+	public int countAtOrBefore(int coordinate) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (previousStart[mid] <= coordinate) { lo = mid + 1; } else { hi = mid; }
+		}
+		return lo;
+	}
+
+	/**
+	 * The net change in length made by the unflipped pairs at indices [from, size).
+	 */
+	public int getUnflippedShift(int from) {
+		return unflippedShift[from];
+	}
+	/**
+	 * The largest previous end among the unflipped pairs at indices [0, count), each less
+	 * the shift of the pairs above it (Integer.MIN_VALUE if there are none). A position p,
+	 * shifted by every unflipped pair as the walk from count-1 down to 0 reaches it, stays
+	 * at or past the end of each pair it reaches exactly when
+	 * getMaxShiftedEnd(count) <= p - getUnflippedShift(count).
+	 */
+	public int getMaxShiftedEnd(int count) {
+		return maxShiftedEnd[count];
+	}
+
+	public int getPreviousStart(int i) {
+		return previousStart[i];
+	}
+	public int getPreviousEnd(int i) {
+		return previousEnd[i];
+	}
+	public int getPreviousLength(int i) {
+		return previousLength[i];
+	}
+	public int getThisStart(int i) {
+		return thisStart[i];
+	}
+	public int getThisEnd(int i) {
+		return thisEnd[i];
+	}
+	public int getThisLength(int i) {
+		return thisLength[i];
+	}
+	public boolean isFlipped(int i) {
+		return flipped.get(i);
+	}
+}
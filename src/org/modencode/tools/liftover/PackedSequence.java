@@ -0,0 +1,162 @@
+package org.modencode.tools.liftover;
+
+/**
+ * A nucleotide sequence packed two bits to a base, for the FASTA content of a GFF file.
+ * A, C, G and T are packed; runs of N and U, which are rare, are kept as exceptions on top
+ * (packed as A), and so are runs of lowercase bases, so the sequence reads back exactly as
+ * it was given. Where case changes so often that its runs would take more room than a bit a
+ * base, they're turned into a bit a base instead. Only the characters acgntuACGNTU can be
+ * held. Not synchronized.
+ */
+public class PackedSequence {
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+	private static final int BASES_PER_WORD = 32;
+
+	private long[] bases = new long[16];
+	private int length = 0;
+	// Runs of N or U: [start, end) and the base
+	private int[] exceptionStart = new int[4], exceptionEnd = new int[4];
+	private byte[] exceptionBase = new byte[4];
+	private int exceptions = 0;
+	// Runs of lowercase bases: [start, end), or else a bit for each base
+	private int[] lowerStart = new int[4], lowerEnd = new int[4];
+	private int lowerRuns = 0;
+	private long[] lowerBits = null;
+
+	// Add bases to the end of the sequence
+	public void append(CharSequence s) {
+		int n = s.length();
+		if (length + n > bases.length * BASES_PER_WORD) {
+			long needed = ((long)length + n + BASES_PER_WORD - 1) / BASES_PER_WORD;
+			long[] grown = new long[(int)Math.min(Integer.MAX_VALUE, Math.max(needed, bases.length * 2L))];
+			System.arraycopy(bases, 0, grown, 0, bases.length);
+			bases = grown;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			long code;
+			switch (c) {
+				case 'A': case 'a': code = 0; break;
+				case 'C': case 'c': code = 1; break;
+				case 'G': case 'g': code = 2; break;
+				case 'T': case 't': code = 3; break;
+				case 'N': case 'n': case 'U': case 'u':
+					code = 0;
+					addException((byte)(c & ~0x20));
+					break;
+				default:
+					throw new IllegalArgumentException("Can't pack '" + c + "' as a base");
+			}
+			if (c >= 'a') { addLower(); }
+			bases[length >>> 5] |= code << ((length & 31) << 1);
+			length++;
+		}
+	}
+	private void addException(byte base) {
+		if (exceptions > 0 && exceptionEnd[exceptions - 1] == length && exceptionBase[exceptions - 1] == base) {
+			exceptionEnd[exceptions - 1]++;
+			return;
+		}
+		if (exceptions == exceptionStart.length) {
+			exceptionStart = grow(exceptionStart);
+			exceptionEnd = grow(exceptionEnd);
+			byte[] grown = new byte[exceptionBase.length * 2];
+			System.arraycopy(exceptionBase, 0, grown, 0, exceptionBase.length);
+			exceptionBase = grown;
+		}
+		exceptionStart[exceptions] = length;
+		exceptionEnd[exceptions] = length + 1;
+		exceptionBase[exceptions] = base;
+		exceptions++;
+	}
+	private void addLower() {
+		if (lowerBits != null) {
+			if ((length >>> 6) >= lowerBits.length) {
+				long[] grown = new long[Math.max(lowerBits.length * 2, (length >>> 6) + 1)];
+				System.arraycopy(lowerBits, 0, grown, 0, lowerBits.length);
+				lowerBits = grown;
+			}
+			lowerBits[length >>> 6] |= 1L << (length & 63);
+			return;
+		}
+		if (lowerRuns > 0 && lowerEnd[lowerRuns - 1] == length) {
+			lowerEnd[lowerRuns - 1]++;
+			return;
+		}
+		if (lowerRuns == lowerStart.length) {
+			// Eight bytes a run against a bit a base
+			if (lowerRuns > (length >>> 6)) {
+				lowerBits = new long[(length >>> 6) + 1];
+				for (int r = 0; r < lowerRuns; r++) {
+					for (int i = lowerStart[r]; i < lowerEnd[r]; i++) { lowerBits[i >>> 6] |= 1L << (i & 63); }
+				}
+				lowerStart = lowerEnd = null;
+				lowerRuns = 0;
+				addLower();
+				return;
+			}
+			lowerStart = grow(lowerStart);
+			lowerEnd = grow(lowerEnd);
+		}
+		lowerStart[lowerRuns] = length;
+		lowerEnd[lowerRuns] = length + 1;
+		lowerRuns++;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	// Copy the bases from start to end, as ASCII, into dst at dstOffset
+	public void getBytes(int start, int end, byte[] dst, int dstOffset) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Can't get bases " + start + " to " + end + " of " + length);
+		}
+		for (int i = start, d = dstOffset; i < end; i++, d++) {
+			dst[d] = BASES[(int)(bases[i >>> 5] >>> ((i & 31) << 1)) & 3];
+		}
+		for (int r = firstRunEndingAfter(exceptionEnd, exceptions, start); r < exceptions && exceptionStart[r] < end; r++) {
+			for (int i = Math.max(start, exceptionStart[r]), e = Math.min(end, exceptionEnd[r]); i < e; i++) {
+				dst[dstOffset + i - start] = exceptionBase[r];
+			}
+		}
+		if (lowerBits != null) {
+			for (int i = start, e = Math.min(end, lowerBits.length << 6); i < e; i++) {
+				if ((lowerBits[i >>> 6] & (1L << (i & 63))) != 0) { dst[dstOffset + i - start] |= 0x20; }
+			}
+			return;
+		}
+		for (int r = firstRunEndingAfter(lowerEnd, lowerRuns, start); r < lowerRuns && lowerStart[r] < end; r++) {
+			for (int i = Math.max(start, lowerStart[r]), e = Math.min(end, lowerEnd[r]); i < e; i++) {
+				dst[dstOffset + i - start] |= 0x20;
+			}
+		}
+	}
+	// The first of the sorted runs that ends after position, or runs if there isn't one
+	private static int firstRunEndingAfter(int[] runEnd, int runs, int position) {
+		int low = 0, high = runs;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (runEnd[mid] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public String toString() {
+		byte[] b = new byte[length];
+		getBytes(0, length, b, 0);
+		StringBuilder s = new StringBuilder(length);
+		for (byte c : b) { s.append((char)c); }
+		return s.toString();
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
@@ -0,0 +1,153 @@
+package org.modencode.tools.liftover;
+
+import java.util.Arrays;
+
+/**
+ * The edits made to a sequence while it's lifted, kept as a piece table over the original
+ * so that no bases are moved until the result is wanted. Each piece is either a run of the
+ * original or a run of filler. Splices are collected while each one lies before the last
+ * (as they do when a release's mismatches are walked from the end of the chromosome back),
+ * and then applied together in one pass over the pieces, so lifting across many releases is
+ * linear in the number of pieces and edits rather than in the length of the sequence.
+ */
+public class PieceTable {
+	private static final int FILLER = -1; // pieceStart of a run of filler
+
+	// The pieces, in order: where each starts in the original (or FILLER), and its length
+	private int[] pieceStart, pieceLength;
+	private int pieces;
+	private int[] piecePosition; // Where each piece starts in the sequence, once it's needed
+	private int length;
+	private final int originalLength;
+
+	// Splices not yet applied, each before the one added ahead of it
+	private int[] spliceOffset = new int[16], spliceDelete = new int[16], spliceInsert = new int[16];
+	private int splices = 0;
+
+	public PieceTable(int originalLength) {
+		this.originalLength = this.length = originalLength;
+		pieceStart = new int[] { 0 };
+		pieceLength = new int[] { originalLength };
+		pieces = (originalLength > 0) ? 1 : 0;
+	}
+
+	// Replace the deleteLength bases at offset with insertLength bases of filler. As with
+	// StringBuilder.delete, a deletion running past the end stops at the end.
+	public void splice(int offset, int deleteLength, int insertLength) {
+		if (offset < 0 || offset > length || deleteLength < 0 || insertLength < 0) {
+			throw new IndexOutOfBoundsException("Can't splice " + deleteLength + " bases at " + offset + " of " + length);
+		}
+		deleteLength = Math.min(deleteLength, length - offset);
+		if (deleteLength == 0 && insertLength == 0) { return; }
+		// A splice that isn't before the pending ones would see them in place
+		if (splices > 0 && offset + deleteLength > spliceOffset[splices - 1]) {
+			applySplices();
+		}
+		if (splices == spliceOffset.length) {
+			spliceOffset = grow(spliceOffset);
+			spliceDelete = grow(spliceDelete);
+			spliceInsert = grow(spliceInsert);
+		}
+		spliceOffset[splices] = offset;
+		spliceDelete[splices] = deleteLength;
+		spliceInsert[splices] = insertLength;
+		splices++;
+		length += insertLength - deleteLength;
+	}
+
+	public int length() {
+		return length;
+	}
+	// Whether the sequence is other than the original, assuming the filler never appears in it
+	public boolean isChanged() {
+		applySplices();
+		return !(pieces == 1 && pieceStart[0] == 0 && pieceLength[0] == originalLength)
+			&& !(pieces == 0 && originalLength == 0);
+	}
+
+	// Copy the edited bases from start to end into dst at dstOffset, taking the original from original
+	public void getBytes(int start, int end, byte[] dst, int dstOffset, PackedSequence original, byte filler) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Can't get bases " + start + " to " + end + " of " + length);
+		}
+		applySplices();
+		if (piecePosition == null) {
+			piecePosition = new int[pieces];
+			for (int i = 1; i < pieces; i++) { piecePosition[i] = piecePosition[i - 1] + pieceLength[i - 1]; }
+		}
+		// The last piece starting at or before start
+		int piece = Arrays.binarySearch(piecePosition, 0, pieces, start);
+		if (piece < 0) { piece = -piece - 2; }
+		while (start < end) {
+			int pieceOffset = start - piecePosition[piece];
+			int n = Math.min(pieceLength[piece] - pieceOffset, end - start);
+			if (pieceStart[piece] == FILLER) {
+				Arrays.fill(dst, dstOffset, dstOffset + n, filler);
+			} else {
+				original.getBytes(pieceStart[piece] + pieceOffset, pieceStart[piece] + pieceOffset + n, dst, dstOffset);
+			}
+			start += n;
+			dstOffset += n;
+			piece++;
+		}
+	}
+
+	// Apply the pending splices, from the start of the sequence, in one pass over the pieces
+	private void applySplices() {
+		if (splices == 0) { return; }
+		int[] newStart = new int[pieces + 2 * splices];
+		int[] newLength = new int[newStart.length];
+		int newPieces = 0;
+		int piece = 0, pieceOffset = 0; // The next base to copy, as a piece and an offset in it
+		int position = 0; // Its position in the sequence before the splices
+		for (int s = splices - 1; s >= 0; s--) {
+			// Copy up to the splice
+			while (position < spliceOffset[s]) {
+				int n = Math.min(pieceLength[piece] - pieceOffset, spliceOffset[s] - position);
+				newPieces = addPiece(newStart, newLength, newPieces, offset(piece, pieceOffset), n);
+				position += n;
+				pieceOffset += n;
+				if (pieceOffset == pieceLength[piece]) { piece++; pieceOffset = 0; }
+			}
+			newPieces = addPiece(newStart, newLength, newPieces, FILLER, spliceInsert[s]);
+			// Skip what it deletes
+			for (int n = spliceDelete[s]; n > 0; ) {
+				int skip = Math.min(pieceLength[piece] - pieceOffset, n);
+				n -= skip;
+				position += skip;
+				pieceOffset += skip;
+				if (pieceOffset == pieceLength[piece]) { piece++; pieceOffset = 0; }
+			}
+		}
+		for (; piece < pieces; piece++, pieceOffset = 0) {
+			newPieces = addPiece(newStart, newLength, newPieces, offset(piece, pieceOffset), pieceLength[piece] - pieceOffset);
+		}
+		pieceStart = newStart;
+		pieceLength = newLength;
+		pieces = newPieces;
+		piecePosition = null;
+		splices = 0;
+	}
+	private int offset(int piece, int pieceOffset) {
+		return (pieceStart[piece] == FILLER) ? FILLER : pieceStart[piece] + pieceOffset;
+	}
+	// Add a piece, joining it to the last one where they run on
+	private static int addPiece(int[] starts, int[] lengths, int count, int start, int length) {
+		if (length == 0) { return count; }
+		if (count > 0) {
+			int last = count - 1;
+			if ((start == FILLER && starts[last] == FILLER) || (start != FILLER && starts[last] != FILLER && starts[last] + lengths[last] == start)) {
+				lengths[last] += length;
+				return count;
+			}
+		}
+		starts[count] = start;
+		lengths[count] = length;
+		return count + 1;
+	}
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
@@ -0,0 +1,146 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a BAI index for a coordinate-sorted BAM file as its records are written, from the
+ * records in their binary form (as RawBAMRecord reads them) and where each starts and ends in
+ * the BGZF stream. Each record goes in the chunk list of the bin its span falls in, with
+ * adjoining chunks merged, and in the linear index for every 16 KB window it covers.
+ */
+public class BAMIndexBuilder {
+	private static final byte[] BAI_MAGIC = { 'B', 'A', 'I', 1 };
+	private static final int LINEAR_INDEX_SHIFT = 14;
+
+	private ReferenceIndex[] references;
+	private long unplaced = 0; // Records with no reference or position
+
+	public BAMIndexBuilder(int references) {
+		this.references = new ReferenceIndex[references];
+	}
+
+	/**
+	 * Index a record written from begin to end, as given by the stream's getPosition. Records
+	 * have to be added in coordinate order.
+	 */
+	public void addRecord(byte[] record, long begin, long end) {
+		int referenceIndex = RawBAMRecord.getReferenceIndex(record);
+		int start = RawBAMRecord.getPosition(record);
+		if (referenceIndex < 0 || referenceIndex >= references.length || start < 0) {
+			unplaced++;
+			return;
+		}
+		// Unmapped reads placed with their mates cover just the one base
+		int length = ((RawBAMRecord.getFlags(record) & RawBAMRecord.FLAG_UNMAPPED) != 0) ? 0 : RawBAMRecord.getReferenceLength(record);
+		int stop = start + Math.max(1, length);
+		if (references[referenceIndex] == null) {
+			references[referenceIndex] = new ReferenceIndex();
+		}
+		references[referenceIndex].add(RawBAMRecord.reg2bin(start, stop), start, stop, begin, end);
+	}
+
+	// Write the index, with the positions from addRecord turned into out's virtual file offsets
+	public void write(File file, ParallelBGZFOutputStream out) throws IOException {
+		OutputStream index = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			index.write(BAI_MAGIC);
+			writeInt(index, references.length);
+			for (ReferenceIndex reference : references) {
+				if (reference == null) {
+					writeInt(index, 0); // No bins
+					writeInt(index, 0); // No linear index
+				} else {
+					reference.write(index, out);
+				}
+			}
+			writeLong(index, unplaced);
+		} finally {
+			index.close();
+		}
+	}
+
+	private static void writeInt(OutputStream index, int value) throws IOException {
+		byte[] b = new byte[4];
+		BGZF.writeInt(b, 0, value);
+		index.write(b);
+	}
+	private static void writeLong(OutputStream index, long value) throws IOException {
+		writeInt(index, (int)value);
+		writeInt(index, (int)(value >>> 32));
+	}
+
+	// The bins and linear index for one reference sequence
+	private static class ReferenceIndex {
+		// Each bin's chunks, as begin, end pairs
+		private Map<Integer, Chunks> bins = new TreeMap<Integer, Chunks>();
+		// The first record position for each 16 KB window, 0 for none
+		private long[] linear = new long[16];
+		private int windows = 0;
+
+		private void add(int bin, int start, int stop, long begin, long end) {
+			Chunks chunks = bins.get(bin);
+			if (chunks == null) {
+				chunks = new Chunks();
+				bins.put(bin, chunks);
+			}
+			chunks.add(begin, end);
+
+			int last = (stop - 1) >> LINEAR_INDEX_SHIFT;
+			if (last >= linear.length) {
+				long[] grown = new long[Math.max(linear.length * 2, last + 1)];
+				System.arraycopy(linear, 0, grown, 0, windows);
+				linear = grown;
+			}
+			for (int window = start >> LINEAR_INDEX_SHIFT; window <= last; window++) {
+				if (linear[window] == 0) { linear[window] = begin; }
+			}
+			windows = Math.max(windows, last + 1);
+		}
+
+		private void write(OutputStream index, ParallelBGZFOutputStream out) throws IOException {
+			writeInt(index, bins.size());
+			for (Map.Entry<Integer, Chunks> bin : bins.entrySet()) {
+				Chunks chunks = bin.getValue();
+				writeInt(index, bin.getKey());
+				writeInt(index, chunks.size / 2);
+				for (int i = 0; i < chunks.size; i++) {
+					writeLong(index, out.getVirtualOffset(chunks.positions[i]));
+				}
+			}
+			// Windows with no records starting in them point at the one before
+			writeInt(index, windows);
+			long previous = 0;
+			for (int window = 0; window < windows; window++) {
+				if (linear[window] != 0) { previous = out.getVirtualOffset(linear[window]); }
+				writeLong(index, previous);
+			}
+		}
+	}
+
+	// Chunk begin, end pairs in one array
+	private static class Chunks {
+		private long[] positions = new long[4];
+		private int size = 0;
+
+		// Extends the last chunk instead if this one follows on from it in the same BGZF block
+		private void add(long begin, long end) {
+			if (size > 0 && (positions[size - 1] == begin || positions[size - 1] >>> 16 == begin >>> 16)) {
+				positions[size - 1] = end;
+				return;
+			}
+			if (size == positions.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(positions, 0, grown, 0, size);
+				positions = grown;
+			}
+			positions[size++] = begin;
+			positions[size++] = end;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads where each reference sequence's records are in a coordinate-sorted BAM file from its
+ * BAI index: the span from the first chunk of any of its bins to the end of the last, as BGZF
+ * virtual file offsets. The linear index isn't needed for that, so it's skipped, as is the
+ * pseudo-bin samtools and Picard add to each reference for its read counts.
+ */
+public class BAMIndexReader {
+	private static final byte[] BAI_MAGIC = { 'B', 'A', 'I', 1 };
+	// Its two "chunks" are the reference's span and its mapped and unmapped read counts
+	private static final int METADATA_BIN = 37450;
+
+	private long[] starts;
+	private long[] ends;
+
+	public BAMIndexReader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[BAI_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, BAI_MAGIC)) {
+				throw new IOException("Not a BAI index: " + file);
+			}
+			int references = readInt(in);
+			starts = new long[references];
+			ends = new long[references];
+			for (int reference = 0; reference < references; reference++) {
+				starts[reference] = -1;
+				ends[reference] = -1;
+				for (int bins = readInt(in); bins > 0; bins--) {
+					int bin = readInt(in);
+					int chunks = readInt(in);
+					if (bin == METADATA_BIN) {
+						in.skipBytes(16 * chunks);
+						continue;
+					}
+					for (; chunks > 0; chunks--) {
+						long begin = readLong(in), end = readLong(in);
+						if (starts[reference] < 0 || begin < starts[reference]) { starts[reference] = begin; }
+						ends[reference] = Math.max(ends[reference], end);
+					}
+				}
+				in.skipBytes(8 * readInt(in)); // The linear index
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getReferenceCount() {
+		return starts.length;
+	}
+	// Virtual file offset of the first record on reference, or -1 if it has none
+	public long getStart(int reference) {
+		return starts[reference];
+	}
+	// Virtual file offset just past the last record on reference, or -1 if it has none
+	public long getEnd(int reference) {
+		return ends[reference];
+	}
+	// Virtual file offset past every placed record, where the unplaced ones start; -1 if there are no placed records
+	public long getUnplacedStart() {
+		long start = -1;
+		for (long end : ends) {
+			start = Math.max(start, end);
+		}
+		return start;
+	}
+
+	private static int readInt(DataInputStream in) throws IOException {
+		byte[] b = new byte[4];
+		in.readFully(b);
+		return BGZF.readInt(b, 0);
+	}
+	private static long readLong(DataInputStream in) throws IOException {
+		long low = readInt(in) & 0xffffffffL;
+		return low | ((long)readInt(in) << 32);
+	}
+}
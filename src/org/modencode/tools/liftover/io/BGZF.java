@@ -0,0 +1,41 @@
+package org.modencode.tools.liftover.io;
+
+/**
+ * Layout of the blocks of a BGZF (blocked gzip) file, as used by BAM: each block is a gzip
+ * member of its own, at most 64 KB long, with a "BC" extra field giving its size. A file
+ * ends with an empty block.
+ */
+class BGZF {
+	static final int HEADER_LENGTH = 18;
+	static final int FOOTER_LENGTH = 8; // CRC32 and ISIZE
+	static final int MAX_BLOCK_LENGTH = 1 << 16;
+	// Uncompressed bytes per block written; small enough that even stored (uncompressed)
+	// deflate data fits in a block
+	static final int MAX_DATA_LENGTH = 0xff00;
+
+	// The fixed part of a block header, up to the block size
+	static final byte[] HEADER = {
+		31, (byte)139, 8, 4, // gzip magic, deflate, FEXTRA
+		0, 0, 0, 0, 0, (byte)255, // MTIME, XFL, OS
+		6, 0, // XLEN
+		'B', 'C', 2, 0 // The BC subfield, followed by the block size less one
+	};
+	static final byte[] EOF_BLOCK = {
+		31, (byte)139, 8, 4, 0, 0, 0, 0, 0, (byte)255, 6, 0, 'B', 'C', 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	static int readShort(byte[] b, int offset) {
+		return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+	}
+	static int readInt(byte[] b, int offset) {
+		return readShort(b, offset) | (readShort(b, offset + 2) << 16);
+	}
+	static void writeShort(byte[] b, int offset, int value) {
+		b[offset] = (byte)value;
+		b[offset + 1] = (byte)(value >>> 8);
+	}
+	static void writeInt(byte[] b, int offset, int value) {
+		writeShort(b, offset, value);
+		writeShort(b, offset + 2, value >>> 16);
+	}
+}
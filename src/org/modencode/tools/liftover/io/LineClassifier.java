@@ -0,0 +1,76 @@
+package org.modencode.tools.liftover.io;
+
+/**
+ * Sorts lines of GFF, WIG and BED input into the kinds the updaters treat differently,
+ * looking only at the leading whitespace and the first few characters. Each type gives
+ * exactly the answer of the regular expression the updaters used to match it with
+ * String.matches, including that "." doesn't match a line terminator; except FASTA headers,
+ * which are any line starting with '>'.
+ */
+public class LineClassifier {
+	public enum LineType {
+		BLANK,        // ^\s*$
+		DIRECTIVE,    // ^\s*##.*
+		COMMENT,      // ^\s*#.* that isn't a directive
+		FASTA_HEADER, // Starts with >
+		TRACK,        // ^\s*track .*
+		DATA;         // Anything else
+
+		// True for everything ^\s*$ or ^\s*#.* match, directives included
+		public boolean isBlankOrComment() {
+			return this == BLANK || this == COMMENT || this == DIRECTIVE;
+		}
+	}
+
+	public static LineType classify(CharSequence line) {
+		int n = line.length();
+		int first = 0;
+		while (first < n && isWhitespace(line.charAt(first))) { first++; }
+		if (first == n) { return LineType.BLANK; }
+		char c = line.charAt(first);
+		if (c == '#') {
+			if (hasLineTerminator(line, first)) { return LineType.DATA; }
+			return (first + 1 < n && line.charAt(first + 1) == '#') ? LineType.DIRECTIVE : LineType.COMMENT;
+		}
+		if (c == '>' && first == 0) { return LineType.FASTA_HEADER; }
+		if (c == 't' && regionMatches(line, first, "track ") && !hasLineTerminator(line, first)) {
+			return LineType.TRACK;
+		}
+		return LineType.DATA;
+	}
+	public static LineType classify(LineScanner line) {
+		if (!line.isAscii()) {
+			return classify(line.getLine());
+		}
+		// There are no line terminators in an ASCII line
+		int first = line.skipWhitespace(0);
+		if (first == line.length()) { return LineType.BLANK; }
+		byte c = line.byteAt(first);
+		if (c == '#') {
+			return line.startsWith("##", first) ? LineType.DIRECTIVE : LineType.COMMENT;
+		}
+		if (c == '>' && first == 0) { return LineType.FASTA_HEADER; }
+		if (c == 't' && line.startsWith("track ", first)) { return LineType.TRACK; }
+		return LineType.DATA;
+	}
+
+	// \s without Pattern.UNICODE_CHARACTER_CLASS
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+	// True if "." wouldn't match everything from offset to the end of the line
+	private static boolean hasLineTerminator(CharSequence line, int offset) {
+		for (int i = offset; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') { return true; }
+		}
+		return false;
+	}
+	private static boolean regionMatches(CharSequence line, int offset, String s) {
+		if (offset + s.length() > line.length()) { return false; }
+		for (int i = 0; i < s.length(); i++) {
+			if (line.charAt(offset + i) != s.charAt(i)) { return false; }
+		}
+		return true;
+	}
+}
@@ -0,0 +1,360 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a text file a line at a time without turning it into Strings. Plain files are
+ * memory-mapped a window at a time; other input (e.g. a GZIPInputStream) is read into a
+ * reusable buffer. Lines end at \n, \r or \r\n, as with BufferedReader.readLine, and the
+ * terminator isn't part of the line. Fields of the current line are byte ranges that can
+ * be compared, parsed as integers or copied to an OutputStream; getLine and getField
+ * decode with the platform charset, as FileReader does.
+ */
+public class LineScanner {
+	private static final int WINDOW_SIZE = 64 << 20;
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+	private static final int MAX_FIELDS = 64;
+
+	private final Charset charset = Charset.defaultCharset();
+
+	// Exactly one of channel and stream is set for file input; neither for a fixed buffer
+	private FileChannel channel;
+	private InputStream stream;
+	private long fileSize;
+
+	private ByteBuffer buffer;
+	private long bufferOffset; // Offset in the input of buffer position 0
+	private int limit;         // Bytes of valid data in buffer
+	private boolean eof;       // Nothing more to read past limit
+
+	private int next;          // Buffer position where the next line starts
+	private int lineStart, lineEnd;
+
+	private int fieldCount;
+	private int[] fieldStarts = new int[MAX_FIELDS];
+	private int[] fieldEnds = new int[MAX_FIELDS];
+	private byte[] scratch = new byte[4096];
+
+	public LineScanner(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		channel = in.getChannel();
+		fileSize = channel.size();
+		map(0, WINDOW_SIZE);
+	}
+	public LineScanner(InputStream stream) {
+		this.stream = stream;
+		buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		limit = 0;
+	}
+	// Scan the remaining bytes of buffer
+	public LineScanner(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+		limit = this.buffer.limit();
+		eof = true;
+	}
+
+	/**
+	 * Advance to the next line, returning false at the end of the input.
+	 */
+	public boolean nextLine() throws IOException {
+		fieldCount = -1;
+		int i = next;
+		while (true) {
+			while (i < limit) {
+				byte b = buffer.get(i);
+				if (b == '\n' || b == '\r') { break; }
+				i++;
+			}
+			if (i < limit) {
+				// Found a terminator; a \r needs to see the following byte to swallow a \n
+				if (buffer.get(i) == '\r' && i + 1 >= limit && !eof) {
+					i = refill(i);
+					continue;
+				}
+				lineStart = next;
+				lineEnd = i;
+				next = i + 1;
+				if (buffer.get(i) == '\r' && next < limit && buffer.get(next) == '\n') { next++; }
+				return true;
+			}
+			if (eof) {
+				if (next >= limit) { return false; }
+				// Last line has no terminator
+				lineStart = next;
+				lineEnd = limit;
+				next = limit;
+				return true;
+			}
+			i = refill(i);
+		}
+	}
+	// Load more input, keeping everything from the start of the current line. Returns the
+	// buffer position that was at position scanned.
+	private int refill(int scanned) throws IOException {
+		int keep = next;
+		int scannedFromKeep = scanned - keep;
+		if (channel != null) {
+			// If the line already fills the window, map a bigger one
+			int size = (keep == 0) ? (int)Math.min(Integer.MAX_VALUE, 2L * limit) : WINDOW_SIZE;
+			if (keep == 0 && size == limit) {
+				throw new IOException("Line too long at offset " + bufferOffset);
+			}
+			map(bufferOffset + keep, size);
+		} else {
+			int remaining = limit - keep;
+			if (keep > 0) {
+				// Move the partial line to the front
+				for (int j = 0; j < remaining; j++) { buffer.put(j, buffer.get(keep + j)); }
+			} else if (remaining == buffer.capacity()) {
+				// The line doesn't fit; grow the buffer
+				ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+				for (int j = 0; j < remaining; j++) { bigger.put(j, buffer.get(j)); }
+				buffer = bigger;
+			}
+			bufferOffset += keep;
+			limit = remaining;
+			next = 0;
+			int n = stream.read(buffer.array(), limit, buffer.capacity() - limit);
+			if (n < 0) { eof = true; } else { limit += n; }
+		}
+		return scannedFromKeep;
+	}
+	private void map(long offset, int windowSize) throws IOException {
+		long size = Math.min(windowSize, fileSize - offset);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		bufferOffset = offset;
+		limit = (int)size;
+		eof = (offset + size >= fileSize);
+		next = 0;
+	}
+
+	// Offset in the input of the start of the current line
+	public long getLineOffset() {
+		return bufferOffset + lineStart;
+	}
+	public int length() {
+		return lineEnd - lineStart;
+	}
+	public byte byteAt(int i) {
+		return buffer.get(lineStart + i);
+	}
+	public boolean startsWith(String prefix) {
+		return startsWith(prefix, 0);
+	}
+	// True if the line has the (ASCII) text prefix at offset
+	public boolean startsWith(String prefix, int offset) {
+		int n = prefix.length();
+		if (offset + n > length()) { return false; }
+		for (int i = 0; i < n; i++) {
+			if (buffer.get(lineStart + offset + i) != (byte)prefix.charAt(i)) { return false; }
+		}
+		return true;
+	}
+	// True if every byte of the line is 7-bit ASCII
+	public boolean isAscii() {
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (buffer.get(i) < 0) { return false; }
+		}
+		return true;
+	}
+	// Index of the first byte that isn't whitespace as \s matches it, or length() if there isn't one
+	public int skipWhitespace(int from) {
+		int i = from;
+		while (i < length() && isWhitespace(buffer.get(lineStart + i))) { i++; }
+		return i;
+	}
+	public static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	/**
+	 * Split the current line on separator, as String.split with a single-character
+	 * pattern does: trailing empty fields are removed. Returns the number of fields, or
+	 * -1 if there are more than this scanner keeps track of.
+	 */
+	public int split(byte separator) {
+		fieldCount = 0;
+		int start = lineStart;
+		for (int i = lineStart; i <= lineEnd; i++) {
+			if (i == lineEnd || buffer.get(i) == separator) {
+				if (!addField(start, i)) { return fieldCount = -1; }
+				start = i + 1;
+			}
+		}
+		trimEmptyFields();
+		return fieldCount;
+	}
+	/**
+	 * Split the current line on separator into at most limit fields, the last holding the rest
+	 * of the line, as String.split with a single-character pattern and a positive limit does:
+	 * trailing empty fields are kept.
+	 */
+	public int split(byte separator, int limit) {
+		fieldCount = 0;
+		int start = lineStart;
+		for (int i = lineStart; i < lineEnd && fieldCount < Math.min(limit, MAX_FIELDS) - 1; i++) {
+			if (buffer.get(i) == separator) {
+				addField(start, i);
+				start = i + 1;
+			}
+		}
+		addField(start, lineEnd);
+		return fieldCount;
+	}
+	/**
+	 * Split the current line on runs of whitespace, as String.split("\\s+") does: a line
+	 * starting with whitespace has an empty first field, and trailing empty fields are removed.
+	 */
+	public int splitWhitespace() {
+		fieldCount = 0;
+		int i = lineStart;
+		int start = i;
+		while (i < lineEnd) {
+			if (isWhitespace(buffer.get(i))) {
+				if (!addField(start, i)) { return fieldCount = -1; }
+				while (i < lineEnd && isWhitespace(buffer.get(i))) { i++; }
+				start = i;
+			} else {
+				i++;
+			}
+		}
+		if (!addField(start, lineEnd)) { return fieldCount = -1; }
+		trimEmptyFields();
+		return fieldCount;
+	}
+	private boolean addField(int start, int end) {
+		if (fieldCount == MAX_FIELDS) { return false; }
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldCount++;
+		return true;
+	}
+	private void trimEmptyFields() {
+		while (fieldCount > 0 && fieldStarts[fieldCount-1] == fieldEnds[fieldCount-1]) { fieldCount--; }
+		if (fieldCount == 0 && lineStart == lineEnd) {
+			// String.split returns the (empty) string itself when there was nothing to split
+			fieldStarts[0] = fieldEnds[0] = lineStart;
+			fieldCount = 1;
+		}
+	}
+	public int getFieldCount() {
+		return fieldCount;
+	}
+	public int getFieldLength(int f) {
+		return fieldEnds[f] - fieldStarts[f];
+	}
+
+	/**
+	 * Parse field f as Integer.parseInt would, throwing NumberFormatException if it isn't an int.
+	 */
+	public int parseInt(int f) {
+		int i = fieldStarts[f], end = fieldEnds[f];
+		if (i == end) { throw new NumberFormatException("Empty field " + f); }
+		boolean negative = false;
+		byte first = buffer.get(i);
+		if (first == '-' || first == '+') {
+			negative = (first == '-');
+			i++;
+			if (i == end) { throw new NumberFormatException("No digits in field " + f); }
+		}
+		// Accumulate negatively so Integer.MIN_VALUE fits
+		long res = 0;
+		for (; i < end; i++) {
+			int d = buffer.get(i) - '0';
+			if (d < 0 || d > 9) { throw new NumberFormatException("Not a number in field " + f); }
+			res = res * 10 - d;
+			if (res < Integer.MIN_VALUE) { throw new NumberFormatException("Out of range in field " + f); }
+		}
+		if (!negative) {
+			if (res == Integer.MIN_VALUE) { throw new NumberFormatException("Out of range in field " + f); }
+			res = -res;
+		}
+		return (int)res;
+	}
+	// True if field f is a positive int written the way Integer.toString writes it
+	public boolean isCanonicalPositiveInt(int f) {
+		int i = fieldStarts[f], end = fieldEnds[f];
+		if (i == end || end - i > 10 || buffer.get(i) < '1' || buffer.get(i) > '9') { return false; }
+		for (int j = i + 1; j < end; j++) {
+			byte b = buffer.get(j);
+			if (b < '0' || b > '9') { return false; }
+		}
+		if (end - i == 10) {
+			try { parseInt(f); } catch (NumberFormatException e) { return false; }
+		}
+		return true;
+	}
+
+	public boolean fieldEquals(int f, String s) {
+		int start = fieldStarts[f], n = fieldEnds[f] - start;
+		if (s.length() != n) { return false; }
+		for (int i = 0; i < n; i++) {
+			if (buffer.get(start + i) != (byte)s.charAt(i)) { return false; }
+		}
+		return true;
+	}
+	public String getField(int f) {
+		return decode(fieldStarts[f], fieldEnds[f]);
+	}
+	// Field f from byte offset from (within the field) to its end, reusing previous if it has the same (ASCII) text
+	public String getField(int f, int from, String previous) {
+		int start = fieldStarts[f] + from, n = fieldEnds[f] - start;
+		if (previous != null && previous.length() == n) {
+			boolean same = true;
+			for (int i = 0; i < n && same; i++) {
+				same = (buffer.get(start + i) == (byte)previous.charAt(i));
+			}
+			if (same) { return previous; }
+		}
+		return decode(start, fieldEnds[f]);
+	}
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+	private String decode(int start, int end) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, end - start, charset);
+		}
+		return new String(copy(start, end), 0, end - start, charset);
+	}
+	// Copy a range of a mapped buffer into the scratch array
+	private byte[] copy(int start, int end) {
+		if (scratch.length < end - start) {
+			scratch = new byte[Math.max(end - start, scratch.length * 2)];
+		}
+		ByteBuffer view = buffer.duplicate();
+		view.position(start);
+		view.get(scratch, 0, end - start);
+		return scratch;
+	}
+
+	public void writeLine(OutputStream out) throws IOException {
+		writeRange(lineStart, lineEnd, out);
+	}
+	public void writeField(int f, OutputStream out) throws IOException {
+		writeRange(fieldStarts[f], fieldEnds[f], out);
+	}
+	// Write the line from the start of field first to the end of field last, separators included
+	public void writeFields(int first, int last, OutputStream out) throws IOException {
+		writeRange(fieldStarts[first], fieldEnds[last], out);
+	}
+	private void writeRange(int start, int end, OutputStream out) throws IOException {
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + start, end - start);
+		} else {
+			out.write(copy(start, end), 0, end - start);
+		}
+	}
+
+	public void close() throws IOException {
+		if (channel != null) { channel.close(); }
+		if (stream != null) { stream.close(); }
+	}
+}
@@ -0,0 +1,217 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.SAMValidationError;
+import net.sf.samtools.util.StringLineReader;
+
+/**
+ * Reads a BAM file from start to end as SAMFileReader does, with the records decoded by
+ * BAMRecordCodec and checked to the same validation stringency, but through a
+ * ParallelBGZFInputStream so the blocks are decompressed on several threads.
+ */
+public class ParallelBAMFileReader implements Iterable<SAMRecord> {
+	private static final byte[] BAM_MAGIC = { 'B', 'A', 'M', 1 };
+
+	private ParallelBGZFInputStream in;
+	private SAMFileReader.ValidationStringency stringency;
+	private SAMFileHeader header;
+	private BAMRecordCodec codec;
+	private long recordNumber = 0;
+
+	public ParallelBAMFileReader(File file, int threads, SAMFileReader.ValidationStringency stringency) throws IOException {
+		this.in = new ParallelBGZFInputStream(new BufferedInputStream(new FileInputStream(file)), threads);
+		this.stringency = stringency;
+		try {
+			this.header = readHeader(new DataInputStream(in), file.toString());
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setInputStream(in);
+	}
+
+	/**
+	 * A reader that starts at the record at virtualOffset (a BGZF virtual file offset, as in a
+	 * BAI index) instead of the first.
+	 */
+	public ParallelBAMFileReader(File file, int threads, SAMFileReader.ValidationStringency stringency, long virtualOffset) throws IOException {
+		this(file, threads, stringency);
+		in.close();
+		FileInputStream data = new FileInputStream(file);
+		try {
+			data.getChannel().position(virtualOffset >>> 16);
+			this.in = new ParallelBGZFInputStream(new BufferedInputStream(data), threads);
+			int offset = (int)(virtualOffset & 0xffff);
+			if (readFully(new byte[offset], 0, offset) < offset) {
+				throw new IOException("No BAM record at " + virtualOffset + " in " + file);
+			}
+		} catch (IOException e) {
+			data.close();
+			throw e;
+		}
+		this.codec = new BAMRecordCodec(header);
+		this.codec.setInputStream(in);
+	}
+
+	// True if file is BGZF starting with the BAM magic number
+	public static boolean isBAMFile(File file) {
+		try {
+			ParallelBGZFInputStream in = new ParallelBGZFInputStream(new BufferedInputStream(new FileInputStream(file)), 1);
+			try {
+				byte[] magic = new byte[BAM_MAGIC.length];
+				new DataInputStream(in).readFully(magic);
+				return Arrays.equals(magic, BAM_MAGIC);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	// The records, in file order; like SAMFileReader's, only one pass can be made
+	public Iterator<SAMRecord> iterator() {
+		return new Iterator<SAMRecord>() {
+			private SAMRecord next = null;
+
+			public boolean hasNext() {
+				if (next == null) {
+					next = codec.decode();
+				}
+				return next != null;
+			}
+			public SAMRecord next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				SAMRecord r = next;
+				next = null;
+				recordNumber++;
+				validate(r);
+				return r;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException("Can't remove records from a BAM file");
+			}
+		};
+	}
+
+	/**
+	 * The next record as it is in the file, starting with its block_size field, or null at the
+	 * end of the file. Records can be read this way or through iterator, but not both.
+	 */
+	public byte[] readRawRecord() throws IOException {
+		byte[] size = new byte[4];
+		int n = readFully(size, 0, size.length);
+		if (n == 0) { return null; }
+		int length = (n == size.length) ? BGZF.readInt(size, 0) : -1;
+		if (length < RawBAMRecord.MIN_LENGTH - size.length) {
+			throw new IOException("Truncated BAM record");
+		}
+		byte[] record = new byte[size.length + length];
+		System.arraycopy(size, 0, record, 0, size.length);
+		if (readFully(record, size.length, length) < length) {
+			throw new IOException("Truncated BAM record");
+		}
+		recordNumber++;
+		return record;
+	}
+	// Decode a record from readRawRecord, as iterator would have
+	public SAMRecord decode(byte[] record) {
+		BAMRecordCodec recordCodec = new BAMRecordCodec(header);
+		recordCodec.setInputStream(new ByteArrayInputStream(record));
+		SAMRecord r = recordCodec.decode();
+		validate(r);
+		return r;
+	}
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(b, off + total, len - total);
+			if (n < 0) { break; }
+			total += n;
+		}
+		return total;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private SAMFileHeader readHeader(DataInputStream data, String source) throws IOException {
+		byte[] magic = new byte[BAM_MAGIC.length];
+		data.readFully(magic);
+		if (!Arrays.equals(magic, BAM_MAGIC)) {
+			throw new IOException("Not a BAM file: " + source);
+		}
+		String text = readString(data, readInt(data));
+		SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+		headerCodec.setValidationStringency(stringency);
+		SAMFileHeader header = headerCodec.decode(new StringLineReader(text), source);
+
+		// Use the binary sequence dictionary if the text doesn't have one
+		int sequences = readInt(data);
+		List<SAMSequenceRecord> dictionary = new ArrayList<SAMSequenceRecord>(sequences);
+		for (int i = 0; i < sequences; i++) {
+			String name = readString(data, readInt(data));
+			dictionary.add(new SAMSequenceRecord(name, readInt(data)));
+		}
+		if (header.getSequenceDictionary().size() == 0) {
+			header.setSequenceDictionary(new SAMSequenceDictionary(dictionary));
+		}
+		return header;
+	}
+	// length bytes as characters, less any trailing NULs
+	private static String readString(DataInputStream data, int length) throws IOException {
+		byte[] b = new byte[length];
+		data.readFully(b);
+		while (length > 0 && b[length - 1] == 0) { length--; }
+		char[] c = new char[length];
+		for (int i = 0; i < length; i++) {
+			c[i] = (char)(b[i] & 0xff);
+		}
+		return new String(c);
+	}
+	private static int readInt(DataInputStream data) throws IOException {
+		byte[] b = new byte[4];
+		data.readFully(b);
+		return BGZF.readInt(b, 0);
+	}
+
+	// As SAMFileReader does: STRICT fails on the first error, LENIENT reports them all
+	private void validate(SAMRecord r) {
+		if (stringency == SAMFileReader.ValidationStringency.SILENT) { return; }
+		List<SAMValidationError> errors = r.isValid();
+		if (errors == null) { return; }
+		for (SAMValidationError error : errors) {
+			if (stringency == SAMFileReader.ValidationStringency.STRICT) {
+				throw new SAMFormatException("SAM validation error: " + error);
+			}
+			System.err.println("Ignoring SAM validation error: " + error + " (record " + recordNumber + ")");
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+import net.sf.samtools.util.SortingCollection;
+
+/**
+ * Writes BAM as BAMFileWriter does, with the same header and records (encoded by
+ * BAMRecordCodec), but through a ParallelBGZFOutputStream so the blocks are compressed
+ * on several threads.
+ * <p>
+ * With a sort window, records that are only a little out of coordinate order (as lifting
+ * leaves them) are put back in order as they're written: the last sortWindow records are
+ * held back, and the first in order written out as each new one comes in. Any record that
+ * still comes too late for its place is set aside on disk and merged in with a second pass
+ * over the file when it's closed. Unplaced records go at the end, in the order they came.
+ * With an index file, a BAI index is built as the records are written.
+ * <p>
+ * Without a sort window, records written to a coordinate-sorted or indexed file are checked
+ * to be in coordinate order as they're written, raw records included, as addAlignment checks
+ * presorted records.
+ */
+public class ParallelBAMFileWriter extends SAMFileWriterImpl {
+	private static final byte[] BAM_MAGIC = { 'B', 'A', 'M', 1 };
+	// Records that come too late for the sort window kept in memory before going to disk
+	private static final int LATE_RECORDS_IN_RAM = 100000;
+
+	private File file;
+	private int threads;
+	private ParallelBGZFOutputStream out;
+	private BAMRecordCodec codec;
+	// For records that have to be held as bytes
+	private ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	private BAMRecordCodec encodedCodec;
+
+	private int sortWindow = 0;
+	private PriorityQueue<WindowRecord> window = null;
+	private long added = 0;
+	private byte[] lastWritten = null;
+	private SortingCollection<byte[]> late = null;
+	private long lateRecords = 0;
+	private File unplacedFile = null;
+	private OutputStream unplaced = null;
+
+	private File indexFile = null;
+	private BAMIndexBuilder index = null;
+	// Where the last record written was, if records are checked for order as they're written
+	private boolean checkOrder = false;
+	private long lastReference = 0; // Unsigned, so unplaced records come last
+	private int lastPosition = Integer.MIN_VALUE;
+
+	public ParallelBAMFileWriter(File file, int threads) throws IOException {
+		this.file = file;
+		this.threads = threads;
+		this.out = new ParallelBGZFOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)), threads);
+	}
+
+	/**
+	 * Hold back this many records to put them in coordinate order (0, the default, to write
+	 * them as they come). Set it before the header.
+	 */
+	public void setSortWindow(int records) {
+		this.sortWindow = Math.max(0, records);
+		this.window = (sortWindow > 0) ? new PriorityQueue<WindowRecord>() : null;
+	}
+	public int getSortWindow() {
+		return sortWindow;
+	}
+	// Build a BAI index in indexFile as the records are written; set it before the header
+	public void setIndexFile(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	protected void writeHeader(String textHeader) {
+		try {
+			out.write(BAM_MAGIC);
+			writeString(textHeader, false);
+			writeInt(getFileHeader().getSequenceDictionary().size());
+			for (SAMSequenceRecord sequence : getFileHeader().getSequenceDictionary().getSequences()) {
+				writeString(sequence.getSequenceName(), true);
+				writeInt(sequence.getSequenceLength());
+			}
+			// As BAMFileWriter does, end the block so the header has blocks of its own
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+		codec = new BAMRecordCodec(getFileHeader());
+		codec.setOutputStream(out);
+		encodedCodec = new BAMRecordCodec(getFileHeader());
+		encodedCodec.setOutputStream(encoded);
+		if (indexFile != null) {
+			index = new BAMIndexBuilder(getFileHeader().getSequenceDictionary().size());
+		}
+		checkOrder = (sortWindow == 0 && (index != null || getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate));
+	}
+
+	// Sorted with the window if there is one, rather than checked for order
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		if (sortWindow > 0) {
+			addToWindow(encode(alignment));
+		} else {
+			super.addAlignment(alignment);
+		}
+	}
+	protected void writeAlignment(SAMRecord alignment) {
+		if (index == null) {
+			if (checkOrder) { checkOrder(alignment.getReferenceIndex(), alignment.getAlignmentStart() - 1); }
+			codec.encode(alignment);
+		} else {
+			writeRecord(encode(alignment));
+		}
+	}
+	/**
+	 * Write a record in BAM's binary form, block_size field first (as from
+	 * ParallelBAMFileReader.readRawRecord). Without a sort window it goes in after the records
+	 * already added, and has to be in order after them if the file is coordinate-sorted or
+	 * indexed.
+	 */
+	public void writeRawRecord(byte[] record) {
+		if (sortWindow > 0) {
+			addToWindow(record);
+		} else {
+			writeRecord(record);
+		}
+	}
+
+	private byte[] encode(SAMRecord alignment) {
+		encoded.reset();
+		encodedCodec.encode(alignment);
+		return encoded.toByteArray();
+	}
+	private void writeRecord(byte[] record) {
+		if (checkOrder) { checkOrder(RawBAMRecord.getReferenceIndex(record), RawBAMRecord.getPosition(record)); }
+		try {
+			long begin = out.getPosition();
+			out.write(record);
+			if (index != null) {
+				index.addRecord(record, begin, out.getPosition());
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	// As compareCoordinates orders them; out of order is an IllegalArgumentException, as from addAlignment
+	private void checkOrder(int reference, int position) {
+		long unsignedReference = reference & 0xffffffffL;
+		if (unsignedReference < lastReference || (unsignedReference == lastReference && position < lastPosition)) {
+			throw new IllegalArgumentException("Records added out of coordinate order to " + getFilename() + ": reference " + reference + " position " + position
+					+ " came after reference " + (int)lastReference + " position " + lastPosition);
+		}
+		lastReference = unsignedReference;
+		lastPosition = position;
+	}
+	private void addToWindow(byte[] record) {
+		try {
+			if (RawBAMRecord.getReferenceIndex(record) < 0) {
+				// Unplaced records all go at the end
+				if (unplaced == null) {
+					unplacedFile = File.createTempFile("unplaced", ".bam.tmp", file.getAbsoluteFile().getParentFile());
+					unplaced = new BufferedOutputStream(new FileOutputStream(unplacedFile));
+				}
+				unplaced.write(record);
+			} else if (lastWritten != null && compareCoordinates(record, lastWritten) < 0) {
+				// Its place has already been written
+				if (late == null) {
+					late = SortingCollection.newInstance(byte[].class, new RecordCodec(), new CoordinateComparator(), LATE_RECORDS_IN_RAM);
+				}
+				late.add(record);
+				lateRecords++;
+			} else {
+				window.add(new WindowRecord(record, added++));
+				if (window.size() > sortWindow) {
+					writeFromWindow();
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+	private void writeFromWindow() {
+		lastWritten = window.poll().record;
+		writeRecord(lastWritten);
+	}
+
+	protected void finish() {
+		try {
+			if (window != null) {
+				while (!window.isEmpty()) {
+					writeFromWindow();
+				}
+			}
+			if (unplaced != null) {
+				unplaced.close();
+				copyUnplaced();
+			}
+			out.close();
+			if (late != null) {
+				mergeLateRecords();
+			} else if (index != null) {
+				index.write(indexFile, out);
+			}
+		} catch (IOException e) {
+			throw new RuntimeIOException(e);
+		}
+	}
+	private void copyUnplaced() throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(unplacedFile));
+		try {
+			byte[] record;
+			while ((record = readRecord(in)) != null) {
+				writeRecord(record);
+			}
+		} finally {
+			in.close();
+			unplacedFile.delete();
+		}
+	}
+	// Rewrite the file with the late records merged in, and index that instead
+	private void mergeLateRecords() throws IOException {
+		System.err.println("Merging " + lateRecords + " records that came too late for the sort window of " + sortWindow + " into " + file);
+		late.doneAdding();
+		File merged = new File(file.getPath() + ".merging");
+		ParallelBAMFileReader reader = new ParallelBAMFileReader(file, threads, SAMFileReader.ValidationStringency.SILENT);
+		ParallelBAMFileWriter writer = new ParallelBAMFileWriter(merged, threads);
+		writer.setIndexFile(indexFile);
+		writer.setSortOrder(getFileHeader().getSortOrder(), true);
+		writer.setHeader(getFileHeader());
+		CloseableIterator<byte[]> lateIterator = late.iterator();
+		try {
+			byte[] next = lateIterator.hasNext() ? lateIterator.next() : null;
+			byte[] record;
+			while ((record = reader.readRawRecord()) != null) {
+				while (next != null && compareCoordinates(next, record) < 0) {
+					writer.writeRawRecord(next);
+					next = lateIterator.hasNext() ? lateIterator.next() : null;
+				}
+				writer.writeRawRecord(record);
+			}
+			while (next != null) {
+				writer.writeRawRecord(next);
+				next = lateIterator.hasNext() ? lateIterator.next() : null;
+			}
+		} finally {
+			lateIterator.close();
+			reader.close();
+			late.cleanup();
+		}
+		writer.close();
+		if (!file.delete() || !merged.renameTo(file)) {
+			throw new IOException("Couldn't replace " + file + " with " + merged);
+		}
+	}
+
+	protected String getFilename() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Join BAM files written by this class into file, without recompressing them: header is a
+	 * file with just the header (and no records), and each of parts has to start with the same
+	 * header blocks. The output is those blocks, then each part's record blocks in turn, then
+	 * the EOF block.
+	 */
+	public static void concatenate(File header, List<File> parts, File file) throws IOException {
+		byte[] headerBlocks = readBlocks(header, header.length() - BGZF.EOF_BLOCK.length);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file, false));
+		try {
+			out.write(headerBlocks);
+			for (File part : parts) {
+				InputStream in = new BufferedInputStream(new FileInputStream(part));
+				try {
+					byte[] partHeader = new byte[headerBlocks.length];
+					new DataInputStream(in).readFully(partHeader);
+					if (!Arrays.equals(headerBlocks, partHeader)) {
+						throw new IOException(part + " doesn't start with the same header as " + header);
+					}
+					copy(in, out, part.length() - BGZF.EOF_BLOCK.length - headerBlocks.length);
+				} finally {
+					in.close();
+				}
+			}
+			out.write(BGZF.EOF_BLOCK);
+		} finally {
+			out.close();
+		}
+	}
+	// The first length bytes of file
+	private static byte[] readBlocks(File file, long length) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] b = new byte[(int)length];
+			in.readFully(b);
+			return b;
+		} finally {
+			in.close();
+		}
+	}
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[BGZF.MAX_BLOCK_LENGTH];
+		while (length > 0) {
+			int n = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+			if (n < 0) {
+				throw new EOFException("BAM file shorter than expected");
+			}
+			out.write(buffer, 0, n);
+			length -= n;
+		}
+	}
+
+	// The length, then the characters as bytes (and a terminating NUL if asked for, counted in the length)
+	private void writeString(String s, boolean nullTerminated) throws IOException {
+		byte[] b = new byte[s.length() + (nullTerminated ? 1 : 0)];
+		for (int i = 0; i < s.length(); i++) {
+			b[i] = (byte)s.charAt(i);
+		}
+		writeInt(b.length);
+		out.write(b);
+	}
+	private void writeInt(int value) throws IOException {
+		byte[] b = new byte[4];
+		BGZF.writeInt(b, 0, value);
+		out.write(b);
+	}
+
+	// A record in BAM's binary form from in, or null at the end
+	private static byte[] readRecord(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] size = new byte[4];
+		try {
+			data.readFully(size);
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] record = new byte[size.length + BGZF.readInt(size, 0)];
+		System.arraycopy(size, 0, record, 0, size.length);
+		data.readFully(record, size.length, record.length - size.length);
+		return record;
+	}
+
+	// Reference, then position; unplaced records (reference -1) last
+	private static int compareCoordinates(byte[] a, byte[] b) {
+		long referenceA = RawBAMRecord.getReferenceIndex(a) & 0xffffffffL;
+		long referenceB = RawBAMRecord.getReferenceIndex(b) & 0xffffffffL;
+		if (referenceA != referenceB) {
+			return (referenceA < referenceB) ? -1 : 1;
+		}
+		int positionA = RawBAMRecord.getPosition(a), positionB = RawBAMRecord.getPosition(b);
+		return (positionA < positionB) ? -1 : (positionA == positionB ? 0 : 1);
+	}
+	private static class CoordinateComparator implements Comparator<byte[]> {
+		public int compare(byte[] a, byte[] b) {
+			return compareCoordinates(a, b);
+		}
+	}
+
+	// A record in the sort window; records at the same place keep the order they came in
+	private static class WindowRecord implements Comparable<WindowRecord> {
+		private byte[] record;
+		private long order;
+
+		private WindowRecord(byte[] record, long order) {
+			this.record = record;
+			this.order = order;
+		}
+		public int compareTo(WindowRecord other) {
+			int cmp = compareCoordinates(record, other.record);
+			if (cmp != 0) { return cmp; }
+			return (order < other.order) ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+
+	private static class RecordCodec implements SortingCollection.Codec<byte[]> {
+		private OutputStream os;
+		private InputStream is;
+
+		public void setOutputStream(OutputStream os) {
+			this.os = os;
+		}
+		public void setInputStream(InputStream is) {
+			this.is = is;
+		}
+		public void encode(byte[] record) {
+			try {
+				os.write(record);
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			}
+		}
+		public byte[] decode() {
+			try {
+				return readRecord(is);
+			} catch (IOException e) {
+				throw new RuntimeIOException(e);
+			}
+		}
+		public RecordCodec clone() {
+			return new RecordCodec();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads BGZF, as BlockCompressedInputStream does, but inflates the blocks on a pool of
+ * threads: the compressed blocks are read ahead of the one being consumed, and each is
+ * inflated on its own. The bytes come out in file order.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+	private InputStream in;
+	private int threads;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private boolean endOfInput = false;
+	private byte[] data = new byte[0]; // The block being consumed
+	private int position = 0;
+
+	public ParallelBGZFInputStream(InputStream in, int threads) {
+		this.in = in;
+		this.threads = Math.max(1, threads);
+		this.pool = Executors.newFixedThreadPool(this.threads, new ParallelBGZFOutputStream.DaemonThreadFactory("BGZF inflater"));
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == data.length && !nextBlock()) { return -1; }
+		return data[position++] & 0xff;
+	}
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) { return 0; }
+		if (position == data.length && !nextBlock()) { return -1; }
+		int n = Math.min(len, data.length - position);
+		System.arraycopy(data, position, b, off, n);
+		position += n;
+		return n;
+	}
+	@Override
+	public int available() {
+		return data.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.shutdownNow();
+		in.close();
+	}
+
+	// Move on to the next block with anything in it; false at the end of the input
+	private boolean nextBlock() throws IOException {
+		do {
+			readAhead();
+			if (pending.isEmpty()) { return false; }
+			try {
+				data = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while decompressing BGZF block");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) { throw (IOException)e.getCause(); }
+				IOException ioe = new IOException("Couldn't decompress BGZF block");
+				ioe.initCause(e.getCause());
+				throw ioe;
+			}
+			position = 0;
+		} while (data.length == 0);
+		return true;
+	}
+	// Keep a few blocks per thread read and being inflated
+	private void readAhead() throws IOException {
+		while (!endOfInput && pending.size() < threads * 4) {
+			byte[] block = readBlock();
+			if (block == null) {
+				endOfInput = true;
+			} else {
+				pending.add(pool.submit(new BlockInflater(block)));
+			}
+		}
+	}
+	// The next whole compressed block, or null at the end of the input
+	private byte[] readBlock() throws IOException {
+		byte[] header = new byte[12];
+		int n = readFully(header, 0, header.length);
+		if (n == 0) { return null; }
+		if (n < header.length || header[0] != 31 || header[1] != (byte)139 || header[2] != 8 || (header[3] & 4) == 0) {
+			throw new IOException("Not a BGZF block header");
+		}
+		byte[] extra = new byte[BGZF.readShort(header, 10)];
+		if (readFully(extra, 0, extra.length) < extra.length) {
+			throw new EOFException("Truncated BGZF block header");
+		}
+		int blockLength = -1;
+		for (int i = 0; i + 4 <= extra.length; i += 4 + BGZF.readShort(extra, i + 2)) {
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && BGZF.readShort(extra, i + 2) == 2 && i + 6 <= extra.length) {
+				blockLength = BGZF.readShort(extra, i + 4) + 1;
+			}
+		}
+		int headerLength = header.length + extra.length;
+		if (blockLength < headerLength + BGZF.FOOTER_LENGTH) {
+			throw new IOException("No BGZF block size in gzip header");
+		}
+		byte[] block = new byte[blockLength];
+		System.arraycopy(header, 0, block, 0, header.length);
+		System.arraycopy(extra, 0, block, header.length, extra.length);
+		if (readFully(block, headerLength, blockLength - headerLength) < blockLength - headerLength) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return block;
+	}
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(b, off + total, len - total);
+			if (n < 0) { break; }
+			total += n;
+		}
+		return total;
+	}
+
+	// Inflates one whole block, checking its length and CRC
+	private static class BlockInflater implements Callable<byte[]> {
+		private byte[] block;
+
+		private BlockInflater(byte[] block) {
+			this.block = block;
+		}
+		public byte[] call() throws IOException {
+			int dataStart = 12 + BGZF.readShort(block, 10);
+			int footer = block.length - BGZF.FOOTER_LENGTH;
+			byte[] data = new byte[BGZF.readInt(block, footer + 4)];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(block, dataStart, footer - dataStart);
+				int n = 0;
+				while (n < data.length && !inflater.finished()) {
+					int inflated = inflater.inflate(data, n, data.length - n);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) { break; }
+					n += inflated;
+				}
+				if (n != data.length) {
+					throw new IOException("BGZF block inflated to " + n + " bytes instead of " + data.length);
+				}
+			} catch (DataFormatException e) {
+				IOException ioe = new IOException("Corrupt BGZF block");
+				ioe.initCause(e);
+				throw ioe;
+			} finally {
+				inflater.end();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length);
+			if ((int)crc.getValue() != BGZF.readInt(block, footer)) {
+				throw new IOException("CRC mismatch in BGZF block");
+			}
+			return data;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, as BlockCompressedOutputStream does, but deflates the blocks on a pool of
+ * threads. Each block is compressed on its own, so the blocks can be deflated in any order;
+ * they're written in the order they were filled.
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+	public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+
+	private OutputStream out;
+	private int threads;
+	private int compressionLevel;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private byte[] data = new byte[BGZF.MAX_DATA_LENGTH];
+	private int length = 0;
+	private boolean closed = false;
+	// For getPosition and getVirtualOffset: blocks submitted, and where each written one starts
+	private long blocks = 0;
+	private long[] blockAddresses = new long[1024];
+	private long address = 0;
+	private int written = 0;
+
+	public ParallelBGZFOutputStream(OutputStream out, int threads) {
+		this(out, threads, DEFAULT_COMPRESSION_LEVEL);
+	}
+	public ParallelBGZFOutputStream(OutputStream out, int threads, int compressionLevel) {
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		this.compressionLevel = compressionLevel;
+		this.pool = Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory("BGZF deflater"));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == data.length) { submitBlock(); }
+		data[length++] = (byte)b;
+	}
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == data.length) { submitBlock(); }
+			int n = Math.min(len, data.length - length);
+			System.arraycopy(b, off, data, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// Ends the current block (if it has anything in it) and writes every block so far
+	@Override
+	public void flush() throws IOException {
+		if (length > 0) { submitBlock(); }
+		while (!pending.isEmpty()) { writeBlock(); }
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) { return; }
+		closed = true;
+		try {
+			flush();
+			out.write(BGZF.EOF_BLOCK);
+			out.close();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Where the next byte written goes, as a BGZF virtual file offset (the block's address in
+	 * the file shifted left 16 bits, plus the offset in its uncompressed data) but with the
+	 * block's number standing in for its address, which isn't known until it's been
+	 * compressed. getVirtualOffset gives the real one.
+	 */
+	public long getPosition() {
+		return (blocks << 16) | length;
+	}
+	// The virtual file offset for a position from getPosition, once its block has been written
+	public long getVirtualOffset(long position) {
+		int block = (int)(position >>> 16);
+		if (block > written) {
+			throw new IllegalStateException("BGZF block " + block + " hasn't been written yet");
+		}
+		// The next block to be written starts where the last one ended
+		long blockAddress = (block < written) ? blockAddresses[block] : address;
+		return (blockAddress << 16) | (position & 0xffff);
+	}
+
+	private void submitBlock() throws IOException {
+		pending.add(pool.submit(new BlockDeflater(data, length)));
+		blocks++;
+		data = new byte[BGZF.MAX_DATA_LENGTH];
+		length = 0;
+		// Don't fill blocks too far ahead of the ones being written
+		while (pending.size() > threads * 2) { writeBlock(); }
+	}
+	private void writeBlock() throws IOException {
+		try {
+			byte[] block = pending.removeFirst().get();
+			out.write(block);
+			if (written == blockAddresses.length) {
+				long[] addresses = new long[written * 2];
+				System.arraycopy(blockAddresses, 0, addresses, 0, written);
+				blockAddresses = addresses;
+			}
+			blockAddresses[written++] = address;
+			address += block.length;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing BGZF block");
+		} catch (ExecutionException e) {
+			IOException ioe = new IOException("Couldn't compress BGZF block");
+			ioe.initCause(e.getCause());
+			throw ioe;
+		}
+	}
+
+	// Compresses one block, giving the whole block from header to footer
+	private class BlockDeflater implements Callable<byte[]> {
+		private byte[] data;
+		private int length;
+
+		private BlockDeflater(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+		public byte[] call() {
+			byte[] block = new byte[BGZF.MAX_BLOCK_LENGTH];
+			int maxCompressed = block.length - BGZF.HEADER_LENGTH - BGZF.FOOTER_LENGTH;
+			int compressed = deflate(compressionLevel, block, maxCompressed);
+			if (compressed < 0) {
+				// Incompressible, so store it as it is
+				compressed = deflate(Deflater.NO_COMPRESSION, block, maxCompressed);
+			}
+			int blockLength = BGZF.HEADER_LENGTH + compressed + BGZF.FOOTER_LENGTH;
+			System.arraycopy(BGZF.HEADER, 0, block, 0, BGZF.HEADER.length);
+			BGZF.writeShort(block, BGZF.HEADER.length, blockLength - 1);
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			BGZF.writeInt(block, BGZF.HEADER_LENGTH + compressed, (int)crc.getValue());
+			BGZF.writeInt(block, BGZF.HEADER_LENGTH + compressed + 4, length);
+			byte[] res = new byte[blockLength];
+			System.arraycopy(block, 0, res, 0, blockLength);
+			return res;
+		}
+		// Deflates data into block after the header; returns the compressed length, or -1 if it doesn't fit
+		private int deflate(int level, byte[] block, int maxCompressed) {
+			Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				int compressed = 0;
+				while (!deflater.finished() && compressed < maxCompressed) {
+					compressed += deflater.deflate(block, BGZF.HEADER_LENGTH + compressed, maxCompressed - compressed);
+				}
+				return deflater.finished() ? compressed : -1;
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	// Pool threads that don't keep the JVM running
+	static class DaemonThreadFactory implements ThreadFactory {
+		private String name;
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.modencode.tools.liftover.io;
+
+/**
+ * Reads and patches the fixed-length fields of a BAM alignment record in its binary form,
+ * as read by ParallelBAMFileReader.readRawRecord: the block_size field followed by the
+ * record. Positions are BAM's 0-based ones.
+ */
+public class RawBAMRecord {
+	private static final int REFERENCE_INDEX = 4;
+	private static final int POSITION = 8;
+	private static final int READ_NAME_LENGTH = 12;
+	private static final int BIN = 14;
+	private static final int CIGAR_LENGTH = 16;
+	private static final int FLAGS = 18;
+	private static final int NEXT_REFERENCE_INDEX = 24;
+	private static final int NEXT_POSITION = 28;
+	private static final int INFERRED_INSERT_SIZE = 32;
+	private static final int READ_NAME = 36; // Then the cigar
+
+	public static final int FLAG_PAIRED = 0x1;
+	public static final int FLAG_UNMAPPED = 0x4;
+	public static final int FLAG_MATE_UNMAPPED = 0x8;
+
+	// The shortest record with all the fixed-length fields
+	public static final int MIN_LENGTH = READ_NAME;
+
+	public static int getReferenceIndex(byte[] record) {
+		return BGZF.readInt(record, REFERENCE_INDEX);
+	}
+	public static int getPosition(byte[] record) {
+		return BGZF.readInt(record, POSITION);
+	}
+	public static void setPosition(byte[] record, int position) {
+		BGZF.writeInt(record, POSITION, position);
+	}
+	public static void setBin(byte[] record, int bin) {
+		BGZF.writeShort(record, BIN, bin);
+	}
+	public static int getFlags(byte[] record) {
+		return BGZF.readShort(record, FLAGS);
+	}
+	public static int getNextReferenceIndex(byte[] record) {
+		return BGZF.readInt(record, NEXT_REFERENCE_INDEX);
+	}
+	public static int getNextPosition(byte[] record) {
+		return BGZF.readInt(record, NEXT_POSITION);
+	}
+	public static void setNextPosition(byte[] record, int position) {
+		BGZF.writeInt(record, NEXT_POSITION, position);
+	}
+	public static int getInferredInsertSize(byte[] record) {
+		return BGZF.readInt(record, INFERRED_INSERT_SIZE);
+	}
+
+	/**
+	 * The number of reference bases the cigar covers (M, D and N), or -1 if it has any
+	 * operator other than MIDNSHP or runs past the end of the record.
+	 */
+	public static int getReferenceLength(byte[] record) {
+		int offset = READ_NAME + (record[READ_NAME_LENGTH] & 0xff);
+		int operators = BGZF.readShort(record, CIGAR_LENGTH);
+		if (offset + 4 * operators > record.length) { return -1; }
+		int length = 0;
+		for (int i = 0; i < operators; i++, offset += 4) {
+			int op = BGZF.readInt(record, offset);
+			switch (op & 0xf) {
+			case 0: case 2: case 3: // M, D, N
+				length += op >>> 4;
+				break;
+			case 1: case 4: case 5: case 6: // I, S, H, P
+				break;
+			default:
+				return -1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * The UCSC binning scheme's bin for the 0-based, half-open range start..end, as BAM
+	 * stores it (and as SAMUtils.reg2bin gives it).
+	 */
+	public static int reg2bin(int start, int end) {
+		--end;
+		if (start >> 14 == end >> 14) { return ((1 << 15) - 1) / 7 + (start >> 14); }
+		if (start >> 17 == end >> 17) { return ((1 << 12) - 1) / 7 + (start >> 17); }
+		if (start >> 20 == end >> 20) { return ((1 << 9) - 1) / 7 + (start >> 20); }
+		if (start >> 23 == end >> 23) { return ((1 << 6) - 1) / 7 + (start >> 23); }
+		if (start >> 26 == end >> 26) { return ((1 << 3) - 1) / 7 + (start >> 26); }
+		return 0;
+	}
+}
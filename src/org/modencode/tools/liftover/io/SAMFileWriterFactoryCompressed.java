@@ -14,15 +14,62 @@ import net.sf.samtools.util.Md5CalculatingOutputStream;
 import net.sf.samtools.util.RuntimeIOException;
 
 public class SAMFileWriterFactoryCompressed extends SAMFileWriterFactory {
+	private int threads = 1;
+	private int sortWindow = 0;
+	private boolean createIndex = false;
+	
+	// Number of threads to compress BAM output with (1 = Picard's own BAM writer)
+	public SAMFileWriterFactoryCompressed setThreads(final int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+	// Records BAM output holds back to put them in coordinate order (see ParallelBAMFileWriter)
+	public SAMFileWriterFactoryCompressed setSortWindow(final int sortWindow) {
+		this.sortWindow = Math.max(0, sortWindow);
+		return this;
+	}
+	// Write a BAI index (output.bam.bai) alongside coordinate-sorted BAM output
+	public SAMFileWriterFactoryCompressed setCreateIndex(final boolean createIndex) {
+		this.createIndex = createIndex;
+		return this;
+	}
+	
 	@Override
     public SAMFileWriter makeSAMOrBAMWriter(final SAMFileHeader header, final boolean presorted, final File outputFile) {
         final String filename = outputFile.getName();
         if (filename.endsWith(".sam.gz")) {
         	return makeSAMGZWriter(header, presorted, outputFile);
         }
+        if (filename.endsWith(".bam") && (threads > 1 || sortWindow > 0 || createIndex)) {
+        	return makeParallelBAMWriter(header, presorted, outputFile);
+        }
         return super.makeSAMOrBAMWriter(header, presorted, outputFile);
     }
 	
+    public ParallelBAMFileWriter makeParallelBAMWriter(final SAMFileHeader header, final boolean presorted, final File outputFile) {
+        try {
+            final ParallelBAMFileWriter ret = new ParallelBAMFileWriter(outputFile, threads);
+            ret.setSortWindow(sortWindow);
+            if (sortWindow > 0) {
+                ret.setSortOrder(SAMFileHeader.SortOrder.coordinate, true);
+            } else {
+                ret.setSortOrder(header.getSortOrder(), presorted);
+            }
+            // Without a sort window, only a file already in coordinate order can be indexed
+            if (createIndex && (sortWindow > 0 || header.getSortOrder() == SAMFileHeader.SortOrder.coordinate)) {
+                ret.setIndexFile(new File(outputFile.getPath() + ".bai"));
+            }
+            if (maxRecordsInRam != null) {
+                ret.setMaxRecordsInRam(maxRecordsInRam);
+            }
+            ret.setHeader(header);
+            return ret;
+        }
+        catch (IOException ioe) {
+            throw new RuntimeIOException("Error opening file: " + outputFile.getAbsolutePath());
+        }
+    }
+	
     public SAMFileWriter makeSAMGZWriter(final SAMFileHeader header, final boolean presorted, final File outputFile) {
         try {
         	OutputStream os = new GZIPOutputStream(new FileOutputStream(outputFile, false), 16384);
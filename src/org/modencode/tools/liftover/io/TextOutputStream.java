@@ -0,0 +1,102 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A buffered OutputStream with the parts of BufferedWriter the updaters use, so bytes copied
+ * from a LineScanner and Strings can be written to the same output. Strings are encoded with
+ * the platform charset, as FileWriter does. Not synchronized.
+ */
+public class TextOutputStream extends OutputStream {
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	private final Charset charset = Charset.defaultCharset();
+	private OutputStream out;
+	private byte[] buf = new byte[1 << 16];
+	private int count;
+
+	public TextOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(int b) throws IOException {
+		if (count == buf.length) { flushBuffer(); }
+		buf[count++] = (byte)b;
+	}
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buf.length - count) {
+			flushBuffer();
+			if (len > buf.length) {
+				out.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+	public void write(String s) throws IOException {
+		int n = s.length();
+		if (n <= buf.length - count || flushAndFits(n)) {
+			// Copy plain ASCII straight in; anything else goes through the charset
+			int start = count;
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) {
+					count = start;
+					byte[] b = s.getBytes(charset);
+					write(b, 0, b.length);
+					return;
+				}
+				buf[count++] = (byte)c;
+			}
+			return;
+		}
+		byte[] b = s.getBytes(charset);
+		write(b, 0, b.length);
+	}
+	private boolean flushAndFits(int n) throws IOException {
+		flushBuffer();
+		return n <= buf.length;
+	}
+	public void writeInt(int v) throws IOException {
+		if (buf.length - count < 11) { flushBuffer(); }
+		if (v < 0) {
+			if (v == Integer.MIN_VALUE) {
+				write(Integer.toString(v));
+				return;
+			}
+			buf[count++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (int x = v; x >= 10; x /= 10) { digits++; }
+		for (int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte)('0' + v % 10);
+			v /= 10;
+		}
+		count += digits;
+	}
+	public void newLine() throws IOException {
+		write(NEWLINE, 0, NEWLINE.length);
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
+	}
+}
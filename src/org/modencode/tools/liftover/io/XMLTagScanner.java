@@ -0,0 +1,239 @@
+package org.modencode.tools.liftover.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads XML a tag at a time, in the manner of a StAX reader, but without checking that it's
+ * well formed: anything that doesn't look like markup is text, and a tag ends at the first
+ * '>' outside quotes. Each tag's byte offsets in the input are kept, so whatever is around
+ * the tags can be copied as it is. Comments, CDATA sections, processing instructions and
+ * declarations are returned as OTHER, without their contents. Text isn't unescaped; bytes
+ * are taken as ISO-8859-1 characters.
+ */
+public class XMLTagScanner {
+	public static final int END_OF_INPUT = -1;
+	public static final int START_TAG = 1;
+	public static final int END_TAG = 2;
+	public static final int EMPTY_TAG = 3; // <name/>, a start and end tag in one
+	public static final int OTHER = 4;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_TEXT = 4096;
+
+	private InputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0, limit = 0;
+	private long bufferOffset = 0; // Offset in the input of buffer[0]
+
+	private long tagStart, tagEnd;
+	private StringBuilder tag = new StringBuilder(); // The current tag, less its < and >
+	private int nameEnd;
+	// The text between the previous tag and this one, unless it was too long to keep
+	private StringBuilder text = new StringBuilder();
+	private boolean textTooLong;
+
+	public XMLTagScanner(InputStream in) {
+		this.in = in;
+	}
+
+	// Move to the next tag, returning its type, or END_OF_INPUT
+	public int next() throws IOException {
+		text.setLength(0);
+		textTooLong = false;
+		int b;
+		while ((b = read()) >= 0) {
+			if (b != '<') {
+				addText(b);
+				continue;
+			}
+			long start = getOffset() - 1;
+			int c = peek();
+			if (c == '/' || c == '!' || c == '?' || isNameStart(c)) {
+				tagStart = start;
+				return readTag();
+			}
+			addText(b);
+		}
+		tagStart = tagEnd = getOffset();
+		return END_OF_INPUT;
+	}
+
+	// Where the current tag starts, at its <, and ends, just past its >
+	public long getTagStart() {
+		return tagStart;
+	}
+	public long getTagEnd() {
+		return tagEnd;
+	}
+	public String getName() {
+		return tag.substring(0, nameEnd);
+	}
+	public boolean nameEquals(String name) {
+		if (nameEnd != name.length()) { return false; }
+		for (int i = 0; i < nameEnd; i++) {
+			if (tag.charAt(i) != name.charAt(i)) { return false; }
+		}
+		return true;
+	}
+	// The value of the named attribute of the current start tag, or null
+	public String getAttribute(String name) {
+		int i = nameEnd, n = tag.length();
+		while (i < n) {
+			while (i < n && isSpace(tag.charAt(i))) { i++; }
+			int keyStart = i;
+			while (i < n && tag.charAt(i) != '=' && !isSpace(tag.charAt(i))) { i++; }
+			String key = tag.substring(keyStart, i);
+			while (i < n && isSpace(tag.charAt(i))) { i++; }
+			if (i == n || tag.charAt(i) != '=') { continue; }
+			i++;
+			while (i < n && isSpace(tag.charAt(i))) { i++; }
+			if (i == n) { break; }
+			int valueStart, valueEnd;
+			char quote = tag.charAt(i);
+			if (quote == '"' || quote == '\'') {
+				valueStart = ++i;
+				while (i < n && tag.charAt(i) != quote) { i++; }
+				valueEnd = i++;
+			} else {
+				valueStart = i;
+				while (i < n && !isSpace(tag.charAt(i))) { i++; }
+				valueEnd = i;
+			}
+			if (key.equals(name)) { return tag.substring(valueStart, Math.min(valueEnd, n)); }
+		}
+		return null;
+	}
+	// The text between the previous tag and this one, or null if it was very long
+	public String getText() {
+		return textTooLong ? null : text.toString();
+	}
+
+	private int readTag() throws IOException {
+		tag.setLength(0);
+		int c = peek();
+		int type;
+		if (c == '!' || c == '?') {
+			skipMarkup();
+			type = OTHER;
+		} else {
+			if (c == '/') { read(); }
+			type = (c == '/') ? END_TAG : START_TAG;
+			char quote = 0;
+			int b;
+			while ((b = read()) >= 0) {
+				if (quote != 0) {
+					if (b == quote) { quote = 0; }
+				} else if (b == '"' || b == '\'') {
+					quote = (char)b;
+				} else if (b == '>') {
+					break;
+				}
+				tag.append((char)b);
+			}
+			if (type == START_TAG && tag.length() > 0 && tag.charAt(tag.length() - 1) == '/') {
+				tag.setLength(tag.length() - 1);
+				type = EMPTY_TAG;
+			}
+			nameEnd = 0;
+			while (nameEnd < tag.length() && !isSpace(tag.charAt(nameEnd))) { nameEnd++; }
+		}
+		tagEnd = getOffset();
+		return type;
+	}
+	// Skip a comment, CDATA section, processing instruction or declaration
+	private void skipMarkup() throws IOException {
+		nameEnd = 0;
+		if (lookingAt("!--")) {
+			skipPast("-->");
+		} else if (lookingAt("![CDATA[")) {
+			skipPast("]]>");
+		} else if (lookingAt("?")) {
+			skipPast("?>");
+		} else {
+			// A declaration, which may have an internal subset in brackets
+			int depth = 0, b;
+			while ((b = read()) >= 0) {
+				if (b == '[') {
+					depth++;
+				} else if (b == ']') {
+					depth--;
+				} else if (b == '>' && depth <= 0) {
+					break;
+				}
+			}
+		}
+	}
+	private boolean lookingAt(String s) throws IOException {
+		fill(s.length());
+		if (limit - position < s.length()) { return false; }
+		for (int i = 0; i < s.length(); i++) {
+			if (buffer[position + i] != s.charAt(i)) { return false; }
+		}
+		position += s.length();
+		return true;
+	}
+	// Skip to just past the first occurrence of end
+	private void skipPast(String end) throws IOException {
+		int n = end.length(), seen = 0, b;
+		int[] last = new int[n];
+		while ((b = read()) >= 0) {
+			last[seen++ % n] = b;
+			if (seen >= n) {
+				boolean found = true;
+				for (int i = 0; i < n && found; i++) {
+					found = (last[(seen + i) % n] == end.charAt(i));
+				}
+				if (found) { return; }
+			}
+		}
+	}
+
+	private void addText(int b) {
+		if (textTooLong) { return; }
+		if (text.length() == MAX_TEXT) {
+			textTooLong = true;
+			text.setLength(0);
+			return;
+		}
+		text.append((char)b);
+	}
+	private static boolean isNameStart(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || c >= 0x80;
+	}
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	private long getOffset() {
+		return bufferOffset + position;
+	}
+	private int read() throws IOException {
+		if (position == limit && !fill(1)) { return -1; }
+		return buffer[position++] & 0xff;
+	}
+	private int peek() throws IOException {
+		if (position == limit && !fill(1)) { return -1; }
+		return buffer[position] & 0xff;
+	}
+	// Make sure at least n bytes are buffered, if the input has them
+	private boolean fill(int n) throws IOException {
+		if (limit - position >= n) { return true; }
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			bufferOffset += position;
+			limit -= position;
+			position = 0;
+		}
+		while (limit < n) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) { return false; }
+			limit += read;
+		}
+		return true;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
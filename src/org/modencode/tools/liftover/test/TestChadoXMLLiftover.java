@@ -3,10 +3,19 @@ package org.modencode.tools.liftover.test;
 
 import org.junit.Test;
 import org.modencode.tools.liftover.Liftover;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.updater.ChadoXMLUpdater;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
 import static org.junit.Assert.* ;
 
 import com.martiansoftware.jsap.JSAPException;
@@ -57,6 +66,49 @@ public class TestChadoXMLLiftover {
 		}
 		 return filesMatch(outfile, target);
 	}
+	
+	// Chromosome features for chromosomes, then a feature that isn't one
+	public String makeFeatures(List<String> chromosomes) {
+		StringBuilder features = new StringBuilder();
+		for (String chr : chromosomes) {
+			features.append("  <feature id=\"chr_" + chr + "\">\n    <name>" + chr + "</name>\n  </feature>\n");
+		}
+		features.append("  <feature id=\"gene_1\">\n    <name>gene-1</name>\n  </feature>\n");
+		return features.toString();
+	}
+	// count featurelocs along chromosome I from start, with some on the gene or a feature that's never defined
+	public String makeFeatureLocs(int start, int count) {
+		StringBuilder featureLocs = new StringBuilder();
+		for (int i = start; i < start + count; i++) {
+			String srcFeature = (i % 7 == 0) ? "gene_1" : (i % 11 == 0) ? "feature_missing" : "chr_I";
+			int fmin = 200000 + i * 2500;
+			featureLocs.append("<featureloc>\n  <feature_id>feature_" + i + "</feature_id>\n  <srcfeature_id>" + srcFeature + "</srcfeature_id>\n"
+					+ "  <fmin>" + fmin + "</fmin>\n  <fmax>" + (fmin + (i % 40) * 10 + 1) + "</fmax>\n  <strand>" + (i % 3 - 1) + "</strand>\n</featureloc>\n");
+		}
+		return featureLocs.toString();
+	}
+	public void writeFile(String name, String text) throws IOException {
+		FileWriter writer = new FileWriter(name);
+		writer.write(text);
+		writer.close();
+	}
+	public String readFile(String name) throws IOException {
+		StringBuilder text = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(name));
+		char[] b = new char[8192];
+		int n;
+		while ((n = reader.read(b)) >= 0) {
+			text.append(b, 0, n);
+		}
+		reader.close();
+		return text.toString();
+	}
+	public String lift(List<MappingData> mappingData, String infile, String outfile, int threads) throws MappingException, IOException {
+		ChadoXMLUpdater xmlu = new ChadoXMLUpdater(mappingData);
+		xmlu.setThreads(threads);
+		xmlu.processFile(new File(infile), new File(outfile));
+		return readFile(outfile);
+	}
 	// TESTS
 	
 	@Test // general test
@@ -96,6 +148,56 @@ public class TestChadoXMLLiftover {
 	}
 	
 
+	@Test // Featurelocs over several chunks before their chromosomes, lifted once those turn up
+	public void testFeatureLocsBeforeChromosomes() throws MappingException, IOException {
+		System.out.println("TESTING: testFeatureLocsBeforeChromosomes");
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(190, 220).getMappingData();
+		TreeSet<String> allChromosomes = new TreeSet<String>();
+		for (MappingData md : mappingData) {
+			allChromosomes.addAll(md.getChromosomes());
+		}
+		List<String> chromosomes = new ArrayList<String>(allChromosomes);
+		String root = "<chadoxml>\n", end = "</chadoxml>\n", middle = "<!-- the rest -->\n";
+		String before = makeFeatureLocs(0, 2500), after = makeFeatureLocs(2500, 1500);
+		
+		// With every chromosome, the featurelocs wait for the last of them; without one, for the end of the file
+		List<String> someChromosomes = new ArrayList<String>(chromosomes);
+		someChromosomes.remove(someChromosomes.size() - 1);
+		for (List<String> present : Arrays.asList(chromosomes, someChromosomes)) {
+			String features = makeFeatures(present);
+			writeFile("test_defer.cx.out", root + features + before + middle + after + end);
+			String inOrder = lift(mappingData, "test_defer.cx.out", "test_defer_lifted.cx.out", 1);
+			assertTrue("No featurelocs lifted", !inOrder.equals(readFile("test_defer.cx.out")));
+			int split = inOrder.indexOf(middle);
+			String expected = root + inOrder.substring((root + features).length(), split) + features + inOrder.substring(split);
+			
+			writeFile("test_defer_late.cx.out", root + before + features + middle + after + end);
+			for (int threads = 1; threads <= 3; threads += 2) {
+				assertEquals("Deferred featurelocs with " + threads + " threads", expected, lift(mappingData, "test_defer_late.cx.out", "test_defer_late_lifted.cx.out", threads));
+			}
+		}
+		String[] left = new File(".").list();
+		for (String name : left) {
+			assertFalse("Spill file " + name + " left behind", name.startsWith("liftover") && name.endsWith(".part"));
+		}
+	}
+	
+	@Test // Several chunks of featurelocs lifted on a pool come out as they do on one thread
+	public void testThreadedLiftMatchesSequential() throws MappingException, IOException {
+		System.out.println("TESTING: testThreadedLiftMatchesSequential");
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(190, 220).getMappingData();
+		TreeSet<String> chromosomes = new TreeSet<String>();
+		for (MappingData md : mappingData) {
+			chromosomes.addAll(md.getChromosomes());
+		}
+		// Some chunks are cut short by a feature between the featurelocs
+		String features = makeFeatures(new ArrayList<String>(chromosomes));
+		writeFile("test_threads.cx.out", "<chadoxml>\n" + features + makeFeatureLocs(0, 2300) + "  <feature id=\"gene_2\">\n    <name>gene-2</name>\n  </feature>\n" + makeFeatureLocs(2300, 3200) + "</chadoxml>\n");
+		String sequential = lift(mappingData, "test_threads.cx.out", "test_threads_1.cx.out", 1);
+		assertTrue("No featurelocs lifted", !sequential.equals(readFile("test_threads.cx.out")));
+		assertEquals("Lifted with 4 threads", sequential, lift(mappingData, "test_threads.cx.out", "test_threads_4.cx.out", 4));
+	}
+	
 	// notes from EO :
 	// -- we don't need to worry about things wrapping to a different line 'cause the validator doesn't generate that
 	// the liftover actually looks only for features relative to chrom-features to lift
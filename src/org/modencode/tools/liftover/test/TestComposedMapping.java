@@ -0,0 +1,265 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.ComposedMapping;
+import org.modencode.tools.liftover.LiftResult;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.updater.BEDUpdater;
+
+public class TestComposedMapping {
+	@Test
+	public void testLinearSegments() throws MappingException {
+		ArrayList<MappingData> mappingData = new ArrayList<MappingData>();
+		MappingData first = new MappingData(1);
+		first.addMismatchPair("I", 100, 100, 0, 100, 105, 5, false); // Insert 5 bases
+		first.addMismatchPair("I", 200, 210, 10, 205, 205, 0, false); // Delete 10 bases
+		first.reverseMismatchLists();
+		mappingData.add(first);
+		MappingData second = new MappingData(2);
+		second.addMismatchPair("I", 300, 302, 2, 300, 302, 2, false); // Substitution
+		second.addMismatchPair("I", 400, 400, 0, 400, 401, 1, false); // Insert 1 base
+		second.reverseMismatchLists();
+		mappingData.add(second);
+
+		ComposedMapping cm = ComposedMapping.compose(mappingData);
+
+		long r = cm.lift("I", 10, 20);
+		assertTrue("Feature before all changes should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start shouldn't move", 10, LiftResult.getStart(r, 10));
+		assertEquals("End shouldn't move", 20, LiftResult.getEnd(r, 20));
+		assertFalse("Feature before all changes isn't changed", LiftResult.hasFlag(r, LiftResult.CHANGED));
+
+		r = cm.lift("I", 150, 160);
+		assertTrue("Feature between changes should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start should move past the insertion", 155, LiftResult.getStart(r, 150));
+		assertEquals("End should move past the insertion", 165, LiftResult.getEnd(r, 160));
+
+		r = cm.lift("I", 150, 250);
+		assertTrue("Feature containing a deletion should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start should only move past the insertion", 155, LiftResult.getStart(r, 150));
+		assertEquals("End should move past the insertion and deletion", 245, LiftResult.getEnd(r, 250));
+		assertTrue("Feature containing a deletion is changed", LiftResult.hasFlag(r, LiftResult.CHANGED));
+
+		// 290..310 maps to 285..305 in release 1, so it overlaps the release 2 substitution
+		r = cm.lift("I", 290, 310);
+		assertTrue("Feature overlapping a substitution should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start should move by the release 1 offset", 285, LiftResult.getStart(r, 290));
+		assertEquals("End should move by the release 1 offset", 305, LiftResult.getEnd(r, 310));
+
+		r = cm.lift("I", 500, 600);
+		assertTrue("Feature past all changes should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start should move by the net offset", 496, LiftResult.getStart(r, 500));
+		assertEquals("End should move by the net offset", 596, LiftResult.getEnd(r, 600));
+	}
+
+	@Test
+	public void testFallbackSegments() throws MappingException {
+		ArrayList<MappingData> mappingData = new ArrayList<MappingData>();
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 100, 110, 10, 100, 103, 3, false); // Replace 10 bases with 3
+		md.addMismatchPair("I", 200, 220, 20, 193, 213, 20, true); // Inversion
+		md.reverseMismatchLists();
+		mappingData.add(md);
+
+		ComposedMapping cm = ComposedMapping.compose(mappingData);
+
+		assertEquals("End inside an indeterminate region needs the full rules", LiftResult.UNRESOLVED, cm.lift("I", 50, 105));
+		assertEquals("Start inside an inverted region needs the full rules", LiftResult.UNRESOLVED, cm.lift("I", 205, 250));
+		assertEquals("Inversion inside the feature needs the full rules", LiftResult.UNRESOLVED, cm.lift("I", 150, 250));
+		assertEquals("Other chromosomes are unchanged", 0L, cm.lift("II", 150, 250));
+
+		long r = cm.lift("I", 150, 160);
+		assertTrue("Feature between the regions should map directly", r != LiftResult.UNRESOLVED);
+		assertEquals("Start should move by the change in length", 143, LiftResult.getStart(r, 150));
+	}
+
+	@Test
+	public void testUpdaterKernel() throws MappingException {
+		ArrayList<MappingData> mappingData = new ArrayList<MappingData>();
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 200, 220, 20, 200, 220, 20, true); // Inversion
+		md.reverseMismatchLists();
+		mappingData.add(md);
+		BEDUpdater u = new BEDUpdater(mappingData);
+
+		long r = u.lift("I", 205, 210);
+		assertTrue("Feature inside an inversion is flipped", LiftResult.hasFlag(r, LiftResult.FLIPPED));
+		assertTrue("Feature inside an inversion changes strand", LiftResult.hasFlag(r, LiftResult.STRAND_TOGGLED));
+		assertEquals("Start should be mirrored in the region", 212, LiftResult.getStart(r, 205));
+		assertEquals("End should be mirrored in the region", 217, LiftResult.getEnd(r, 210));
+
+		r = u.lift("I", 150, 210);
+		assertTrue("Feature across an inversion boundary is dropped", LiftResult.hasFlag(r, LiftResult.DROPPED));
+
+		BEDUpdater.BEDFeature f = u.new BEDFeature("I", 205, 210, "0");
+		f.setStrand(new String("-"));
+		u.updateFeature(f);
+		assertEquals("Minus strand feature inside an inversion should move to the plus strand", "+", f.getStrand());
+	}
+
+	/*
+	 * MismatchPair.clone used to drop the flipped flag, and the lift rules only ever saw clones,
+	 * so an inversion was lifted as a substitution: features inside it kept their coordinates
+	 * and were just marked changed. WS142 inverts X:159157..199126.
+	 */
+	@Test
+	public void testFlippedPairsLiftAsInversions() throws MappingException {
+		MappingData release = MappingDataFactory.generateMappings(141, 142).get(0);
+		MappingData.MismatchPair inversion = null;
+		for (MappingData.MismatchPair mm : release.getMismatchPairs("X")) {
+			if (mm.flipped) { inversion = mm; }
+		}
+		assertNotNull("WS142 should invert part of X", inversion);
+		assertTrue("A clone of a flipped pair should be flipped", inversion.clone().flipped);
+
+		// What the lift rules used to be given: the same release with the flag lost
+		MappingData unflipped = new MappingData(142);
+		for (String chr : release.getChromosomes()) {
+			for (MappingData.MismatchPair mm : release.getMismatchPairs(chr)) {
+				unflipped.addMismatchPair(chr, mm.previousMismatch.start, mm.previousMismatch.end, mm.previousMismatch.length,
+						mm.thisMismatch.start, mm.thisMismatch.end, mm.thisMismatch.length, false);
+			}
+		}
+		ArrayList<MappingData> old = new ArrayList<MappingData>();
+		old.add(unflipped);
+		long r = new BEDUpdater(old).lift("X", 160000, 160100);
+		assertEquals("Old start", 160000, LiftResult.getStart(r, 160000));
+		assertEquals("Old end", 160100, LiftResult.getEnd(r, 160100));
+		assertTrue("Old lift marks it changed", LiftResult.hasFlag(r, LiftResult.CHANGED));
+		assertFalse("Old lift doesn't flip it", LiftResult.hasFlag(r, LiftResult.FLIPPED));
+		r = new BEDUpdater(old).lift("X", 150000, 160000);
+		assertFalse("Old lift keeps a feature across the boundary", LiftResult.hasFlag(r, LiftResult.DROPPED));
+
+		// Now it's mirrored in the region and moved to the other strand, both ways
+		for (BEDUpdater u : new BEDUpdater[] {
+				new BEDUpdater(MappingDataFactory.generateMappings(141, 142)),
+				new BEDUpdater(MappingDataFactory.generateMappings(142, 141)) }) {
+			r = u.lift("X", 160000, 160100);
+			assertEquals("Start should be mirrored in the region", 198185, LiftResult.getStart(r, 160000));
+			assertEquals("End should be mirrored in the region", 198285, LiftResult.getEnd(r, 160100));
+			assertTrue("Feature inside the inversion is flipped", LiftResult.hasFlag(r, LiftResult.FLIPPED));
+			assertTrue("Feature inside the inversion changes strand", LiftResult.hasFlag(r, LiftResult.STRAND_TOGGLED));
+			r = u.lift("X", 150000, 160000);
+			assertTrue("Feature across the inversion boundary is dropped", LiftResult.hasFlag(r, LiftResult.DROPPED));
+		}
+	}
+
+	@Test
+	public void testCachedChains() throws MappingException {
+		MappingDataFactory.clearChainCache();
+		long hits = MappingDataFactory.getChainCacheHits();
+		long misses = MappingDataFactory.getChainCacheMisses();
+
+		ComposedMapping forward = MappingDataFactory.generateComposedMapping(170, 180);
+		assertEquals("First lookup should be a miss", misses + 1, MappingDataFactory.getChainCacheMisses());
+		assertSame("Second lookup should return the cached chain", forward, MappingDataFactory.generateComposedMapping(170, 180));
+		assertEquals("Second lookup should be a hit", hits + 1, MappingDataFactory.getChainCacheHits());
+
+		ComposedMapping reverse = MappingDataFactory.generateComposedMapping(180, 170);
+		assertEquals("Reverse lookup should reuse the forward entry", misses + 1, MappingDataFactory.getChainCacheMisses());
+		assertSame("Reverse chain should be cached too", reverse, MappingDataFactory.generateComposedMapping(180, 170));
+		assertEquals("Reverse chain should start from the last release", 180, reverse.getMappingData().get(0).getRelease());
+
+		// Lifting there and back again should land on the same place
+		BEDUpdater there = new BEDUpdater(forward.getMappingData());
+		BEDUpdater back = new BEDUpdater(reverse.getMappingData());
+		int checked = 0;
+		for (String chr : forward.getChromosomes()) {
+			int start = 5000000, end = 5000100;
+			long r = there.lift(chr, start, end);
+			if (LiftResult.hasFlag(r, LiftResult.CHANGED)) { continue; } // Overlaps a change; may not come back
+			int liftedStart = LiftResult.getStart(r, start), liftedEnd = LiftResult.getEnd(r, end);
+			long b = back.lift(chr, liftedStart, liftedEnd);
+			assertEquals("Start on " + chr + " should round-trip", start, LiftResult.getStart(b, liftedStart));
+			assertEquals("End on " + chr + " should round-trip", end, LiftResult.getEnd(b, liftedEnd));
+			checked++;
+		}
+		assertTrue("At least one chromosome should have been lifted there and back", checked > 0);
+
+		assertSame("Updaters given a cached chain should share it", forward, ComposedMapping.compose(forward.getMappingData()));
+
+		// Cached MappingData must not be changed by callers
+		try {
+			forward.getMappingData().clear();
+			fail("Cached chains should be read-only");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+		MappingData release = null;
+		for (MappingData md : forward.getMappingData()) {
+			if (!md.getChromosomes().isEmpty()) { release = md; }
+		}
+		String chr = release.getChromosomes().iterator().next();
+		try {
+			release.getMismatchPairs(chr).clear();
+			fail("Cached mismatch lists should be read-only");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+		try {
+			release.invert();
+			fail("Cached releases shouldn't be inverted in place");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		try {
+			release.addMismatchPair(chr, 1, 1, 0, 1, 2, 1, false);
+			fail("Cached releases shouldn't be added to");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		// Copies from the cached releases can still be changed
+		release.inverted().invert();
+	}
+
+	@Test
+	public void testCachedChainLoadedOnce() throws Exception {
+		MappingDataFactory.clearChainCache();
+		long misses = MappingDataFactory.getChainCacheMisses();
+		// Callers asking for the same releases at once all get the one chain, loaded once
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<ComposedMapping>> results = new ArrayList<Future<ComposedMapping>>();
+		try {
+			for (int i = 0; i < 8; i++) {
+				final boolean back = (i % 2 == 1);
+				results.add(pool.submit(new Callable<ComposedMapping>() {
+					public ComposedMapping call() throws MappingException {
+						return back ? MappingDataFactory.generateComposedMapping(160, 150) : MappingDataFactory.generateComposedMapping(150, 160);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				assertSame("Every caller should get the same chain", results.get(i % 2).get(), results.get(i).get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals("The releases should be loaded once", misses + 1, MappingDataFactory.getChainCacheMisses());
+
+		// A failed load isn't kept
+		try {
+			MappingDataFactory.generateComposedMapping(0, 2);
+			fail("Release 1 doesn't exist");
+		} catch (MappingException e) {
+			// Expected
+		}
+		try {
+			MappingDataFactory.generateComposedMapping(0, 2);
+			fail("Release 1 still doesn't exist");
+		} catch (MappingException e) {
+			// Expected
+		}
+		assertEquals("A failed load should be tried again", misses + 3, MappingDataFactory.getChainCacheMisses());
+	}
+}
@@ -1,10 +1,17 @@
 package org.modencode.tools.liftover.test;
-//import java.util.List;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 import org.modencode.tools.liftover.Liftover;
-//import org.modencode.tools.liftover.MappingData;
-//import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
 import org.modencode.tools.liftover.MappingException;
 import org.modencode.tools.liftover.updater.BEDUpdater ;
 //import org.modencode.tools.liftover.updater.WIGUpdater ;
@@ -212,5 +219,94 @@ public class TestGFFLiftover {
 			
 	}
 
-
+	@Test // A chromosome that isn't in the mapping data is left as it is; one in another case is lifted as usual
+	public void testGffFastaOtherChromosomes() throws MappingException, IOException {
+		// WS220 changes I around 221350
+		StringBuilder sequence = new StringBuilder();
+		for (int i = 0; i < 201; i++) {
+			sequence.append("acgt".charAt(i % 4));
+		}
+		String feature = "\tTest\tTesting\t221250\t221450\t.\t.\t.\tID=changed\n";
+		String fly = "2L\tTest\tTesting\t100\t105\t.\t.\t.\tID=fly\n";
+		String fasta = "##FASTA\n>changed\n" + sequence + "\n";
+		String lifted = getFasta(liftGff("##gff-version 3\nI" + feature + fasta, "test_fasta_upper.out.gff", 190, 220, false));
+		assertTrue("FASTA not lifted", !lifted.replace("\n", "").equals(">changed" + sequence));
+		String other = getFasta(liftGff("##gff-version 3\ni" + feature + fly + fasta + ">fly\nacgtac\n", "test_fasta_other.out.gff", 190, 220, false));
+		assertEquals("FASTA on other chromosomes", lifted + ">fly\nacgtac\n", other);
+	}
+	
+	@Test // A duplicate ID only fails the run if a FASTA header could be using it
+	public void testGffDuplicateIDs() throws MappingException, IOException {
+		String gff = "##gff-version 3\n"
+			+ "IV\tTest\tTesting\t12345\t12355\t.\t.\t.\tID=dup\n"
+			+ "IV\tTest\tTesting\t12400\t12410\t.\t.\t.\tID=dup\n"
+			+ "IV\tTest\tTesting\t12500\t12510\t.\t.\t.\tID=single\n";
+		String otherFasta = "##FASTA\n>single\nacgtacgtacg\n";
+		String dupFasta = "##FASTA\n>dup\nacgtacgtacg\n";
+		
+		// The header IDs are known from the end of a plain file, and an unused duplicate is let through
+		assertEquals(">single\nacgtacgtacg\n", getFasta(liftGff(gff + otherFasta, "test_dup.out.gff", 75, 76, false)));
+		// A compressed file has its duplicate held until FASTA data turns up, and never does here
+		liftGff(gff, "test_dup_nofasta.out.gff", 75, 76, true);
+		for (boolean compressed : new boolean[] { false, true }) {
+			try {
+				liftGff(gff + dupFasta, "test_dup_fasta.out.gff", 75, 76, compressed);
+				fail("Duplicate ID with FASTA data" + (compressed ? ", compressed," : "") + " lifted");
+			} catch (MappingException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("duplicate feature ID dup"));
+			}
+		}
+	}
+	
+	@Test // FASTA features lifted on the workers come out as they do on one thread
+	public void testGffFastaThreaded() throws MappingException, IOException {
+		// Features across the WS220 change on I at 221350, each with a sequence split over lines
+		StringBuilder features = new StringBuilder("##gff-version 3\n");
+		StringBuilder fasta = new StringBuilder("##FASTA\n");
+		for (int i = 0; i < 60; i++) {
+			int start = 221000 + i * 20;
+			features.append("I\tTest\tTesting\t" + start + "\t" + (start + 399) + "\t.\t.\t.\tID=f" + i + "\n");
+			if (i == 30) { fasta.append("# Between the features\n\n"); }
+			fasta.append(">f" + i + " sequence " + i + "\n");
+			for (int j = 0; j < 400; j++) {
+				fasta.append("acgt".charAt((i + j) % 4));
+				if (j % 60 == 59) { fasta.append('\n'); }
+			}
+			fasta.append('\n');
+		}
+		String gff = features.toString() + fasta;
+		String sequential = liftGff(gff, "test_fasta_threads1.out.gff", 190, 220, false, 1);
+		assertTrue("FASTA not lifted", sequential.contains("X") && sequential.contains("# Between the features"));
+		assertEquals("Lifted with 4 threads", sequential, liftGff(gff, "test_fasta_threads4.out.gff", 190, 220, false, 4));
+	}
+	
+	// Lift gff between releases through a file named name (gzipped if compressed), returning the output
+	private String liftGff(String gff, String name, int release1, int release2, boolean compressed) throws MappingException, IOException {
+		return liftGff(gff, name, release1, release2, compressed, 1);
+	}
+	private String liftGff(String gff, String name, int release1, int release2, boolean compressed, int threads) throws MappingException, IOException {
+		File in = new File(name.replace(".out.", ".in.") + (compressed ? ".gz" : ""));
+		File out = new File(name);
+		OutputStream stream = new FileOutputStream(in);
+		if (compressed) { stream = new GZIPOutputStream(stream); }
+		stream.write(gff.getBytes("UTF-8"));
+		stream.close();
+		
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(release1, release2).getMappingData();
+		GFFUpdater gffu = new GFFUpdater(mappingData);
+		gffu.setThreads(threads);
+		gffu.processFile(in, out);
+		if (compressed) { return null; }
+		StringBuilder text = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(out));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			text.append(line).append("\n");
+		}
+		reader.close();
+		return text.toString();
+	}
+	private String getFasta(String gff) {
+		return gff.substring(gff.indexOf("##FASTA\n") + "##FASTA\n".length());
+	}
 }
@@ -1,6 +1,20 @@
 package org.modencode.tools.liftover.test;
 
 
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 import org.junit.Test;
 import org.modencode.tools.liftover.Liftover;
 import org.modencode.tools.liftover.MappingException;
@@ -63,4 +77,69 @@ public class TestGFFLiftoverCommandLine {
 		};
 		Liftover.main(args);
 		
-	}}
+	}
+	@Test
+	public void testCommandLineGFFLiftoverThreaded() throws MappingException, JSAPException, IOException {
+		String[] inputs = { "test.gff", "test_no_start.gff", "test_fasta.gff" };
+		for (String input : inputs) {
+			File sequential = File.createTempFile("sequential", ".gff");
+			File threaded = File.createTempFile("threaded", ".gff");
+			sequential.deleteOnExit();
+			threaded.deleteOnExit();
+			Liftover.main(new String[] { "-1", "190", "-2", "220", "-g", input, "-o", sequential.getPath() });
+			Liftover.main(new String[] { "-1", "190", "-2", "220", "-g", input, "-o", threaded.getPath(), "-t", "4" });
+			assertTrue("Lifting " + input + " in parallel should give the same file", Arrays.equals(readFile(sequential), readFile(threaded)));
+		}
+	}
+	
+	@Test
+	public void testCommandLineGFFLiftoverGZMatchesPlain() throws MappingException, JSAPException, IOException {
+		// FASTA data in a compressed file is only found on reaching it
+		File plain = File.createTempFile("plain", ".gff");
+		File compressed = File.createTempFile("compressed", ".gff.gz");
+		plain.deleteOnExit();
+		compressed.deleteOnExit();
+		Liftover.main(new String[] { "-1", "75", "-2", "76", "-g", "test_fasta.gff", "-o", plain.getPath() });
+		Liftover.main(new String[] { "-1", "75", "-2", "76", "-g", "test_fasta.gff.gz", "-o", compressed.getPath() });
+		assertTrue("Lifting test_fasta.gff.gz should give the same as test_fasta.gff",
+				Arrays.equals(readFile(plain), readStream(new GZIPInputStream(new FileInputStream(compressed)))));
+	}
+	@Test
+	public void testCommandLineGFFLiftoverGZIgnoresIDsWithoutFASTA() throws MappingException, JSAPException, IOException {
+		// The IDs are only checked if they're needed for FASTA data
+		File input = File.createTempFile("nofasta", ".gff.gz");
+		File output = File.createTempFile("nofasta", ".out.gff.gz");
+		input.deleteOnExit();
+		output.deleteOnExit();
+		Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(input)));
+		w.write("MtDNA\tTest\tTesting\t100\t200\t.\t.\t.\tID=mito\n");
+		w.write("IV\tTest\tTesting\t100\t200\t.\t.\t.\tID=dup\n");
+		w.write("IV\tTest\tTesting\t300\t400\t.\t.\t.\tID=dup\n");
+		w.close();
+		Liftover.main(new String[] { "-1", "190", "-2", "220", "-g", input.getPath(), "-o", output.getPath() });
+		assertEquals(3, new String(readStream(new GZIPInputStream(new FileInputStream(output)))).split("\n").length);
+	}
+	
+	private byte[] readFile(File f) throws IOException {
+		byte[] res = new byte[(int)f.length()];
+		FileInputStream in = new FileInputStream(f);
+		int read = 0;
+		while (read < res.length) {
+			int n = in.read(res, read, res.length - read);
+			if (n < 0) { break; }
+			read += n;
+		}
+		in.close();
+		return res;
+	}
+	private byte[] readStream(InputStream in) throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			res.write(buf, 0, n);
+		}
+		in.close();
+		return res.toByteArray();
+	}
+}
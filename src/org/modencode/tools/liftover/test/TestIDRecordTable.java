@@ -0,0 +1,55 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.IDRecordTable;
+
+public class TestIDRecordTable {
+	@Test
+	public void testPutGetClear() {
+		IDRecordTable table = new IDRecordTable(3);
+		assertTrue(table.put("gene1", new int[] { 1, 2, 3 }));
+		assertTrue(table.put("gene\u00e92", new int[] { -4, 5, Integer.MAX_VALUE }));
+		assertFalse("IDs are unique", table.put("gene1", new int[] { 7, 8, 9 }));
+		assertEquals(2, table.size());
+		assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, table.get("gene1")));
+		assertTrue(Arrays.equals(new int[] { -4, 5, Integer.MAX_VALUE }, table.get("gene\u00e92")));
+		assertNull(table.get("gene3"));
+		assertFalse(table.contains("gene3"));
+
+		table.clear("gene1");
+		assertNull(table.get("gene1"));
+		assertTrue("A cleared ID is still there", table.contains("gene1"));
+		assertFalse(table.put("gene1", new int[] { 1, 2, 3 }));
+		table.clear("gene3");
+		assertFalse(table.contains("gene3"));
+	}
+
+	@Test
+	public void testManyIDs() {
+		IDRecordTable table = new IDRecordTable(2);
+		Random random = new Random(5);
+		int n = 200000;
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = random.nextInt();
+			assertTrue(table.put("ID" + i, new int[] { i, values[i] }));
+		}
+		assertEquals(n, table.size());
+		for (int i = 0; i < n; i += 7) {
+			table.clear("ID" + i);
+		}
+		for (int i = 0; i < n; i++) {
+			if (i % 7 == 0) {
+				assertNull(table.get("ID" + i));
+			} else {
+				assertTrue(Arrays.equals(new int[] { i, values[i] }, table.get("ID" + i)));
+			}
+		}
+		assertNull(table.get("ID" + n));
+	}
+}
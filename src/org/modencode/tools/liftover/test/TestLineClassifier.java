@@ -0,0 +1,47 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.LineClassifier;
+import org.modencode.tools.liftover.io.LineClassifier.LineType;
+import org.modencode.tools.liftover.io.LineScanner;
+
+public class TestLineClassifier {
+	private static final String[] LINES = {
+		"", " \t ", "##gff-version 3", "  ## genome-build", "#", " # comment", ">I", ">", " >I",
+		"track name=x", " \ttrack type=wig", "track", "tracks x", "I\tsrc\tgene\t1\t2", "variableStep chrom=I",
+		"## \u2028", "# \u0085", ">I \u2029", "track \u2028", "\u2028", "#\u00e9", ">\u00e9", "##\u2028x", "track \u2029"
+	};
+
+	@Test
+	public void testMatchesRegularExpressions() throws IOException {
+		for (String line : LINES) {
+			assertEquals("Type of '" + line + "'", expectedType(line), LineClassifier.classify(line));
+
+			// The bytes may not survive the platform charset, so compare with what they decode to
+			LineScanner scanner = new LineScanner(ByteBuffer.wrap(line.getBytes()));
+			if (scanner.nextLine()) {
+				assertEquals("Type of scanned '" + line + "'", expectedType(scanner.getLine()), LineClassifier.classify(scanner));
+			}
+		}
+	}
+
+	private LineType expectedType(String line) {
+		if (line.matches("^\\s*$")) {
+			return LineType.BLANK;
+		} else if (line.matches("^\\s*##.*")) {
+			return LineType.DIRECTIVE;
+		} else if (line.matches("^\\s*#.*")) {
+			return LineType.COMMENT;
+		} else if (line.startsWith(">")) {
+			return LineType.FASTA_HEADER;
+		} else if (line.matches("^\\s*track .*")) {
+			return LineType.TRACK;
+		}
+		return LineType.DATA;
+	}
+}
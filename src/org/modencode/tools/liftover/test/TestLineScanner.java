@@ -0,0 +1,84 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.LineScanner;
+
+public class TestLineScanner {
+	private static final String TEXT = "I\t10\t20\r\n\r\n  lead\tx\t\t\rlast \t ";
+
+	@Test
+	public void testLinesMatchReadLine() throws IOException {
+		List<String> expected = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new StringReader(TEXT));
+		String line;
+		while ((line = r.readLine()) != null) { expected.add(line); }
+
+		byte[] bytes = TEXT.getBytes();
+		assertEquals("Lines from a buffer should match readLine", expected, readLines(new LineScanner(ByteBuffer.wrap(bytes))));
+		// A tiny stream forces the scanner to refill in the middle of lines and \r\n pairs
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+		assertEquals("Lines from a stream should match readLine", expected, readLines(new LineScanner(in)));
+	}
+
+	@Test
+	public void testSplitMatchesStringSplit() throws IOException {
+		LineScanner scanner = new LineScanner(ByteBuffer.wrap(TEXT.getBytes()));
+		while (scanner.nextLine()) {
+			String line = scanner.getLine();
+			assertFields("Tab split of '" + line + "'", line.split("\t"), scanner, scanner.split((byte)'\t'));
+			assertFields("Whitespace split of '" + line + "'", line.split("\\s+"), scanner, scanner.splitWhitespace());
+			for (int limit = 1; limit <= 5; limit++) {
+				assertFields("Tab split of '" + line + "' limited to " + limit, line.split("\t", limit), scanner, scanner.split((byte)'\t', limit));
+			}
+		}
+	}
+
+	@Test
+	public void testParseInt() throws IOException {
+		LineScanner scanner = new LineScanner(ByteBuffer.wrap("12 -7 +3 0012 2147483647 2147483648 1x -".getBytes()));
+		scanner.nextLine();
+		int n = scanner.splitWhitespace();
+		for (int f = 0; f < n; f++) {
+			String field = scanner.getField(f);
+			Integer expected = null;
+			try { expected = Integer.parseInt(field); } catch (NumberFormatException e) { }
+			Integer parsed = null;
+			try { parsed = scanner.parseInt(f); } catch (NumberFormatException e) { }
+			assertEquals("Parsing '" + field + "'", expected, parsed);
+			assertEquals("'" + field + "' canonical", expected != null && expected > 0 && expected.toString().equals(field),
+					scanner.isCanonicalPositiveInt(f));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		scanner.writeFields(1, 2, out);
+		assertEquals("Copied fields should keep their separators", "-7 +3", out.toString());
+	}
+
+	private List<String> readLines(LineScanner scanner) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		while (scanner.nextLine()) { lines.add(scanner.getLine()); }
+		scanner.close();
+		return lines;
+	}
+	private void assertFields(String message, String[] expected, LineScanner scanner, int count) {
+		assertEquals(message, expected.length, count);
+		for (int f = 0; f < count; f++) {
+			assertEquals(message, expected[f], scanner.getField(f));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserPrincipal;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.MappingCache;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
+import org.modencode.tools.liftover.MappingException;
+
+public class TestMappingCache {
+	private File buildCache() throws Exception {
+		File dir = File.createTempFile("liftover-cache", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		MappingCache.main(new String[] { dir.getPath() });
+		File[] files = dir.listFiles();
+		assertEquals("Cache directory should hold exactly one cache file", 1, files.length);
+		files[0].deleteOnExit();
+		return files[0];
+	}
+
+	@Test
+	public void testMatchesTextFiles() throws Exception {
+		MappingCache cache = MappingCache.open(buildCache());
+		// WS120 is missing the flipped column on most rows
+		int[] releases = { 2, 74, 79, 119, 120, 142, 223, 666 };
+		for (int release : releases) {
+			MappingData cached = cache.load(release);
+			assertNotNull("Release " + release + " should be in the cache", cached);
+			assertEquals("Cached release " + release + " should match the text file",
+					MappingDataFactory.parseRelease(release).toString(), cached.toString());
+		}
+		assertNull("Missing releases aren't in the cache", cache.load(50));
+	}
+
+	@Test
+	public void testRebuiltWhenAReleaseFileChanges() throws Exception {
+		URL url = MappingDataFactory.class.getResource(String.format(MappingDataFactory.RELEASE_FILE_TEMPLATE, 142));
+		assertEquals("Release files should be plain files here", "file", url.getProtocol());
+		File release = new File(url.toURI());
+		long releaseModified = release.lastModified();
+		File cacheFile = buildCache();
+		File dir = cacheFile.getParentFile();
+		long old = 1000000000000L;
+		try {
+			// Nothing changed: the cache is kept
+			cacheFile.setLastModified(old);
+			MappingCache.main(new String[] { dir.getPath() });
+			assertEquals("Cache rebuilt with no release file changed", old, cacheFile.lastModified());
+			// One release file touched, in a directory whose own time doesn't change
+			assertTrue(release.setLastModified(releaseModified - 60000));
+			MappingCache.main(new String[] { dir.getPath() });
+			assertTrue("Cache not rebuilt after a release file changed", cacheFile.lastModified() != old);
+			assertEquals(MappingDataFactory.parseRelease(142).toString(), MappingCache.open(cacheFile).load(142).toString());
+		} finally {
+			release.setLastModified(releaseModified);
+		}
+	}
+
+	@Test
+	public void testRefusesAnotherUsersCache() throws Exception {
+		File cacheFile = buildCache();
+		UserPrincipal nobody;
+		try {
+			nobody = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName("nobody");
+			Files.setOwner(cacheFile.toPath(), nobody);
+		} catch (IOException e) {
+			nobody = null;
+		}
+		assumeTrue("Can't give the cache to another user here", nobody != null);
+		try {
+			MappingCache.main(new String[] { cacheFile.getParent() });
+			fail("A cache another user owns should be refused");
+		} catch (MappingException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRejectsBadFile() throws IOException {
+		File bad = File.createTempFile("liftover-cache", ".bin");
+		bad.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(bad);
+		out.write("not a mapping cache at all".getBytes());
+		out.close();
+		try {
+			MappingCache.open(bad);
+			fail("Opening a file that isn't a cache should fail");
+		} catch (MappingException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MismatchTable;
+
+public class TestMismatchTable {
+	// Pairs in file order; the second shifts positions past it back into the first, and the third is an inversion
+	private MismatchTable table() {
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 100, 110, 10, 100, 100, 0, false); // Delete 10 bases
+		md.addMismatchPair("I", 200, 200, 0, 190, 240, 50, false); // Insert 50 bases
+		md.addMismatchPair("I", 300, 400, 100, 340, 440, 100, true); // Inversion
+		md.addMismatchPair("I", 500, 520, 20, 540, 545, 5, false); // Replace 20 bases with 5
+		md.reverseMismatchLists();
+		return md.getMismatchTable("I");
+	}
+
+	@Test
+	public void testUnflippedShift() {
+		MismatchTable mt = table();
+		assertEquals(4, mt.size());
+		assertEquals(0, mt.getUnflippedShift(4));
+		assertEquals("Replacing 20 bases with 5", -15, mt.getUnflippedShift(3));
+		assertEquals("Inversions don't shift", -15, mt.getUnflippedShift(2));
+		assertEquals(35, mt.getUnflippedShift(1));
+		assertEquals(25, mt.getUnflippedShift(0));
+	}
+
+	@Test
+	public void testMaxShiftedEnd() {
+		MismatchTable mt = table();
+		assertEquals("No pairs", Integer.MIN_VALUE, mt.getMaxShiftedEnd(0));
+		assertEquals(110 - 35, mt.getMaxShiftedEnd(1));
+		assertEquals(200 - -15, mt.getMaxShiftedEnd(2));
+		assertEquals("Inversions aren't counted", 200 - -15, mt.getMaxShiftedEnd(3));
+		assertEquals(520, mt.getMaxShiftedEnd(4));
+	}
+
+	@Test
+	public void testMatchesWalk() {
+		// A position stays past every pair the walk reaches exactly when getMaxShiftedEnd says so
+		MismatchTable mt = table();
+		for (int count = 0; count <= mt.size(); count++) {
+			for (int p = 0; p < 700; p++) {
+				int shifted = p;
+				boolean past = true;
+				for (int i = count - 1; i >= 0; i--) {
+					if (mt.isFlipped(i)) { continue; }
+					past &= shifted >= mt.getPreviousEnd(i);
+					shifted += mt.getThisLength(i) - mt.getPreviousLength(i);
+				}
+				assertEquals("Position " + p + " with " + count + " pairs", past, mt.getMaxShiftedEnd(count) <= p - mt.getUnflippedShift(count));
+				assertEquals("Shift of position " + p + " with " + count + " pairs", shifted - p, mt.getUnflippedShift(0) - mt.getUnflippedShift(count));
+			}
+		}
+	}
+}
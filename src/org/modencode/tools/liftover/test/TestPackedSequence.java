@@ -0,0 +1,58 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.PackedSequence;
+
+public class TestPackedSequence {
+	@Test
+	public void testReadsBackAsGiven() {
+		PackedSequence sequence = new PackedSequence();
+		sequence.append("aaaaacccccGGGGGtttttU");
+		sequence.append("");
+		sequence.append("NNnnuACGTacgtNU");
+		assertEquals(36, sequence.length());
+		assertEquals("aaaaacccccGGGGGtttttUNNnnuACGTacgtNU", sequence.toString());
+
+		byte[] bytes = new byte[6];
+		sequence.getBytes(19, 25, bytes, 0);
+		assertEquals("tUNNnn", new String(bytes));
+	}
+
+	@Test
+	public void testRejectsOtherCharacters() {
+		PackedSequence sequence = new PackedSequence();
+		try {
+			sequence.append("ACGX");
+			fail("X can't be packed");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testLongRandomSequence() {
+		Random random = new Random(3);
+		StringBuilder expected = new StringBuilder();
+		PackedSequence sequence = new PackedSequence();
+		for (int line = 0; line < 500; line++) {
+			StringBuilder bases = new StringBuilder();
+			for (int i = random.nextInt(80); i > 0; i--) {
+				bases.append("acgntuACGNTU".charAt(random.nextInt(12)));
+			}
+			sequence.append(bases);
+			expected.append(bases);
+		}
+		assertEquals(expected.toString(), sequence.toString());
+		for (int i = 0; i < 100; i++) {
+			int start = random.nextInt(expected.length());
+			int end = start + random.nextInt(expected.length() - start + 1);
+			byte[] bytes = new byte[end - start];
+			sequence.getBytes(start, end, bytes, 0);
+			assertEquals(expected.substring(start, end), new String(bytes));
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.BAMIndexReader;
+import org.modencode.tools.liftover.io.ParallelBAMFileWriter;
+import org.modencode.tools.liftover.io.ParallelBGZFInputStream;
+import org.modencode.tools.liftover.io.RawBAMRecord;
+
+public class TestParallelBAMFileWriter {
+	@Test
+	public void testSortsAndIndexes() throws IOException {
+		File bam = new File("test.sorted.out.bam");
+		File bai = new File("test.sorted.out.bam.bai");
+		ParallelBAMFileWriter writer = new ParallelBAMFileWriter(bam, 3);
+		writer.setSortWindow(20);
+		writer.setIndexFile(bai);
+		writer.setSortOrder(SAMFileHeader.SortOrder.coordinate, true);
+		writer.setHeader(makeHeader());
+
+		// Mostly in order, each moved a little, with a few records far too late for the window
+		Random random = new Random(13);
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int i = 0; i < 20000; i++) {
+			int reference = i < 12000 ? 0 : 1;
+			int position = (i % 12000) * 50 + random.nextInt(200);
+			if (i % 5000 == 4999) { position = random.nextInt(position); }
+			records.add(makeRecord(reference, position, 30 + random.nextInt(100), i));
+		}
+		records.add(makeRecord(-1, -1, 0, 20000));
+		records.add(1000, makeRecord(-1, -1, 0, 20001)); // Unplaced, so it goes to the end
+		for (byte[] record : records) {
+			writer.writeRawRecord(record);
+		}
+		writer.close();
+
+		List<byte[]> written = readRecords(bam);
+		assertEquals("Records lost or added", records.size(), written.size());
+		for (int i = 1; i < written.size(); i++) {
+			long previous = RawBAMRecord.getReferenceIndex(written.get(i - 1)) & 0xffffffffL;
+			long reference = RawBAMRecord.getReferenceIndex(written.get(i)) & 0xffffffffL;
+			assertTrue("Record " + i + " out of order", previous < reference || (previous == reference && RawBAMRecord.getPosition(written.get(i - 1)) <= RawBAMRecord.getPosition(written.get(i))));
+		}
+		assertEquals("Unplaced records not kept in order", 20001, getName(written.get(written.size() - 2)));
+		assertEquals("Unplaced records not kept in order", 20000, getName(written.get(written.size() - 1)));
+
+		checkIndex(bam, bai, 2);
+
+		// Each reference's span starts at its first record
+		BAMIndexReader index = new BAMIndexReader(bai);
+		byte[] file = readFile(bam);
+		assertEquals(2, index.getReferenceCount());
+		assertEquals("First record of I", 0, RawBAMRecord.getReferenceIndex(readRecordAt(file, index.getStart(0))));
+		assertArrayEquals("First record of II", written.get(12000), readRecordAt(file, index.getStart(1)));
+		assertEquals("Unplaced records start", 20001, getName(readRecordAt(file, index.getUnplacedStart())));
+	}
+
+	@Test
+	public void testRawRecordsCheckedForOrder() throws IOException {
+		// In order, unplaced last, they're indexed as they're written
+		File bam = new File("test.ordered.out.bam");
+		File bai = new File("test.ordered.out.bam.bai");
+		ParallelBAMFileWriter writer = new ParallelBAMFileWriter(bam, 2);
+		writer.setIndexFile(bai);
+		writer.setSortOrder(SAMFileHeader.SortOrder.coordinate, true);
+		writer.setHeader(makeHeader());
+		for (int i = 0; i < 1000; i++) {
+			writer.writeRawRecord(makeRecord(i / 500, (i % 500) * 40, 50, i));
+		}
+		writer.writeRawRecord(makeRecord(-1, -1, 0, 1000));
+		writer.close();
+		assertEquals(1001, readRecords(bam).size());
+		checkIndex(bam, bai, 1);
+
+		// Out of order into a coordinate-sorted file, with or without an index
+		for (boolean indexed : new boolean[] { true, false }) {
+			writer = new ParallelBAMFileWriter(new File("test.unordered.out.bam"), 2);
+			if (indexed) { writer.setIndexFile(new File("test.unordered.out.bam.bai")); }
+			writer.setSortOrder(SAMFileHeader.SortOrder.coordinate, true);
+			writer.setHeader(makeHeader());
+			writer.writeRawRecord(makeRecord(0, 500, 50, 0));
+			writer.writeRawRecord(makeRecord(1, 100, 50, 1));
+			try {
+				writer.writeRawRecord(makeRecord(0, 600, 50, 2));
+				fail("Out of order record written" + (indexed ? " with an index" : ""));
+			} catch (IllegalArgumentException e) {
+				// As expected
+			}
+			writer.close();
+		}
+
+		// An unsorted file without an index takes them as they come
+		writer = new ParallelBAMFileWriter(new File("test.unsorted.out.bam"), 2);
+		writer.setSortOrder(SAMFileHeader.SortOrder.unsorted, false);
+		writer.setHeader(makeHeader());
+		writer.writeRawRecord(makeRecord(1, 100, 50, 0));
+		writer.writeRawRecord(makeRecord(0, 500, 50, 1));
+		writer.close();
+		assertEquals(2, readRecords(new File("test.unsorted.out.bam")).size());
+	}
+
+	@Test
+	public void testConcatenate() throws IOException {
+		File header = new File("test.header.out.bam");
+		ParallelBAMFileWriter writer = new ParallelBAMFileWriter(header, 2);
+		writer.setHeader(makeHeader());
+		writer.close();
+
+		List<byte[]> records = new ArrayList<byte[]>();
+		List<File> parts = new ArrayList<File>();
+		for (int reference = 0; reference < 2; reference++) {
+			File part = new File("test.part" + reference + ".out.bam");
+			writer = new ParallelBAMFileWriter(part, 2);
+			writer.setHeader(makeHeader());
+			for (int i = 0; i < 5000; i++) {
+				byte[] record = makeRecord(reference, i * 10, 50, records.size());
+				records.add(record);
+				writer.writeRawRecord(record);
+			}
+			writer.close();
+			parts.add(part);
+		}
+		File bam = new File("test.concatenated.out.bam");
+		ParallelBAMFileWriter.concatenate(header, parts, bam);
+
+		List<byte[]> written = readRecords(bam);
+		assertEquals("Records lost or added", records.size(), written.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertArrayEquals("Record " + i, records.get(i), written.get(i));
+		}
+	}
+
+	// Every chunk of every bin should start at a record on the reference that's in the bin
+	private void checkIndex(File bam, File bai, int unplaced) throws IOException {
+		byte[] file = readFile(bam);
+		ByteBuffer index = ByteBuffer.wrap(readFile(bai)).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[4];
+		index.get(magic);
+		assertArrayEquals("BAI magic number", new byte[] { 'B', 'A', 'I', 1 }, magic);
+		int references = index.getInt();
+		assertEquals(2, references);
+		for (int reference = 0; reference < references; reference++) {
+			int bins = index.getInt();
+			assertTrue("No bins for reference " + reference, bins > 0);
+			for (int i = 0; i < bins; i++) {
+				int bin = index.getInt();
+				int chunks = index.getInt();
+				for (int j = 0; j < chunks; j++) {
+					long begin = index.getLong();
+					long end = index.getLong();
+					assertTrue("Empty chunk", end > begin);
+					byte[] record = readRecordAt(file, begin);
+					assertEquals("Chunk on the wrong reference", reference, RawBAMRecord.getReferenceIndex(record));
+					int start = RawBAMRecord.getPosition(record);
+					assertEquals("Chunk starts with a record from another bin", bin, RawBAMRecord.reg2bin(start, start + RawBAMRecord.getReferenceLength(record)));
+				}
+			}
+			int windows = index.getInt();
+			long previous = 0;
+			for (int i = 0; i < windows; i++) {
+				long offset = index.getLong();
+				assertTrue("Linear index goes backwards", offset >= previous);
+				previous = offset;
+			}
+		}
+		assertEquals("Unplaced records", unplaced, index.getLong());
+		assertFalse("Junk after the index", index.hasRemaining());
+	}
+
+	private SAMFileHeader makeHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>();
+		sequences.add(new SAMSequenceRecord("I", 1000000));
+		sequences.add(new SAMSequenceRecord("II", 1000000));
+		header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+		return header;
+	}
+	// A read named with its number, matching length bases
+	private byte[] makeRecord(int reference, int position, int length, int name) {
+		byte[] readName = (name + "\0").getBytes();
+		ByteBuffer b = ByteBuffer.allocate(RawBAMRecord.MIN_LENGTH + readName.length + (length > 0 ? 4 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(b.capacity() - 4).putInt(reference).putInt(position).put((byte)readName.length).put((byte)255)
+			.putShort((short)(length > 0 ? RawBAMRecord.reg2bin(position, position + length) : 4680)).putShort((short)(length > 0 ? 1 : 0))
+			.putShort((short)(length > 0 ? 0 : RawBAMRecord.FLAG_UNMAPPED)).putInt(0).putInt(-1).putInt(-1).putInt(0).put(readName);
+		if (length > 0) {
+			b.putInt(length << 4);
+		}
+		return b.array();
+	}
+	private int getName(byte[] record) {
+		return Integer.parseInt(new String(record, RawBAMRecord.MIN_LENGTH, (record[12] & 0xff) - 1));
+	}
+
+	private List<byte[]> readRecords(File bam) throws IOException {
+		DataInputStream in = new DataInputStream(new ParallelBGZFInputStream(new FileInputStream(bam), 2));
+		skipHeader(in);
+		List<byte[]> records = new ArrayList<byte[]>();
+		byte[] record;
+		while ((record = readRecord(in)) != null) {
+			records.add(record);
+		}
+		in.close();
+		return records;
+	}
+	private void skipHeader(DataInputStream in) throws IOException {
+		byte[] magic = new byte[4];
+		in.readFully(magic);
+		assertArrayEquals("BAM magic number", new byte[] { 'B', 'A', 'M', 1 }, magic);
+		in.readFully(new byte[readInt(in)]);
+		for (int references = readInt(in); references > 0; references--) {
+			in.readFully(new byte[readInt(in) + 4]);
+		}
+	}
+	private byte[] readRecordAt(byte[] file, long virtualOffset) throws IOException {
+		int address = (int)(virtualOffset >>> 16);
+		DataInputStream in = new DataInputStream(new ParallelBGZFInputStream(new ByteArrayInputStream(Arrays.copyOfRange(file, address, file.length)), 1));
+		in.readFully(new byte[(int)(virtualOffset & 0xffff)]);
+		byte[] record = readRecord(in);
+		in.close();
+		return record;
+	}
+	private byte[] readRecord(DataInputStream in) throws IOException {
+		byte[] size = new byte[4];
+		if (in.read(size, 0, 1) < 1) { return null; }
+		in.readFully(size, 1, 3);
+		int length = ByteBuffer.wrap(size).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		byte[] record = new byte[4 + length];
+		System.arraycopy(size, 0, record, 0, 4);
+		in.readFully(record, 4, length);
+		return record;
+	}
+	private int readInt(DataInputStream in) throws IOException {
+		byte[] b = new byte[4];
+		in.readFully(b);
+		return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt();
+	}
+	private byte[] readFile(File file) throws IOException {
+		byte[] b = new byte[(int)file.length()];
+		InputStream in = new FileInputStream(file);
+		new DataInputStream(in).readFully(b);
+		in.close();
+		return b;
+	}
+}
@@ -0,0 +1,84 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.ParallelBGZFInputStream;
+import org.modencode.tools.liftover.io.ParallelBGZFOutputStream;
+
+public class TestParallelBGZF {
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(7);
+		for (int size : new int[] { 0, 1, 65279, 65280, 65281, 1000000 }) {
+			byte[] data = makeData(random, size);
+			byte[] compressed = compress(data, 4);
+			assertArrayEquals("Didn't get back " + size + " bytes", data, readAll(new ParallelBGZFInputStream(new ByteArrayInputStream(compressed), 4)));
+			// BGZF is also plain (multi-member) gzip
+			assertArrayEquals("Not readable as gzip: " + size + " bytes", data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+		}
+	}
+
+	@Test
+	public void testSameBlocksForAnyThreadCount() throws IOException {
+		byte[] data = makeData(new Random(11), 500000);
+		byte[] oneThread = compress(data, 1);
+		assertArrayEquals("Block order depends on the number of threads", oneThread, compress(data, 8));
+
+		// Ends with the empty EOF block
+		byte[] eof = { 31, (byte)139, 8, 4, 0, 0, 0, 0, 0, (byte)255, 6, 0, 'B', 'C', 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+		for (int i = 0; i < eof.length; i++) {
+			assertEquals("EOF block byte " + i, eof[i], oneThread[oneThread.length - eof.length + i]);
+		}
+	}
+
+	@Test
+	public void testRejectsCorruptBlock() throws IOException {
+		byte[] compressed = compress(makeData(new Random(3), 100000), 2);
+		compressed[compressed.length / 2] ^= 0x55;
+		try {
+			readAll(new ParallelBGZFInputStream(new ByteArrayInputStream(compressed), 2));
+			fail("Read a corrupt block without an error");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	// Text-like, so it compresses some, with an incompressible stretch in the middle
+	private byte[] makeData(Random random, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (i > size / 3 && i < size / 2) ? (byte)random.nextInt() : (byte)"ACGT\t\n0123456789".charAt(random.nextInt(16));
+		}
+		return data;
+	}
+	private byte[] compress(byte[] data, int threads) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelBGZFOutputStream out = new ParallelBGZFOutputStream(compressed, threads);
+		// In uneven pieces, to cross block boundaries
+		for (int off = 0; off < data.length; ) {
+			int n = Math.min(data.length - off, 1 + (off % 70001));
+			out.write(data, off, n);
+			off += n;
+		}
+		out.close();
+		return compressed.toByteArray();
+	}
+	private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] buf = new byte[9999];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			res.write(buf, 0, n);
+		}
+		in.close();
+		return res.toByteArray();
+	}
+}
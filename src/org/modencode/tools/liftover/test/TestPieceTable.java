@@ -0,0 +1,80 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.PackedSequence;
+import org.modencode.tools.liftover.PieceTable;
+
+public class TestPieceTable {
+	private static final String ORIGINAL = "aaaaacccccGGGGGtttttU";
+
+	@Test
+	public void testUnchanged() {
+		PieceTable table = new PieceTable(ORIGINAL.length());
+		assertFalse(table.isChanged());
+		assertEquals(ORIGINAL, edited(table, ORIGINAL));
+		table.splice(3, 0, 0);
+		assertFalse("An empty splice changes nothing", table.isChanged());
+	}
+
+	@Test
+	public void testSplices() {
+		PieceTable table = new PieceTable(ORIGINAL.length());
+		// Walked back from the end, as a release's mismatches are
+		table.splice(20, 1, 0);
+		table.splice(10, 5, 2);
+		table.splice(5, 0, 3);
+		assertEquals(20, table.length());
+		assertEquals("aaaaaXXXcccccXXttttt", edited(table, ORIGINAL));
+		// Then forwards, which applies the pending splices first
+		table.splice(0, 2, 1);
+		table.splice(17, 5, 0);
+		assertEquals("XaaaXXXcccccXXttt", edited(table, ORIGINAL));
+		assertTrue(table.isChanged());
+	}
+
+	@Test
+	public void testMatchesStringBuilder() {
+		Random random = new Random(11);
+		for (int round = 0; round < 200; round++) {
+			StringBuilder original = new StringBuilder();
+			int originalLength = random.nextInt(200);
+			for (int i = 0; i < originalLength; i++) {
+				original.append("acgt".charAt(random.nextInt(4)));
+			}
+			PieceTable table = new PieceTable(originalLength);
+			StringBuilder expected = new StringBuilder(original);
+			int offset = originalLength;
+			for (int edit = 0; edit < 30; edit++) {
+				// Mostly before the last edit, sometimes anywhere
+				offset = random.nextInt(5) == 0 ? random.nextInt(expected.length() + 1) : random.nextInt(offset + 1);
+				int delete = random.nextInt(10);
+				int insert = random.nextInt(5);
+				table.splice(offset, delete, insert);
+				expected.delete(offset, offset + delete);
+				for (int i = 0; i < insert; i++) { expected.insert(offset, 'X'); }
+				assertEquals(expected.length(), table.length());
+				offset = Math.min(offset, expected.length());
+			}
+			assertEquals("Round " + round, expected.toString(), edited(table, original.toString()));
+			assertEquals(!expected.toString().equals(original.toString()), table.isChanged());
+		}
+	}
+
+	private String edited(PieceTable table, String original) {
+		PackedSequence packed = new PackedSequence();
+		packed.append(original);
+		byte[] bytes = new byte[table.length()];
+		table.getBytes(0, bytes.length, bytes, 0, packed, (byte)'X');
+		String edited = new String(bytes);
+		// And a piece at a time
+		if (bytes.length > 3) {
+			table.getBytes(1, bytes.length - 2, bytes, 0, packed, (byte)'X');
+			assertEquals(edited.substring(1, bytes.length - 2), new String(bytes, 0, bytes.length - 3));
+		}
+		return edited;
+	}
+}
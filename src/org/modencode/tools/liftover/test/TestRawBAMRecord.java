@@ -0,0 +1,58 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.RawBAMRecord;
+
+public class TestRawBAMRecord {
+	@Test
+	public void testReg2Bin() {
+		// Values from the SAM specification's binning scheme
+		assertEquals(4681, RawBAMRecord.reg2bin(0, 100));
+		assertEquals(4681 + 1, RawBAMRecord.reg2bin(16384, 16500));
+		assertEquals(585, RawBAMRecord.reg2bin(16000, 17000));
+		assertEquals(73, RawBAMRecord.reg2bin(0, 200000));
+		assertEquals(0, RawBAMRecord.reg2bin(0, 1 << 27));
+	}
+
+	@Test
+	public void testFields() {
+		byte[] record = makeRecord(99, 1000, new int[] { 5 << 4 | 4, 10 << 4, 2 << 4 | 1, 3 << 4 | 2, 100 << 4 | 3, 7 << 4 });
+		assertEquals(99, RawBAMRecord.getPosition(record));
+		assertEquals(RawBAMRecord.FLAG_PAIRED, RawBAMRecord.getFlags(record) & RawBAMRecord.FLAG_PAIRED);
+		assertEquals(1000, RawBAMRecord.getNextPosition(record));
+		assertEquals(10 + 3 + 100 + 7, RawBAMRecord.getReferenceLength(record));
+
+		RawBAMRecord.setPosition(record, 150);
+		RawBAMRecord.setNextPosition(record, 1050);
+		assertEquals(150, RawBAMRecord.getPosition(record));
+		assertEquals(1050, RawBAMRecord.getNextPosition(record));
+		assertEquals(10 + 3 + 100 + 7, RawBAMRecord.getReferenceLength(record));
+	}
+
+	@Test
+	public void testBadCigar() {
+		// An operator past P
+		assertEquals(-1, RawBAMRecord.getReferenceLength(makeRecord(0, 0, new int[] { 10 << 4 | 9 })));
+		// More operators than the record holds
+		byte[] record = makeRecord(0, 0, new int[] { 10 << 4 });
+		record[16] = 2;
+		assertEquals(-1, RawBAMRecord.getReferenceLength(record));
+	}
+
+	// A paired read named "r1" with the given cigar and no sequence
+	private byte[] makeRecord(int position, int nextPosition, int[] cigar) {
+		ByteBuffer b = ByteBuffer.allocate(RawBAMRecord.MIN_LENGTH + 3 + 4 * cigar.length).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(b.capacity() - 4).putInt(0).putInt(position).put((byte)3).put((byte)255).putShort((short)0)
+			.putShort((short)cigar.length).putShort((short)(RawBAMRecord.FLAG_PAIRED | 0x40)).putInt(0)
+			.putInt(0).putInt(nextPosition).putInt(0).put(new byte[] { 'r', '1', 0 });
+		for (int op : cigar) {
+			b.putInt(op);
+		}
+		return b.array();
+	}
+}
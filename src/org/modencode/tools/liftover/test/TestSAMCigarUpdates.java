@@ -79,6 +79,24 @@ public class TestSAMCigarUpdates {
 		assertEquals("Couldn't delete 1M at beginning of cigar string", "1I4M5D5I5M", cigarToString(c));
 	}
 
+	@Test
+	public void testLongSkippedRegion() {
+		SAMUpdater su = new SAMUpdater(new ArrayList<MappingData>());
+		ArrayList<CigarElement> testElements = new ArrayList<CigarElement>();
+		testElements.add(new CigarElement(25, CigarOperator.MATCH_OR_MISMATCH));
+		testElements.add(new CigarElement(100000, CigarOperator.SKIPPED_REGION));
+		testElements.add(new CigarElement(25, CigarOperator.MATCH_OR_MISMATCH));
+
+		Cigar c = su.updateCigarForInsertedReference(new Cigar(testElements), 50000, 3);
+		assertEquals("Couldn't insert into a long N region", "25M100003N25M", cigarToString(c));
+
+		c = su.updateCigarForInsertedReference(new Cigar(testElements), 100030, 3);
+		assertEquals("Couldn't insert into M region after a long N region", "25M100000N5M3D20M", cigarToString(c));
+
+		c = su.updateCigarForDeletedReference(new Cigar(testElements), 20, 100010);
+		assertEquals("Couldn't delete across a long N region", "20M10I20M", cigarToString(c));
+	}
+
 	private String cigarToString(Cigar c) {
 		String res = "";
 		for (CigarElement e : c.getCigarElements()) {
@@ -1,9 +1,36 @@
 package org.modencode.tools.liftover.test;
 
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
 
 import org.junit.Test;
 import org.modencode.tools.liftover.Liftover;
+import org.modencode.tools.liftover.MappingData;
+import org.modencode.tools.liftover.MappingDataFactory;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.io.SAMFileWriterFactoryCompressed;
+import org.modencode.tools.liftover.updater.SAMUpdater;
 
 import com.martiansoftware.jsap.JSAPException;
 
@@ -45,5 +72,267 @@ public class TestSAMLiftover {
 		Liftover.main(args);
 		
 	}
+	@Test
+	public void testThreadedSAMLiftoverMatchesSequential() throws MappingException, IOException {
+		// Reads spread along I, some across the WS215 changes to it, and a line that can't be read near the end
+		int[] changes = { 221350, 232020, 742830, 4184620, 7537800, 9949430 };
+		PrintWriter sam = new PrintWriter(new FileWriter("test.many.out.sam"));
+		for (String line : readLines("test.sam")) {
+			if (line.startsWith("@")) { sam.println(line); }
+		}
+		for (int i = 0; i < 3000; i++) {
+			int start = (i % 500 == 0) ? changes[i / 500] : 1 + (i * 3299) % 9900000;
+			sam.println("read_pair_" + i + "\t67\tI\t" + start + "\t255\t50M\t=\t" + (start + 70) + "\t120\tAACTGAATCAGTGCATGAGGATATGCCATTAATTCGTCTGAAAGGAGTTG\t*");
+			sam.println("read_pair_" + i + "\t131\tI\t" + (start + 70) + "\t255\t50M\t=\t" + start + "\t-120\tAAGAAAAGTTTCGCAATGGTAAAATGGTTGGCAGAGAATATGGCTGATGA\t*\tNM:i:0");
+			if (i == 2990) { sam.println("bad_read\t0\tI\tnot_a_position"); }
+		}
+		sam.close();
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(190, 220).getMappingData();
+		
+		// SAM text, lifted on the pool a batch of lines at a time
+		SAMUpdater sequential = new SAMUpdater(mappingData);
+		sequential.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		sequential.processFile(new File("test.many.out.sam"), new File("test.sequential.out.sam"));
+		SAMUpdater threaded = new SAMUpdater(mappingData);
+		threaded.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		threaded.setThreads(4);
+		threaded.setBatchSize(7); // Lots of small batches, so their order matters
+		threaded.processFile(new File("test.many.out.sam"), new File("test.threaded.out.sam"));
+		List<String> expected = readLines("test.sequential.out.sam");
+		assertEquals("Lines lost", 2 * 2991, records(expected).size());
+		assertEquals("Lifting on several threads changed the output", expected, readLines("test.threaded.out.sam"));
+		
+		// Records read and written by Picard, lifted on the reader/worker/writer pipeline
+		sequential.processFile(new File("test.many.out.sam"), new File("test.sequential.out.bam"));
+		threaded.processFile(new File("test.many.out.sam"), new File("test.threaded.out.bam"));
+		expected = readBAMRecords("test.sequential.out.bam");
+		assertEquals("Records lost", 2 * 2991, expected.size());
+		assertEquals("Lifting on several threads changed the BAM output", expected, readBAMRecords("test.threaded.out.bam"));
+	}
+	
+	@Test
+	public void testSAMTextLiftoverCopiesTags() throws MappingException, IOException {
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(190, 220).getMappingData();
+		SAMUpdater samu = new SAMUpdater(mappingData);
+		samu.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		samu.processFile(new File("test2.sam"), new File("test2.text.out.sam"));
+
+		// The alignment columns are lifted as before; the rest of each line is as it was, malformed tags and all
+		List<String> input = records(readLines("test2.sam"));
+		List<String> expected = records(readLines("test2_goal.sam"));
+		List<String> lifted = records(readLines("test2.text.out.sam"));
+		assertEquals(expected.size(), lifted.size());
+		for (int i = 0; i < lifted.size(); i++) {
+			String[] expectedFields = expected.get(i).split("\t", 12);
+			String[] inputFields = input.get(i).split("\t", 12);
+			StringBuilder line = new StringBuilder(expectedFields[0]);
+			for (int f = 1; f < 11; f++) {
+				line.append('\t').append(expectedFields[f]);
+			}
+			if (inputFields.length > 11) {
+				line.append('\t').append(inputFields[11]);
+			}
+			assertEquals("Record " + i, line.toString(), lifted.get(i));
+		}
+
+		// The header is written as Picard's writer writes it, sort order included
+		samu.processFile(new File("test.sam"), new File("test.text.out.sam"));
+		SAMUpdater picard = new SAMUpdater(mappingData);
+		picard.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
+		picard.processFile(new File("test.sam"), new File("test.picard.out.sam"));
+		List<String> header = headerLines(readLines("test.text.out.sam"));
+		assertTrue("Sort order missing from " + header.get(0), header.get(0).startsWith("@HD\t") && header.get(0).endsWith("\tSO:unsorted"));
+		assertEquals(headerLines(readLines("test.picard.out.sam")), header);
+
+		// Validating, tags are read, and a line Picard can't read stops the lift
+		SAMUpdater strict = new SAMUpdater(mappingData);
+		strict.setValidationStringency(SAMFileReader.ValidationStringency.STRICT);
+		strict.processFile(new File("test2.sam"), new File("test2.strict.out.sam"));
+		assertTrue("Malformed lines lifted under STRICT", records(readLines("test2.strict.out.sam")).size() < input.size());
+	}
+
+	@Test
+	public void testByReferenceWithSamtoolsIndex() throws MappingException, IOException {
+		// Reads on several chromosomes, sorted into BAM, with an index that has samtools' read count pseudo-bins
+		SAMFileHeader header = new SAMFileReader(new File("test2.sam")).getFileHeader();
+		File bam = new File("test2.indexed.out.bam");
+		SAMFileWriter writer = new SAMFileWriterFactoryCompressed().setSortWindow(100).setCreateIndex(true).makeSAMOrBAMWriter(header, true, bam);
+		String[] chromosomes = { "I", "II", "III", "IV", "V", "X" };
+		for (int i = 0; i < 600; i++) {
+			SAMRecord r = new SAMRecord(header);
+			r.setReadName("read" + i);
+			r.setReferenceName(chromosomes[i % chromosomes.length]);
+			r.setAlignmentStart(1 + (i * 7919) % 10000000);
+			r.setCigarString("36M");
+			r.setReadString("ACGAATCCAAACAACTACGTACAACAAAACAAATAT");
+			r.setBaseQualityString("*");
+			writer.addAlignment(r);
+		}
+		writer.close();
+		addMetadataBins(new File("test2.indexed.out.bam.bai"));
+
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(190, 220).getMappingData();
+		SAMUpdater whole = new SAMUpdater(mappingData);
+		whole.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
+		whole.processFile(bam, new File("test2.whole.out.bam"));
+
+		SAMUpdater byReference = new SAMUpdater(mappingData);
+		byReference.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
+		byReference.setByReference(true);
+		byReference.setThreads(3);
+		byReference.processFile(bam, new File("test2.byref.out.bam"));
+
+		List<String> expected = readBAMRecords("test2.whole.out.bam");
+		assertEquals("Records lost", 600, expected.size());
+		assertEquals("Lifting by reference changed the output", expected, readBAMRecords("test2.byref.out.bam"));
+	}
+
+	@Test
+	public void testByReferenceKeepsDeletedReadsLast() throws MappingException, IOException {
+		// WS153 deletes V:5506538-5509321, so the reads in it there end up unplaced
+		SAMFileHeader header = new SAMFileReader(new File("test2.sam")).getFileHeader();
+		File bam = new File("test2.deleted.out.bam");
+		SAMFileWriter writer = new SAMFileWriterFactoryCompressed().setSortWindow(100).setCreateIndex(true).makeSAMOrBAMWriter(header, true, bam);
+		String[] chromosomes = { "I", "II", "III", "IV", "V", "X" };
+		for (int i = 0; i < 600; i++) {
+			SAMRecord r = new SAMRecord(header);
+			r.setReadName("read" + i);
+			r.setReferenceName(chromosomes[i % chromosomes.length]);
+			r.setAlignmentStart(5506000 + (i * 17) % 3000);
+			r.setCigarString("36M");
+			r.setReadString("ACGAATCCAAACAACTACGTACAACAAAACAAATAT");
+			r.setBaseQualityString("*");
+			writer.addAlignment(r);
+		}
+		writer.close();
+
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(152, 153).getMappingData();
+		for (SAMFileReader.ValidationStringency stringency : new SAMFileReader.ValidationStringency[] { SAMFileReader.ValidationStringency.SILENT, SAMFileReader.ValidationStringency.LENIENT }) {
+			SAMUpdater byReference = new SAMUpdater(mappingData);
+			byReference.setValidationStringency(stringency);
+			byReference.setByReference(true);
+			byReference.setThreads(3);
+			byReference.processFile(bam, new File("test2.deleted.byref.out.bam"));
+
+			SAMFileReader reader = new SAMFileReader(new File("test2.deleted.byref.out.bam"));
+			reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+			int records = 0, deleted = 0;
+			long lastReference = 0;
+			int lastStart = Integer.MIN_VALUE;
+			for (SAMRecord r : reader) {
+				long reference = r.getReferenceIndex() & 0xffffffffL;
+				assertTrue(stringency + ": " + r.getReadName() + " out of coordinate order", reference > lastReference || (reference == lastReference && r.getAlignmentStart() >= lastStart));
+				lastReference = reference;
+				lastStart = r.getAlignmentStart();
+				records++;
+				if (r.getReadUnmappedFlag()) { deleted++; }
+			}
+			reader.close();
+			assertEquals(stringency + ": records lost", 600, records);
+			assertTrue(stringency + ": no reads deleted", deleted > 0);
+		}
+	}
+
+	@Test
+	public void testSyncMatesSAMLiftover() throws MappingException, IOException {
+		List<MappingData> mappingData = MappingDataFactory.generateComposedMapping(180, 190).getMappingData();
+		SAMUpdater samu = new SAMUpdater(mappingData);
+		samu.setSyncMates(true);
+		samu.processFile(new File("test.sam"), new File("test.sync.out.sam"));
+		
+		// Each read's RNEXT and PNEXT are where its mate ended up
+		Map<String, String[]> reads = new HashMap<String, String[]>();
+		for (String line : readLines("test.sync.out.sam")) {
+			if (line.startsWith("@")) { continue; }
+			String[] fields = line.split("\t");
+			int flags = Integer.parseInt(fields[1]);
+			reads.put(fields[0] + "/" + ((flags & 0x40) != 0 ? 1 : 2), fields);
+		}
+		for (Map.Entry<String, String[]> read : reads.entrySet()) {
+			String[] fields = read.getValue();
+			String name = read.getKey();
+			String[] mate = reads.get(name.substring(0, name.length() - 1) + (name.endsWith("1") ? 2 : 1));
+			if (mate == null || (Integer.parseInt(fields[1]) & 0x8) != 0) { continue; }
+			assertEquals("Mate position of " + name, mate[3], fields[7]);
+			assertEquals("Mate reference of " + name, mate[2].equals(fields[2]) ? "=" : mate[2], fields[6]);
+		}
+	}
+	
+	// Rewrite a BAI index with bin 37450 first in each reference's bins, as samtools writes it:
+	// the reference's span, then its mapped and unmapped read counts, in place of two chunks
+	private void addMetadataBins(File bai) throws IOException {
+		byte[] b = new byte[(int)bai.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(bai));
+		in.readFully(b);
+		in.close();
+		ByteBuffer index = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer rewritten = ByteBuffer.allocate(b.length + 64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		rewritten.putInt(index.getInt()); // Magic number
+		int references = index.getInt();
+		rewritten.putInt(references);
+		for (int reference = 0; reference < references; reference++) {
+			int bins = index.getInt();
+			int binsStart = index.position();
+			long begin = Long.MAX_VALUE, end = 0;
+			int mapped = 0; // Stands in for the read count; all that matters is that it isn't an offset
+			for (int i = 0; i < bins; i++) {
+				index.getInt();
+				for (int chunks = index.getInt(); chunks > 0; chunks--) {
+					begin = Math.min(begin, index.getLong());
+					end = Math.max(end, index.getLong());
+					mapped++;
+				}
+			}
+			if (bins == 0) {
+				rewritten.putInt(0);
+			} else {
+				rewritten.putInt(bins + 1).putInt(37450).putInt(2).putLong(begin).putLong(end).putLong(mapped).putLong(0);
+			}
+			rewritten.put(b, binsStart, index.position() - binsStart);
+			int windows = index.getInt();
+			rewritten.putInt(windows);
+			for (int i = 0; i < windows; i++) {
+				rewritten.putLong(index.getLong());
+			}
+		}
+		rewritten.put(b, index.position(), index.remaining());
+		OutputStream out = new FileOutputStream(bai);
+		out.write(rewritten.array(), 0, rewritten.position());
+		out.close();
+	}
+	private List<String> readBAMRecords(String file) {
+		SAMFileReader reader = new SAMFileReader(new File(file));
+		reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		List<String> records = new ArrayList<String>();
+		for (SAMRecord r : reader) {
+			records.add(r.getSAMString());
+		}
+		reader.close();
+		return records;
+	}
+	private List<String> readLines(String file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+	}
+	private List<String> headerLines(List<String> lines) {
+		List<String> header = new ArrayList<String>();
+		for (String line : lines) {
+			if (line.startsWith("@")) { header.add(line); }
+		}
+		return header;
+	}
+	private List<String> records(List<String> lines) {
+		List<String> records = new ArrayList<String>();
+		for (String line : lines) {
+			if (!line.startsWith("@")) { records.add(line); }
+		}
+		return records;
+	}
 
 }
@@ -0,0 +1,55 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.updater.SAMMateIndex;
+
+public class TestSAMMateIndex {
+	@Test
+	public void testFindsMatesInFileOrder() {
+		// Few enough records in RAM that the index is spilled to disk several times over
+		SAMMateIndex index = new SAMMateIndex(100);
+		Random random = new Random(5);
+		Map<String, Integer> starts = new HashMap<String, Integer>();
+		int records = 2000;
+		for (int i = 0; i < records; i++) {
+			String name = "read" + random.nextInt(records / 2);
+			int segment = random.nextBoolean() ? SAMMateIndex.FIRST_OF_PAIR : SAMMateIndex.SECOND_OF_PAIR;
+			String key = name + "/" + segment;
+			if (!starts.containsKey(key)) {
+				starts.put(key, i * 10);
+				index.addRead(name, segment, i % 3, i * 10, i * 10 + 49, i % 7 == 0);
+			}
+			index.addMateRequest(name, 3 - segment, i);
+		}
+		index.doneAdding();
+
+		// Same sequence again, asking for each record's mate
+		random = new Random(5);
+		int found = 0;
+		for (int i = 0; i < records; i++) {
+			String name = "read" + random.nextInt(records / 2);
+			int segment = random.nextBoolean() ? SAMMateIndex.FIRST_OF_PAIR : SAMMateIndex.SECOND_OF_PAIR;
+			Integer mateStart = starts.get(name + "/" + (3 - segment));
+			SAMMateIndex.Mate mate = index.getMate(i);
+			if (mateStart == null) {
+				assertNull("Found a mate for record " + i + " that isn't there", mate);
+			} else {
+				assertNotNull("No mate for record " + i, mate);
+				int mateRecord = mateStart / 10;
+				assertEquals(mateStart.intValue(), mate.getStart());
+				assertEquals(mateStart + 49, mate.getEnd());
+				assertEquals(mateRecord % 3, mate.getReferenceIndex());
+				assertEquals(mateRecord % 7 == 0, mate.isUnmapped());
+				found++;
+			}
+		}
+		index.cleanup();
+		assertTrue("Too few mates to be a test", found > records / 4);
+	}
+}
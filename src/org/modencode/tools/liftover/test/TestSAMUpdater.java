@@ -4,11 +4,14 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
+import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.junit.Test;
 import org.modencode.tools.liftover.MappingData;
@@ -890,4 +893,90 @@ public class TestSAMUpdater {
 		}
 		writer.close();
 	}
+
+	// Reads slid across each change, lifted through updateFeature's shortcut and through the full walk
+	@Test
+	public void testShiftMatchesWalkForReadEndingInMismatch() throws MappingException {
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 1000, 1010, 10, 1000, 1000, 0, false); // Delete 10 bases
+		md.addMismatchPair("I", 5000, 5000, 0, 4990, 5010, 20, false); // Insert 20 bases
+		md.reverseMismatchLists();
+		assertShiftMatchesWalk(md, 900, 1100, 0);
+	}
+	@Test
+	public void testShiftMatchesWalkForShiftIntoLaterMismatch() throws MappingException {
+		// Walking down from the end, the deletion at 2000 moves reads past 2500 back over the one at 1500
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 1500, 2200, 700, 1500, 1500, 0, false);
+		md.addMismatchPair("I", 2000, 2500, 500, 2000, 2000, 0, false);
+		md.reverseMismatchLists();
+		assertShiftMatchesWalk(md, 2400, 2800, 0);
+	}
+	@Test
+	public void testShiftMatchesWalkForMateAcrossMismatch() throws MappingException {
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 500, 500, 0, 500, 502, 2, false); // Insert 2 bases
+		md.addMismatchPair("I", 1100, 1100, 0, 1102, 1105, 3, false); // Insert 3 bases
+		md.reverseMismatchLists();
+		assertShiftMatchesWalk(md, 800, 1200, 200);
+	}
+	@Test
+	public void testShiftMatchesWalkForFlippedPair() throws MappingException {
+		MappingData md = new MappingData(1);
+		md.addMismatchPair("I", 2000, 2000, 0, 2000, 2010, 10, false); // Insert 10 bases
+		md.addMismatchPair("I", 3000, 3100, 100, 3010, 3110, 100, true); // Inversion
+		md.reverseMismatchLists();
+		assertShiftMatchesWalk(md, 1900, 3200, 0);
+		assertShiftMatchesWalk(md, 2700, 3200, 150);
+	}
+
+	// Lift a read starting at each position from first to last (and its mate, mateOffset past it,
+	// if that isn't 0) both ways, and check they agree
+	private void assertShiftMatchesWalk(MappingData md, int first, int last, int mateOffset) throws MappingException {
+		ArrayList<MappingData> mappingData = new ArrayList<MappingData>();
+		mappingData.add(md);
+		SAMUpdater updater = new SAMUpdater(mappingData);
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("I", 9999999));
+		for (int start = first; start <= last; start++) {
+			List<SAMRecord> reads = new ArrayList<SAMRecord>();
+			if (mateOffset == 0) {
+				reads.add(read(header, start, 0, 0));
+			} else {
+				// Each of the pair in turn, so both the read and the mate can be the first
+				reads.add(read(header, start, start + mateOffset, mateOffset + 36));
+				reads.add(read(header, start + mateOffset, start, -(mateOffset + 36)));
+			}
+			for (SAMRecord r : reads) {
+				SAMRecord walked;
+				try {
+					walked = (SAMRecord)r.clone();
+				} catch (CloneNotSupportedException e) {
+					throw new AssertionError(e);
+				}
+				String before = r.getSAMString();
+				updater.updateFeature(updater.new SAMFeature(r));
+				updater.updateFeatureByPairs(updater.new SAMFeature(walked));
+				assertEquals("Lifting " + before, walked.getSAMString(), r.getSAMString());
+			}
+		}
+	}
+	private SAMRecord read(SAMFileHeader header, int start, int mateStart, int insertSize) {
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName("read" + start);
+		r.setReferenceName("I");
+		r.setAlignmentStart(start);
+		r.setCigarString("36M");
+		r.setReadString("ACGAATCCAAACAACTACGTACAACAAAACAAATAT");
+		r.setBaseQualityString("*");
+		if (mateStart > 0) {
+			r.setReadPairedFlag(true);
+			r.setFirstOfPairFlag(start < mateStart);
+			r.setSecondOfPairFlag(start > mateStart);
+			r.setMateReferenceName("I");
+			r.setMateAlignmentStart(mateStart);
+			r.setInferredInsertSize(insertSize);
+		}
+		return r;
+	}
 }
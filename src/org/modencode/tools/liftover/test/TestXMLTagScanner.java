@@ -0,0 +1,44 @@
+package org.modencode.tools.liftover.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.modencode.tools.liftover.io.XMLTagScanner;
+
+public class TestXMLTagScanner {
+	private static final String XML = "<?xml version=\"1.0\"?>\n<!-- not -- well formed ----->\n"
+		+ "<feature id=\"f>1\" x='2'>\n  <name>II</name><empty/>\n</feature>\n< notatag";
+
+	@Test
+	public void testTagsAndOffsets() throws IOException {
+		XMLTagScanner scanner = new XMLTagScanner(new ByteArrayInputStream(XML.getBytes("ISO-8859-1")));
+		assertEquals(XMLTagScanner.OTHER, scanner.next());
+		assertEquals(XMLTagScanner.OTHER, scanner.next());
+		assertEquals("<!-- not -- well formed ----->", XML.substring((int)scanner.getTagStart(), (int)scanner.getTagEnd()));
+
+		assertEquals(XMLTagScanner.START_TAG, scanner.next());
+		assertTrue(scanner.nameEquals("feature"));
+		assertEquals("f>1", scanner.getAttribute("id"));
+		assertEquals("2", scanner.getAttribute("x"));
+		assertNull(scanner.getAttribute("name"));
+		assertEquals("<feature id=\"f>1\" x='2'>", XML.substring((int)scanner.getTagStart(), (int)scanner.getTagEnd()));
+
+		assertEquals(XMLTagScanner.START_TAG, scanner.next());
+		assertEquals("name", scanner.getName());
+		assertEquals(XMLTagScanner.END_TAG, scanner.next());
+		assertEquals("name", scanner.getName());
+		assertEquals("II", scanner.getText());
+		assertEquals(XMLTagScanner.EMPTY_TAG, scanner.next());
+		assertEquals("empty", scanner.getName());
+		assertEquals(XMLTagScanner.END_TAG, scanner.next());
+		assertEquals("</feature>", XML.substring((int)scanner.getTagStart(), (int)scanner.getTagEnd()));
+
+		// A < that doesn't start a tag is text
+		assertEquals(XMLTagScanner.END_OF_INPUT, scanner.next());
+		assertEquals("\n< notatag", scanner.getText());
+		assertEquals(XML.length(), scanner.getTagStart());
+	}
+}
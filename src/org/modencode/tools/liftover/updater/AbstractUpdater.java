@@ -8,16 +8,24 @@ import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 import org.modencode.tools.liftover.AbstractFeature;
+import org.modencode.tools.liftover.ComposedMapping;
+import org.modencode.tools.liftover.LiftResult;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.MismatchTable;
 
 public class AbstractUpdater {
 	protected List<MappingData> mappingData;
+	protected ComposedMapping composedMapping;
 	private boolean verbose = false;
+	private int threads = 1;
 	private long lastProgress;
 	
+	// mappingData may be ComposedMapping.getMappingData() (e.g. from MappingDataFactory.generateComposedMapping),
+	// in which case the composed chain is shared rather than built again
 	public AbstractUpdater(List<MappingData> mappingData) {
 		this.mappingData = mappingData;
+		this.composedMapping = ComposedMapping.compose(mappingData);
 	}
 	
 	protected void updateProgress(double fractionProgress) {
@@ -48,27 +56,58 @@ public class AbstractUpdater {
 		if (f.getStart() == null || f.getEnd() == null) {
 			return f; // No need to continue for unlocated features
 		}
+		int start = f.getStart(), end = f.getEnd();
+		long res = lift(f.getChromosome(), start, end);
+		// Only call the setters for ends that were actually moved; ChadoXMLFeature relies on this
+		if (LiftResult.hasFlag(res, LiftResult.START_SET)) { f.setStart(LiftResult.getStart(res, start)); }
+		if (LiftResult.hasFlag(res, LiftResult.END_SET)) { f.setEnd(LiftResult.getEnd(res, end)); }
+		if (LiftResult.hasFlag(res, LiftResult.STRAND_TOGGLED)) {
+			if ("-".equals(f.getStrand())) { f.setStrand("+"); } else { f.setStrand("-"); } // Change strand
+		}
+		if (LiftResult.hasFlag(res, LiftResult.CHANGED)) { f.setChanged(true); }
+		if (LiftResult.hasFlag(res, LiftResult.FLIPPED)) { f.setFlipped(true); }
+		if (LiftResult.hasFlag(res, LiftResult.DROPPED)) { f.setDropped(true); }
+		if (LiftResult.hasFlag(res, LiftResult.INDETERMINATE)) { f.setIndeterminate(true); }
+		return f;
+	}
+
+	/**
+	 * Lift the 1-based, fully-closed range start..end on chromosome through every release.
+	 * Returns a packed LiftResult; nothing is allocated per call.
+	 */
+	public long lift(String chromosome, int start, int end) throws MappingException {
+		long composed = composedMapping.lift(chromosome, start, end);
+		if (composed != LiftResult.UNRESOLVED) {
+			return composed; // Both ends mapped straight through the composed breakpoint table
+		}
+		int s = start, e = end;
+		int flags = 0;
 		for (MappingData md : mappingData) {
 			/*
 			 * The mismatch_start value is the start of the mismatch, it is the first position which doesn't match.
 			 * The mismatch_end value is the base past the end of the mismatch region, the first base which matches again 
 			 * ($mismatch_start1, $mismatch_end1, $len1, $mismatch_start2, $mismatch_end2, $len2, $flipped)
 			 */
-			for (MappingData.MismatchPair mm_orig : md.getMismatchPairs(f.getChromosome())) {
-				MappingData.MismatchPair mm = mm_orig.clone();
+			MismatchTable mt = md.getMismatchTable(chromosome);
+			if (mt == null) { continue; }
+			// Mismatches that start past the end of the feature can't affect it, so only walk
+			// the ones at or before it (in the same descending order as getMismatchPairs).
+			for (int i = mt.countAtOrBefore(e - 1) - 1; i >= 0; i--) {
 				// Mismatch values are in the coordinate system starting at position 0, and half-open.
 				// Convert them to the GFF coordinates system starting at position 1, but leave half-open
 				// (real GFF coordinates are fully-closed: the span includes both start and end.)
-				mm.previousMismatch.start++;
-				mm.previousMismatch.end++;
-				if (!mm.flipped) {
+				int mmPrevStart = mt.getPreviousStart(i) + 1;
+				int mmPrevEnd = mt.getPreviousEnd(i) + 1;
+				int mmPrevLength = mt.getPreviousLength(i);
+				int mmThisLength = mt.getThisLength(i);
+				if (!mt.isFlipped(i)) {
 					// Is there a change within the boundaries of our feature?
-					if (f.getStart() < mm.previousMismatch.end && f.getEnd() >= mm.previousMismatch.start) {
-						f.setChanged(true);
+					if (s < mmPrevEnd && e >= mmPrevStart) {
+						flags |= LiftResult.CHANGED;
 						// Is the mismatch entirely contained within the feature?
-						if(f.getStart() <= mm.previousMismatch.start && f.getEnd() >= (mm.previousMismatch.end - 1)){
+						if(s <= mmPrevStart && e >= (mmPrevEnd - 1)){
 							// The end will be moved as appropriate lower down -- do nothing here
-							// f.setEnd(f.getEnd() + mm.thisMismatch.length - mm.previousMismatch.length);
+							// e = e + mmThisLength - mmPrevLength;
 						} else {
 							// If the mismatch overlaps one or both ends of the feature, its length after lifting is
 							// indeterminate unless one or both of the following are true :
@@ -79,82 +118,85 @@ public class AbstractUpdater {
 							// bases were added or removed from inside the feature, and how many outside.)
 							
 							// If the mismatch results in a change of length, invalidate it unless it is a point mismatch
-							if (mm.thisMismatch.length != mm.previousMismatch.length) {
-								if((mm.previousMismatch.length != 0) && (mm.thisMismatch.length != 0)){
-									f.setIndeterminate(true);
-									return f ;
+							if (mmThisLength != mmPrevLength) {
+								if((mmPrevLength != 0) && (mmThisLength != 0)){
+									flags |= LiftResult.INDETERMINATE;
+									return LiftResult.pack(s - start, e - end, flags);
 								} else {
 									// PrevMismatch overlaps the inside of the feature, but it's not the case that it's entirely
 									// within the feature. Thus it must contain bases both inside and outside feature ; but either it
 									// or thisMismatch has zero length, and it doesn't, so thisMismatch must & this is a point mismatch.
-									assert mm.thisMismatch.length == 0 : "Lift target has unexpected non-zero length";
+									assert mmThisLength == 0 : "Lift target has unexpected non-zero length";
 									
-									int orig_length = f.getEnd() - f.getStart() + 1 ;
+									int orig_length = e - s + 1 ;
 									// The section of the feature overlapped by the mismatch (in the feature's coords)
-									int overlap_start = Math.max(f.getStart(), mm.previousMismatch.start) ;
-									int overlap_end = Math.min(f.getEnd(), mm.previousMismatch.end - 1) ; 
+									int overlap_start = Math.max(s, mmPrevStart) ;
+									int overlap_end = Math.min(e, mmPrevEnd - 1) ; 
 
 									int overlap_length = overlap_end - overlap_start + 1 ;
-									f.setStart(Math.min(f.getStart(), mm.previousMismatch.start));
+									s = Math.min(s, mmPrevStart);
 									// The coordinates are fully-closed, so end - start != length
-									f.setEnd(f.getStart() + orig_length - overlap_length - 1) ;
+									e = s + orig_length - overlap_length - 1 ;
+									flags |= LiftResult.START_SET | LiftResult.END_SET;
 									// At this point, the feature is in its new location, and we should not do any
 									// further offsetting.
-									return f;
+									return LiftResult.pack(s - start, e - end, flags);
 								}
 							}
 						}
 					}
 					// Then, offset feature by the difference in mismatch length if necessary.
 					
-					if (f.getStart() >= mm.previousMismatch.end) {
+					if (s >= mmPrevEnd) {
 						// The start is past the end of the mismatch, so just shift the start right
 						// by the difference in length of the old and new regions
-						f.setStart(f.getStart() + mm.thisMismatch.length - mm.previousMismatch.length);
-					} else if (f.getStart() >= mm.previousMismatch.start && (f.getStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
+						s = s + mmThisLength - mmPrevLength;
+						flags |= LiftResult.START_SET;
+					} else if (s >= mmPrevStart && (s - mmPrevStart) > mmThisLength) {
 						// The start was somewhere inside the changed region and is now outside because the new region is smaller,
 						// so lock the start to the end of the new region (it's really somewhere between the last base of the new region
 						// and the first base of the following unchanged region.)
-						f.setStart(mm.previousMismatch.start + mm.thisMismatch.length);
+						s = mmPrevStart + mmThisLength;
+						flags |= LiftResult.START_SET;
 					}
-					if (f.getEnd() >= mm.previousMismatch.end){
+					if (e >= mmPrevEnd){
 						// The end is past the end of the mismatch, so just shift the end right
 						// by the difference in length of the old and new regions
 						// This also applies to mismatches that are entirely contained within the feature
-						f.setEnd(f.getEnd() + mm.thisMismatch.length - mm.previousMismatch.length);
-					} else if (f.getStart() >= mm.previousMismatch.start && (f.getStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
+						e = e + mmThisLength - mmPrevLength;
+						flags |= LiftResult.END_SET;
+					} else if (s >= mmPrevStart && (s - mmPrevStart) > mmThisLength) {
 						// The end was somewhere inside the changed region and is now outside because the new region is smaller,
 						// so lock the end of the feature to the end of the new region (it's really somewhere between the last base 
 						// of the new region and the first base of the following unchanged region.)
-						f.setEnd(mm.previousMismatch.start + mm.thisMismatch.length);
+						e = mmPrevStart + mmThisLength;
+						flags |= LiftResult.END_SET;
 					}
 				} else {
 					// Flipped (inversion)
-					if (f.getStart() >= mm.previousMismatch.start && f.getEnd() < mm.previousMismatch.end) {
+					if (s >= mmPrevStart && e < mmPrevEnd) {
 						// The feature falls entirely within the flipped region
-						if (f.getStrand() == "-") { f.setStrand("+"); } else { f.setStrand("-"); } // Change strand
-						f.setStart((mm.previousMismatch.start + mm.previousMismatch.end) - f.getStart()); // Set start to <start>bp from the end of the new region
-						f.setEnd((mm.previousMismatch.start + mm.previousMismatch.end)- f.getEnd()); // Set end to <end>bp from the end of the new region
-						if (f.getStart() > f.getEnd()){
+						flags ^= LiftResult.STRAND_TOGGLED; // Change strand
+						s = (mmPrevStart + mmPrevEnd) - s; // Set start to <start>bp from the end of the new region
+						e = (mmPrevStart + mmPrevEnd) - e; // Set end to <end>bp from the end of the new region
+						if (s > e){
 							// Make sure start > end as required by GFF
-							Integer tmp = f.getStart();
-							f.setStart(f.getEnd());
-							f.setEnd(tmp);
+							int tmp = s;
+							s = e;
+							e = tmp;
 						}
-						f.setChanged(true);
-						f.setFlipped(true);
+						flags |= LiftResult.START_SET | LiftResult.END_SET | LiftResult.CHANGED | LiftResult.FLIPPED;
 					} else if (
-							(f.getStart() >= mm.previousMismatch.start && f.getStart() < mm.previousMismatch.end) ||
-							(f.getEnd() >= mm.previousMismatch.start && f.getEnd() < mm.previousMismatch.end)) {
+							(s >= mmPrevStart && s < mmPrevEnd) ||
+							(e >= mmPrevStart && e < mmPrevEnd)) {
 						// The feature overlaps the change boundary; since it's an inversion, we can't 
 						// really restructure it in a useful way.
-						f.setChanged(true);
-						f.setDropped(true);
+						flags |= LiftResult.CHANGED | LiftResult.DROPPED;
 					}
 				}
 			}
 		}
-		return f;
+		return LiftResult.pack(s - start, e - end, flags);
 	}
 	public void setVerbose(boolean verbose) {
 		this.verbose = verbose;
@@ -162,4 +204,11 @@ public class AbstractUpdater {
 	public boolean isVerbose() {
 		return verbose;
 	}
+	// Number of worker threads for updaters that can lift in parallel (1 = the sequential path)
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	public int getThreads() {
+		return threads;
+	}
 }
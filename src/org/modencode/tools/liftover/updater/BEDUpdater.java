@@ -1,56 +1,50 @@
 package org.modencode.tools.liftover.updater;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 
 import org.modencode.tools.liftover.AbstractFeature;
+import org.modencode.tools.liftover.LiftResult;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.io.LineClassifier;
+import org.modencode.tools.liftover.io.LineClassifier.LineType;
+import org.modencode.tools.liftover.io.LineScanner;
+import org.modencode.tools.liftover.io.TextOutputStream;
 
 public class BEDUpdater extends AbstractUpdater {
+	// The last chromosome name read, reused while it doesn't change
+	private String chromosome;
 
 	public BEDUpdater(List<MappingData> mappingData) {
 		super(mappingData);
 	}
 
 	public void processFile(File wigFile, File outFile) throws MappingException {
-		BufferedReader reader;
+		LineScanner reader;
 		try {
-			FileReader fileReader = new FileReader(wigFile);
-			reader = new BufferedReader(fileReader);
-		} catch (FileNotFoundException e) {
+			reader = new LineScanner(wigFile);
+		} catch (IOException e) {
 			System.err.println("Couldn't open " + wigFile + " for reading.");
 			throw new MappingException("Couldn't open " + wigFile, e);
 		}
 
-		BufferedWriter writer;
+		TextOutputStream writer;
 		try {
-			FileWriter fileWriter = new FileWriter(outFile);
-			writer = new BufferedWriter(fileWriter);
+			writer = new TextOutputStream(new FileOutputStream(outFile));
 		} catch (IOException e) {
 			System.err.println("Couldn't open " + outFile + " for writing.");
 			throw new MappingException("Couldn't open " + outFile + " for writing", e);
 		}
 		
 		try {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				if (line.matches("^\\s*$") || line.matches("^\\s*#.*")) {
-					writer.write(line); //Comment
-				} else if (line.startsWith("track") || line.startsWith("fixedStep") || line.startsWith("variableStep")) {
-					writer.write(line); // Ignore anything that looks like a WIG header
-				} else {
-					String fields[] = line.split("\\s+");
-					Integer start = new Integer(Integer.parseInt(fields[1]));
-					Integer end = new Integer(Integer.parseInt(fields[2]));
-					BEDFeature f = new BEDFeature(fields[0], start, end, fields[3]);
-					writer.write(updateFeature(f).toString());
+			while (reader.nextLine()) {
+				// Most lines are lifted straight from the bytes; anything unusual goes through processLine
+				LineType type = LineClassifier.classify(reader);
+				if (!reader.isAscii() || !liftLine(reader, type, writer)) {
+					writer.write(processLine(reader.getLine(), type));
 				}
 				writer.newLine();
 			}
@@ -69,6 +63,49 @@ public class BEDUpdater extends AbstractUpdater {
 			throw new MappingException("Couldn't close file handles", e);
 		}		
 	}
+	private String processLine(String line, LineType type) throws MappingException {
+		if (type.isBlankOrComment()) {
+			return line; //Comment
+		} else if (line.startsWith("track") || line.startsWith("fixedStep") || line.startsWith("variableStep")) {
+			return line; // Ignore anything that looks like a WIG header
+		} else {
+			String fields[] = line.split("\\s+");
+			Integer start = new Integer(Integer.parseInt(fields[1]));
+			Integer end = new Integer(Integer.parseInt(fields[2]));
+			BEDFeature f = new BEDFeature(fields[0], start, end, fields[3]);
+			return updateFeature(f).toString();
+		}
+	}
+	// Write the current (ASCII) line the way processLine would, without making Strings of it.
+	// Returns false, having written nothing, if the line needs processLine.
+	private boolean liftLine(LineScanner line, LineType type, TextOutputStream writer) throws MappingException, IOException {
+		if (type.isBlankOrComment() ||
+				line.startsWith("track") || line.startsWith("fixedStep") || line.startsWith("variableStep")) {
+			line.writeLine(writer); // Comment or header
+			return true;
+		}
+		if (line.splitWhitespace() < 4) { return false; }
+		int start, end;
+		try {
+			start = line.parseInt(1);
+			end = line.parseInt(2);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		chromosome = line.getField(0, 0, chromosome);
+		long res = lift(chromosome, start, end);
+		if ((LiftResult.getFlags(res) & ~(LiftResult.START_SET | LiftResult.END_SET)) != 0) {
+			return false; // Changed features get commented by BEDFeature.toString
+		}
+		line.writeField(0, writer);
+		writer.write(' ');
+		writer.writeInt(LiftResult.getStart(res, start));
+		writer.write(' ');
+		writer.writeInt(LiftResult.getEnd(res, end));
+		writer.write(' ');
+		line.writeField(3, writer);
+		return true;
+	}
 	public class BEDFeature extends AbstractFeature {
 		private String score;
 		private BEDFeature originalFeature;
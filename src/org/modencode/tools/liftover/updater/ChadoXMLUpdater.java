@@ -1,190 +1,501 @@
 package org.modencode.tools.liftover.updater;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.modencode.tools.liftover.AbstractFeature;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.io.XMLTagScanner;
 
 public class ChadoXMLUpdater extends AbstractUpdater {
+	// As XMLTagScanner reads it, so ASCII text (and the rest, copied as bytes) is unchanged
+	private static final String FILE_CHARSET = "ISO-8859-1";
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+	// How far either side of a featureloc to look for the rest of its lines
+	private static final int LINE_LOOKAROUND = 256;
+	// Featurelocs in a chunk of the document lifted as one
+	private static final int CHUNK_FEATURELOCS = 1000;
 
-	private enum ChadoXML {
-		FEATURE, FEATURELOC, SRCFEATURE_ID
-	}
 	public ChadoXMLUpdater(List<MappingData> mappingData) {
 		super(mappingData);
 	}
 	
+	/*
+	 * One pass through the file with an XMLTagScanner. Chromosome <feature>s are noted by
+	 * their <name> as they go past, and each <featureloc> on one of them is lifted and written
+	 * in place of the lines it was on; everything else is copied from the input file byte for
+	 * byte, by the tags' offsets. A featureloc on a source feature that hasn't come up yet,
+	 * while some chromosomes are still to be found, is held back until they have been or the
+	 * file ends; the output after it is spilled to disk meanwhile (see ChadoXMLOutput).
+	 */
 	public void processFile(File chadoXMLFile, File outFile) throws MappingException {
-		RandomAccessFile fileReader;
+		Set<String> chromosomes = new HashSet<String>();
+		for (MappingData md : mappingData) {
+			chromosomes.addAll(md.getChromosomes());
+		}
+		
+		XMLTagScanner reader;
 		try {
-			fileReader = new RandomAccessFile(chadoXMLFile, "r");
-		} catch (FileNotFoundException e) {
+			reader = new XMLTagScanner(new FileInputStream(chadoXMLFile));
+		} catch (IOException e) {
 			System.err.println("Couldn't open " + chadoXMLFile + " for reading.");
 			throw new MappingException("Couldn't open " + chadoXMLFile, e);
 		}
-		
-		BufferedWriter writer;
+		ChadoXMLOutput output;
 		try {
-			FileWriter fileWriter = new FileWriter(outFile);
-			writer = new BufferedWriter(fileWriter);
+			output = new ChadoXMLOutput(chadoXMLFile, outFile, chromosomes.size(), getThreads());
 		} catch (IOException e) {
+			try {
+				reader.close();
+			} catch (IOException ignore) { }
 			System.err.println("Couldn't open " + outFile + " for writing.");
 			throw new MappingException("Couldn't open " + outFile + " for writing", e);
 		}
 		
-		// Collect all feature_ids for the chromosomes
-		ChadoXML inType = null;
-		String line;
-		String collectedLines = "";
-		Matcher m;
-		// Initialize a list of chromosomes from the mapping data
-		HashMap<String, String> srcFeatures = new HashMap<String, String>();
-		for (MappingData md : mappingData) {
-			for (String chr : md.getChromosomes()) {
-				srcFeatures.put(chr, "");
+		try {
+			liftFeatureLocs(reader, output, chromosomes);
+			System.out.println("Found: " + output.getChromosomeFeatures());
+			output.finish();
+		} catch (IOException e) {
+			throw new MappingException("Couldn't lift " + chadoXMLFile + " to " + outFile, e);
+		} finally {
+			try {
+				reader.close();
+				output.close();
+			} catch (IOException e) {
+				throw new MappingException("Couldn't close file handles", e);
 			}
 		}
-		// Find the IDs of <feature> elements for the chromosomes
-		System.out.println("Collecting chromosome feature IDs.");
-		Pattern namePattern = Pattern.compile("<name>([^<]*)</name>");
-		Pattern featureIdPattern = Pattern.compile("<feature id=\"([^\"]*)\"");
-		try {
-			while ((line = fileReader.readLine()) != null) {
-				if (line.contains("<feature id=")) { inType = ChadoXML.FEATURE; }
-				if (inType == ChadoXML.FEATURE) {
-					collectedLines += line + "\n";
-					if (line.contains("</feature>")) {
-						m = namePattern.matcher(collectedLines);
-						if (m.find()) {
-							String chr = m.group(1);
-							if (srcFeatures.containsKey(chr)) { // Is this a chromosome feature?
-								m = featureIdPattern.matcher(collectedLines);
-								if (m.find()) {
-									srcFeatures.put(chr, m.group(1));
-								} else {
-									throw new MappingException("Couldn't find feature ID for chromosome " + chr);
-								}
-							}
-							if (!srcFeatures.containsValue("")) {
-								// We've found them all
-								break;
-							}
-						}
-						inType = null;
-						collectedLines = "";
+	}
+	
+	private void liftFeatureLocs(XMLTagScanner reader, ChadoXMLOutput output, Set<String> chromosomes) throws IOException, MappingException {
+		// The last start tag, if nothing has come between it and the current tag
+		String leaf = null;
+		// A <feature id="..."> and the first <name> in it
+		String featureId = null, featureName = null;
+		// The current <featureloc>, where it started, and the elements in it that only have text
+		Map<String, String> info = null;
+		long featureLocStart = 0;
+		
+		int depth = 0;
+		int type;
+		while ((type = reader.next()) != XMLTagScanner.END_OF_INPUT) {
+			if (type == XMLTagScanner.START_TAG) {
+				depth++;
+				if (featureId == null && reader.nameEquals("feature")) {
+					featureId = reader.getAttribute("id");
+					featureName = null;
+				}
+				if (info == null && reader.nameEquals("featureloc")) {
+					info = new HashMap<String, String>();
+					featureLocStart = reader.getTagStart();
+				}
+				leaf = reader.getName();
+			} else if (type == XMLTagScanner.END_TAG) {
+				String text = (leaf != null && reader.nameEquals(leaf)) ? reader.getText() : null;
+				if (text != null) {
+					if (featureId != null && featureName == null && leaf.equals("name")) {
+						featureName = text;
+					}
+					if (info != null) {
+						info.put(leaf, text.length() == 0 ? null : text);
 					}
 				}
+				// Like the elements in them, these end at the first end tag for them
+				if (featureId != null && reader.nameEquals("feature")) {
+					output.addFeature(featureId, (featureName != null && chromosomes.contains(featureName)) ? featureName : null);
+					featureId = null;
+				}
+				if (info != null && reader.nameEquals("featureloc")) {
+					output.addFeatureLoc(featureLocStart, reader.getTagEnd(), info);
+					info = null;
+				}
+				leaf = null;
+				depth--;
+			} else {
+				leaf = null;
+			}
+			// The end of an element directly under the root is a place to start a new chunk
+			if (depth <= 1 && (type == XMLTagScanner.END_TAG || type == XMLTagScanner.EMPTY_TAG)) {
+				output.endOfElement();
 			}
-		} catch (IOException e) {
-			throw new MappingException("Couldn't read line from " + chadoXMLFile, e);
 		}
-		System.out.println("Found: " + srcFeatures.toString());
+	}
+	
+	// The lifted featureloc, or null to leave it as it was
+	private String liftFeatureLoc(Map<String, String> info, String chr) throws MappingException {
+		if (info.get("fmin") == null || info.get("fmax") == null) { return null; } // Skip if not located
+		String strand;
+		if (info.get("strand") == null || info.get("strand").equals("0")) {
+			strand = ".";
+		} else if (Integer.parseInt(info.get("strand")) < 0) {
+			strand = "-";
+		} else {
+			strand = "+";
+		}
+		ChadoXMLFeature f = new ChadoXMLFeature(
+				info.get("feature_id"),
+				info.get("srcfeature_id"),
+				chr,
+				Integer.parseInt(info.get("fmin").trim()),
+				Integer.parseInt(info.get("fmax").trim()),
+				strand,
+				info.get("phase") == null ? null : Integer.parseInt(info.get("phase"))
+				);
+		f = (ChadoXMLFeature)updateFeature(f);
+		return f.toString();
+	}
+	
+	/*
+	 * The output file, written as runs of the input file copied by offset with lifted
+	 * featurelocs in between. Lifted featurelocs take the place of the whole lines they were
+	 * on, if nothing else was on them. The document is cut into chunks at the ends of the
+	 * root's child elements, every CHUNK_FEATURELOCS featurelocs or so, and each chunk's
+	 * featurelocs are lifted together, by a worker when there are several threads; chunks are
+	 * written in document order. Each featureloc's chromosome is looked up before its chunk
+	 * is handed over, so the workers only lift. A featureloc whose source feature hasn't come
+	 * up yet, while it might still be a chromosome, is deferred: only it is kept in memory,
+	 * and the output after it goes to a spill file beside the output, until all the
+	 * chromosomes have been found or the file ends. Then the deferred featurelocs are lifted
+	 * (or left as they were) and written into their places as the spill file is copied over.
+	 */
+	private class ChadoXMLOutput {
+		private FileChannel in;
+		private File outFile;
+		private OutputStream out;
+		private ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		private long copied = 0; // Where in the input the chunks have got to
+		
+		private int chromosomeCount;
+		private Map<String, String> srcFeatures = new HashMap<String, String>(); // Feature ID to chromosome
+		// The IDs of the features so far, while there are chromosomes still to find
+		private FeatureIDSet seenFeatures = new FeatureIDSet();
+		
+		private List<Piece> chunk = new ArrayList<Piece>();
+		private int chunkFeatureLocs = 0;
+		private ExecutorService pool = null;
+		private LinkedList<Future<List<Piece>>> lifting = new LinkedList<Future<List<Piece>>>();
+		private int threads;
+		
+		// The deferred featurelocs, and the output after the first of them
+		private List<Piece> deferred = new ArrayList<Piece>();
+		private File spillFile = null;
+		private OutputStream spill = null;
+		private long spilled = 0;
 		
-		// If there are chromosomes that aren't referenced, ignore them
-		Iterator<String> i = srcFeatures.values().iterator();
-		while (i.hasNext()) {
-			String value = i.next();
-			if (value == "") { i.remove(); }
-		}
-		// Invert srcFeatures
-		{
-			HashMap<String, String> tmp = new HashMap<String, String>();
-			i = srcFeatures.keySet().iterator();
-			while (i.hasNext()) {
-				String key = i.next();
-				tmp.put(srcFeatures.get(key), key);
+		private ChadoXMLOutput(File inFile, File outFile, int chromosomeCount, int threads) throws IOException {
+			this.in = new FileInputStream(inFile).getChannel();
+			try {
+				this.out = new BufferedOutputStream(new FileOutputStream(outFile), COPY_BUFFER_SIZE);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			this.outFile = outFile;
+			this.chromosomeCount = chromosomeCount;
+			this.threads = threads;
+			if (threads > 1) {
+				pool = Executors.newFixedThreadPool(threads);
 			}
-			srcFeatures = tmp;
 		}
 		
-		// Find the features that lie on these source features
-		try {
-			// Rewind
-			fileReader.seek(0);
-		} catch (IOException e) {
-			throw new MappingException("Couldn't return to the beginning of the ChadoXML file", e);
+		// A <feature>, and its chromosome if it's one
+		private void addFeature(String featureId, String chr) throws IOException, MappingException {
+			if (chromosomeCount == 0) {
+				if (chr != null) { srcFeatures.put(featureId, chr); }
+				return;
+			}
+			seenFeatures.add(featureId);
+			if (chr == null) { return; }
+			if (!srcFeatures.containsValue(chr)) { chromosomeCount--; }
+			srcFeatures.put(featureId, chr);
+			if (chromosomeCount == 0) {
+				seenFeatures = null;
+				if (spill != null || hasUnresolved(chunk)) {
+					endChunk();
+					liftDeferred();
+				}
+			}
+		}
+		private Map<String, String> getChromosomeFeatures() {
+			Map<String, String> found = new HashMap<String, String>();
+			for (Map.Entry<String, String> e : srcFeatures.entrySet()) {
+				found.put(e.getValue(), e.getKey());
+			}
+			return found;
 		}
 		
-		inType = null;
-		collectedLines = "";
-		Pattern xmlTagPattern = Pattern.compile("<([^ >]+)[^>]*>([^<]*)</\\1>", Pattern.DOTALL);
-
-		Pattern featureLocContentsPattern = Pattern.compile("<featureloc[^>]*>(.*?)</featureloc>", Pattern.DOTALL);
-		try {
-			while ((line = fileReader.readLine()) != null) {
-				if (line.contains("<featureloc>")) { inType = ChadoXML.FEATURELOC; }
-				if (inType == ChadoXML.FEATURELOC) {
-					collectedLines += line + "\n";
-					if (line.contains("</featureloc>")) {
-						m = featureLocContentsPattern.matcher(collectedLines);
-						if (m.find()) {
-							String contents = m.group(1);
-							m = xmlTagPattern.matcher(contents);
-							HashMap<String, String> info = new HashMap<String, String>();
-							while (m.find()) {
-								if (m.group(2).equals("")) {
-									info.put(m.group(1), null);
-								} else {
-									info.put(m.group(1), m.group(2));
-								}
-							}
-							if (srcFeatures.containsKey(info.get("srcfeature_id"))) {
-								// Build a feature object, map it, and replace collectedLines
-								if (info.get("fmin") == null || info.get("fmax") == null) { continue; } // Skip if not located
-								if (info.get("strand") == null || info.get("strand").equals("0")) {
-									info.put("strand", ".");
-								} else if (Integer.parseInt(info.get("strand")) < 0) {
-									info.put("strand", "-");
-								} else {
-									info.put("strand", "+");
-								}
-								ChadoXMLFeature f = new ChadoXMLFeature(
-										info.get("feature_id"),
-										info.get("srcfeature_id"),
-										srcFeatures.get(info.get("srcfeature_id")),
-										Integer.parseInt(info.get("fmin").trim()),
-										Integer.parseInt(info.get("fmax").trim()),
-										info.get("strand"),
-										info.get("phase") == null ? null : Integer.parseInt(info.get("phase"))
-										);
-								f = (ChadoXMLFeature)updateFeature(f);
-								writer.write(f.toString());
-							} else {
-								writer.write(collectedLines);
-							}
-						} else {
-							writer.write(collectedLines);
-						}
-						collectedLines = "";
-						inType = null;
+		// A featureloc from start to end; it's left as it is unless it's on a chromosome
+		private void addFeatureLoc(long start, long end, Map<String, String> info) throws IOException, MappingException {
+			String srcFeatureId = info.get("srcfeature_id");
+			String chr = srcFeatures.get(srcFeatureId);
+			// Only a feature that hasn't come up yet could still turn out to be a chromosome
+			if (chr == null && (srcFeatureId == null || chromosomeCount == 0 || seenFeatures.contains(srcFeatureId))) { return; }
+			long[] lines = getLines(start, end);
+			chunk.add(new Piece(copied, lines[0], null, null));
+			chunk.add(new Piece(lines[0], lines[1], info, chr));
+			copied = lines[1];
+			chunkFeatureLocs++;
+		}
+		private void endOfElement() throws IOException, MappingException {
+			if (chunkFeatureLocs >= CHUNK_FEATURELOCS) { endChunk(); }
+		}
+		private void endChunk() throws IOException, MappingException {
+			if (chunk.isEmpty()) { return; }
+			lift(chunk);
+			chunk = new ArrayList<Piece>();
+			chunkFeatureLocs = 0;
+		}
+		private boolean hasUnresolved(List<Piece> pieces) {
+			for (Piece piece : pieces) {
+				if (piece.info != null && piece.chr == null) { return true; }
+			}
+			return false;
+		}
+		// Look the unresolved featurelocs up again, defer those that still might be on a chromosome, and lift the rest
+		private void lift(List<Piece> pieces) throws IOException, MappingException {
+			for (Piece piece : pieces) {
+				if (piece.info != null && piece.chr == null) {
+					piece.chr = srcFeatures.get(piece.info.get("srcfeature_id"));
+					piece.deferred = (piece.chr == null && chromosomeCount > 0);
+				}
+			}
+			ChunkLifter lifter = new ChunkLifter(pieces);
+			if (pool == null) {
+				write(lifter.call());
+				return;
+			}
+			lifting.add(pool.submit(lifter));
+			// Don't let the reader run too far ahead of the writer
+			while (lifting.size() > threads * 2) {
+				write(lifting.removeFirst());
+			}
+		}
+		private void write(Future<List<Piece>> future) throws IOException, MappingException {
+			try {
+				write(future.get());
+			} catch (InterruptedException e) {
+				throw new MappingException("Interrupted while lifting ChadoXML", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+				if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+				throw new MappingException("Couldn't lift ChadoXML chunk", e);
+			}
+		}
+		// Everything after a deferred featureloc goes to the spill file, with the place it goes noted
+		private void write(List<Piece> pieces) throws IOException {
+			for (Piece piece : pieces) {
+				if (piece.deferred) {
+					if (spill == null) {
+						spillFile = File.createTempFile("liftover", ".chadoxml.part", outFile.getAbsoluteFile().getParentFile());
+						spill = new BufferedOutputStream(new FileOutputStream(spillFile), COPY_BUFFER_SIZE);
 					}
+					piece.spillOffset = spilled;
+					deferred.add(piece);
+				} else if (spill != null) {
+					spilled += piece.write(spill);
 				} else {
-					writer.write(line + "\n");
+					piece.write(out);
 				}
 			}
-		} catch (IOException e) {
-			throw new MappingException("Couldn't read line from " + chadoXMLFile, e);
+		}
+		// Once everything handed over is written, lift the deferred featurelocs (leaving any not on
+		// a chromosome as they are) and copy the spill file to the output with them in their places
+		private void liftDeferred() throws IOException, MappingException {
+			while (!lifting.isEmpty()) {
+				write(lifting.removeFirst());
+			}
+			if (spill == null) { return; }
+			spill.close();
+			spill = null;
+			for (Piece piece : deferred) {
+				piece.chr = srcFeatures.get(piece.info.get("srcfeature_id"));
+			}
+			new ChunkLifter(deferred).call();
+			FileChannel spilledIn = new FileInputStream(spillFile).getChannel();
+			try {
+				long position = 0;
+				for (Piece piece : deferred) {
+					copy(spilledIn, position, piece.spillOffset, out);
+					piece.write(out);
+					position = piece.spillOffset;
+				}
+				copy(spilledIn, position, spilled, out);
+			} finally {
+				spilledIn.close();
+				spillFile.delete();
+			}
+			deferred.clear();
+			spilled = 0;
+		}
+		// Copy the rest of the input, once everything before it is written
+		private void finish() throws IOException, MappingException {
+			chunk.add(new Piece(copied, in.size(), null, null));
+			copied = in.size();
+			endChunk();
+			liftDeferred();
+		}
+		private void close() throws IOException {
+			if (pool != null) { pool.shutdownNow(); }
+			try {
+				if (spill != null) { spill.close(); }
+				out.close();
+			} finally {
+				in.close();
+				if (spillFile != null) { spillFile.delete(); }
+			}
 		}
 		
-		try {
-			fileReader.close();
-			writer.close();
-		} catch (IOException e) {
-			throw new MappingException("Couldn't close file handles", e);
-		}		
-
+		// start and end widened to whole lines if there's only whitespace either side on them
+		private long[] getLines(long start, long end) throws IOException {
+			long from = Math.max(copied, start - LINE_LOOKAROUND);
+			byte[] before = read(from, start);
+			int i = before.length;
+			while (i > 0 && (before[i - 1] == ' ' || before[i - 1] == '\t')) { i--; }
+			if ((i == 0 && from == 0) || (i > 0 && (before[i - 1] == '\n' || before[i - 1] == '\r'))) {
+				start = from + i;
+			}
+			byte[] after = read(end, end + LINE_LOOKAROUND);
+			int j = 0;
+			while (j < after.length && (after[j] == ' ' || after[j] == '\t' || after[j] == '\r')) { j++; }
+			if (j < after.length && after[j] == '\n') {
+				end += j + 1;
+			} else if (j == after.length && end + j == in.size()) {
+				end += j;
+			}
+			return new long[] { start, end };
+		}
+		private byte[] read(long start, long end) throws IOException {
+			end = Math.min(end, in.size());
+			ByteBuffer b = ByteBuffer.allocate((int)Math.max(0, end - start));
+			while (b.hasRemaining() && in.read(b, start + b.position()) >= 0) { }
+			return b.array();
+		}
+		// Copy channel from start to end to the output stream to
+		private void copy(FileChannel channel, long start, long end, OutputStream to) throws IOException {
+			for (long position = start; position < end; ) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), end - position));
+				int n = channel.read(buffer, position);
+				if (n < 0) { break; }
+				to.write(buffer.array(), 0, n);
+				position += n;
+			}
+		}
 		
+		// Input copied from start to end, or a featureloc there to be lifted in its place
+		private class Piece {
+			private long start, end;
+			private Map<String, String> info;
+			private String chr; // The featureloc's chromosome, if it's known to be on one
+			private String text = null; // The lifted featureloc
+			private boolean deferred = false;
+			private long spillOffset; // Where a deferred featureloc goes in the spill file
+			
+			private Piece(long start, long end, Map<String, String> info, String chr) {
+				this.start = start;
+				this.end = end;
+				this.info = info;
+				this.chr = chr;
+			}
+			// Returns the number of bytes written
+			private long write(OutputStream to) throws IOException {
+				if (text != null) {
+					byte[] b = text.getBytes(FILE_CHARSET);
+					to.write(b);
+					return b.length;
+				}
+				copy(in, start, end, to);
+				return end - start;
+			}
+		}
+		
+		// Lifts the featurelocs in a chunk of the document
+		private class ChunkLifter implements Callable<List<Piece>> {
+			private List<Piece> pieces;
+			
+			private ChunkLifter(List<Piece> pieces) {
+				this.pieces = pieces;
+			}
+			public List<Piece> call() throws MappingException {
+				for (Piece piece : pieces) {
+					if (piece.chr != null) {
+						piece.text = liftFeatureLoc(piece.info, piece.chr);
+					}
+				}
+				return pieces;
+			}
+		}
+	}
+	
+	/*
+	 * A set of feature IDs in an open-addressed table, with each ID's 64-bit hash kept beside
+	 * it so that probing mostly compares longs. A hash match is only taken as the ID once the
+	 * strings are equal too.
+	 */
+	private static class FeatureIDSet {
+		private long[] hashes = new long[1 << 10];
+		private String[] ids = new String[1 << 10];
+		private int size = 0;
+		
+		private void add(String id) {
+			long hash = hash(id);
+			if (contains(id, hash)) { return; }
+			if (++size > hashes.length / 2) {
+				long[] oldHashes = hashes;
+				String[] oldIds = ids;
+				hashes = new long[oldHashes.length * 2];
+				ids = new String[oldIds.length * 2];
+				for (int i = 0; i < oldHashes.length; i++) {
+					if (oldIds[i] != null) { put(oldIds[i], oldHashes[i]); }
+				}
+			}
+			put(id, hash);
+		}
+		private boolean contains(String id) {
+			return contains(id, hash(id));
+		}
+		private boolean contains(String id, long hash) {
+			int mask = hashes.length - 1;
+			for (int i = (int)hash & mask; ids[i] != null; i = (i + 1) & mask) {
+				if (hashes[i] == hash && ids[i].equals(id)) { return true; }
+			}
+			return false;
+		}
+		private void put(String id, long hash) {
+			int mask = hashes.length - 1;
+			int i = (int)hash & mask;
+			while (ids[i] != null) { i = (i + 1) & mask; }
+			hashes[i] = hash;
+			ids[i] = id;
+		}
+		// FNV-1a over the characters
+		private static long hash(String id) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < id.length(); i++) {
+				h = (h ^ id.charAt(i)) * 0x100000001b3L;
+			}
+			return h ^ (h >>> 29);
+		}
 	}
 	
 	public class ChadoXMLFeature extends AbstractFeature {
@@ -1,31 +1,57 @@
 package org.modencode.tools.liftover.updater;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.lang.StringBuilder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.modencode.tools.liftover.AbstractFeature;
+import org.modencode.tools.liftover.IDRecordTable;
+import org.modencode.tools.liftover.LiftResult;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.PackedSequence;
+import org.modencode.tools.liftover.PieceTable;
+import org.modencode.tools.liftover.io.LineClassifier;
+import org.modencode.tools.liftover.io.LineClassifier.LineType;
+import org.modencode.tools.liftover.io.LineScanner;
+import org.modencode.tools.liftover.io.TextOutputStream;
 
 public class GFFUpdater extends AbstractUpdater {
+	// Approximate number of bytes handed to a worker at a time when lifting in parallel
+	private static final int CHUNK_BYTES = 1 << 20;
+	// Bytes read at a time when looking back from the end of a file for FASTA data
+	private static final int FASTA_SCAN_BLOCK = 1 << 16;
+	// Attribute names are case sensitive
+	private static final Pattern ID_ATTRIBUTE = Pattern.compile(".*ID=(.*?)(;.*|$)");
+	// A FASTA ID is everything between the first > and the next whitespace (or end of line) after that
+	private static final Pattern FASTA_ID = Pattern.compile(">(.*?)([\\s]|$)");
+	// What FASTAFeature.addContent strips from, and allows in, a line of FASTA data
+	private static final Pattern FASTA_LINE_BREAKS = Pattern.compile("(\n|\r)");
+	private static final Pattern FASTA_BASES = Pattern.compile("[acgntuACGNTU]*");
+	
 	public GFFUpdater(List<MappingData> mappingData) {
 		super(mappingData);
 	}
@@ -101,113 +127,150 @@ public class GFFUpdater extends AbstractUpdater {
 		return f;
 	}
 	
-	private Boolean fileHasFasta(File gffFile) throws MappingException {
-		
-		long currPos ;
-		char currChar;
-		String lineToCheck;
-		StringBuilder currLine = new StringBuilder();
-		// Try to open as GZip data
-		GZIPInputStream gzStream = getGZIPInputStream(gffFile);
-		if (gzStream != null) {
-			BufferedReader r = new BufferedReader(new InputStreamReader(gzStream));
-			try {
-				while ((lineToCheck = r.readLine()) != null) {
-					if (lineToCheck.length() > 0 && lineToCheck.charAt(0) == '>') {
-						r.close();
-						return true;
-					}
-				}
-				r.close();
-				return false;
-			} catch (IOException e) {
-				throw new MappingException("Couldn't read " + gffFile + " as GZip", e);
-			}
-		} else {
-			// Open as regular GFF
-			RandomAccessFile gff;
-			try {
-				gff = new RandomAccessFile(gffFile, "r");	
-			} catch (FileNotFoundException e){
-				System.err.println("Couldn't open " + gffFile + " for reading.");
-				throw new MappingException("Couldn't open " + gffFile, e);
-			}
+	// What fileHasFasta found: whether there's FASTA data, and if so the IDs of all its headers,
+	// or null if they can't all be known before the FASTA section is read
+	private static class FastaScan {
+		boolean hasFasta = false;
+		Set<String> headerIDs = new HashSet<String>();
+	}
+	
+	// Looks back from the end of an uncompressed file for FASTA headers, stopping at the first
+	// GFF line. Lines are only looked at once the line end before them is found.
+	private FastaScan fileHasFasta(File gffFile) throws MappingException {
+		RandomAccessFile gff;
+		try {
+			gff = new RandomAccessFile(gffFile, "r");	
+		} catch (FileNotFoundException e){
+			System.err.println("Couldn't open " + gffFile + " for reading.");
+			throw new MappingException("Couldn't open " + gffFile, e);
+		}
 
-			try {
-				// We can get a little more clever here: iterate backwards through the file and look for the FASTA there
-				for(currPos = gffFile.length() - 1; currPos >= 0; currPos--){
-					gff.seek(currPos);
-					currChar = (char)gff.readByte();
-					// Process line if it's an end-of-line char
-					if(currChar == 13 || currChar == 10){
-						lineToCheck = currLine.toString();
-						currLine.setLength(0);
-						// Ignore whitespace or comment (#) lines
-						if (lineToCheck.matches(".*\t.*")) {
-							// If it has a tab, it's regular GFF and we shouldn't keep looking for FASTA
-							gff.close();
-							return false;
+		FastaScan scan = new FastaScan();
+		try {
+			byte[] block = new byte[FASTA_SCAN_BLOCK];
+			// What's been seen of the line so far, going backwards
+			boolean hasTab = false, hasTerminator = false;
+			int first = -1, firstNonSpace = -1;
+			long lineEnd = gff.length();
+			for (long blockEnd = gff.length(); blockEnd > 0; ) {
+				long blockStart = Math.max(0, blockEnd - block.length);
+				int n = (int)(blockEnd - blockStart);
+				gff.seek(blockStart);
+				gff.readFully(block, 0, n);
+				for (int i = n - 1; i >= 0; i--) {
+					int b = block[i] & 0xff;
+					if (b == '\r' || b == '\n') {
+						if (hasTab) {
+							// If it has a tab, it's regular GFF and we shouldn't keep looking for FASTA.
+							// Had there been a header before it, it would have been an illegal FASTA
+							// line, so the headers are all known unless it's a comment.
+							if (firstNonSpace == '#' || first == '>') { scan.headerIDs = null; }
+							return scan;
 						}
-						if(lineToCheck.matches("^>.*")) {
-							// If it starts with a ">", then there's at least some FASTA
-							gff.close();
-							return true;
+						// If it starts with a ">", then there's at least some FASTA
+						// (as LineClassifier would say, taking each byte as a char)
+						if (first == '>') {
+							scan.hasFasta |= !hasTerminator;
+							addHeaderID(gff, blockStart + i + 1, lineEnd, scan.headerIDs);
 						}
+						hasTab = hasTerminator = false;
+						first = firstNonSpace = -1;
+						lineEnd = blockStart + i;
 					} else {
-						// Otherwise, continue building the line
-						currLine.insert(0, currChar);
+						hasTab |= (b == '\t');
+						hasTerminator |= (b == 0x85);
+						first = b;
+						if (b != ' ' && b != '\t' && b != 0x0B && b != '\f') { firstNonSpace = b; }
 					}
 				}
-			} catch(Exception e) {
-				throw new MappingException("Error when checking for FASTA data: " + e.toString());
+				blockEnd = blockStart;
 			}
+			// We got to the beginning of the file!
+			if (hasTab) {
+				if (first == '>') { scan.headerIDs = null; }
+				return scan;
+			}
+			if (first == '>') {
+				scan.hasFasta |= !hasTerminator;
+				addHeaderID(gff, 0, lineEnd, scan.headerIDs);
+			}
+		} catch(Exception e) {
+			throw new MappingException("Error when checking for FASTA data: " + e.toString());
+		} finally {
 			try {
 				gff.close();
 			} catch (IOException e) {}
 		}
 
-		// We got to the beginning of the file!
-		System.err.println("Gff seems to be empty of content other than comments!");
-		return false;
+		if (!scan.hasFasta) {
+			System.err.println("Gff seems to be empty of content other than comments!");
+		}
+		return scan;
+	}
+	// Adds the ID of the line from start to end, if it's a FASTA header, decoded as LineScanner would
+	private void addHeaderID(RandomAccessFile gff, long start, long end, Set<String> headerIDs) throws IOException {
+		byte[] bytes = new byte[(int)(end - start)];
+		gff.seek(start);
+		gff.readFully(bytes);
+		String line = new String(bytes, Charset.defaultCharset());
+		if (LineClassifier.classify(line) == LineType.FASTA_HEADER) {
+			headerIDs.add(getFastaID(line));
+		}
+	}
+	// ID is everything between the first > and the next whitespace (or end of line) after that.
+	private static String getFastaID(String header) {
+		Matcher fastaIDMatcher = FASTA_ID.matcher(header);
+		String foundID = "";
+		while (fastaIDMatcher.find()){
+			foundID = fastaIDMatcher.group(1);
+		}
+		return foundID;
 	}
 
 	public void processFile(File gffFile, File outFile) throws MappingException {
-		// First, read from the end of the file to see if it has any FASTA in it
-		System.out.println("Checking for FASTA data...");
-		Boolean hasFasta = this.fileHasFasta(gffFile);
-		if (hasFasta) {
-			System.out.println("Found FASTA data.");
-		} else {
-			System.out.println("No FASTA data found.");
-		}
-		
-		BufferedReader reader;
+		LineScanner reader;
 		boolean isGZIP = false;
 		try {
 			GZIPInputStream gzStream = getGZIPInputStream(gffFile);
 			if (gzStream != null) {
-				InputStreamReader streamReader = new InputStreamReader(gzStream);
-				reader = new BufferedReader(streamReader);
+				reader = new LineScanner(gzStream);
 				isGZIP = true;
 				System.out.println("File is compressesed (GZIP), and percentage completion will be incorrect.");
 			} else {
-				FileReader fileReader = new FileReader(gffFile);
-				reader = new BufferedReader(fileReader);
+				reader = new LineScanner(gffFile);
 			}
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			System.err.println("Couldn't open " + gffFile + " for reading.");
 			throw new MappingException("Couldn't open " + gffFile, e);
 		}
+		
+		// Read from the end of the file to see if it has any FASTA in it. A compressed file
+		// would have to be decompressed an extra time for that, so instead its IDs are kept
+		// in case FASTA data turns up.
+		boolean hasFasta;
+		Set<String> fastaHeaderIDs = null;
+		if (isGZIP) {
+			System.out.println("FASTA data will be looked for while lifting.");
+			hasFasta = true;
+		} else {
+			System.out.println("Checking for FASTA data...");
+			FastaScan scan = this.fileHasFasta(gffFile);
+			hasFasta = scan.hasFasta;
+			fastaHeaderIDs = scan.headerIDs;
+			if (hasFasta) {
+				System.out.println("Found FASTA data.");
+			} else {
+				System.out.println("No FASTA data found.");
+			}
+		}
 
-		BufferedWriter writer;
+		TextOutputStream writer;
 		try {
 			if (isGZIP) {
 				GZIPOutputStream gzStream = new GZIPOutputStream(new FileOutputStream(outFile));
-				OutputStreamWriter osw = new OutputStreamWriter(gzStream);
-				writer = new BufferedWriter(osw);
+				writer = new TextOutputStream(gzStream);
 			} else {
-				FileWriter fileWriter = new FileWriter(outFile);
-				writer = new BufferedWriter(fileWriter);
+				writer = new TextOutputStream(new FileOutputStream(outFile));
 			}
 		} catch (IOException e) {
 			System.err.println("Couldn't open " + outFile + " for writing.");
@@ -220,7 +283,29 @@ public class GFFUpdater extends AbstractUpdater {
 		FASTAFeature fasta_feature = null;
 		
 		if(hasFasta){
-			fasta_updater = new FASTAUpdater();
+			fasta_updater = new FASTAUpdater(fastaHeaderIDs, isGZIP);
+		}
+		
+		// IDs of lifted features, to be handed to the FASTAUpdater (null if there's no FASTA)
+		List<FASTAReference> fastaIDs = hasFasta ? new ArrayList<FASTAReference>() : null;
+		
+		// When lifting in parallel, the GFF lines before the FASTA section are lifted in chunks by
+		// the workers. The chunks are written, and their IDs handed to the FASTAUpdater, in file order.
+		ExecutorService pool = null;
+		LinkedList<Future<LiftedChunk>> pending = null;
+		ByteArrayOutputStream chunk = null;
+		if (getThreads() > 1) {
+			pool = Executors.newFixedThreadPool(getThreads());
+			pending = new LinkedList<Future<LiftedChunk>>();
+			chunk = new ByteArrayOutputStream(CHUNK_BYTES + (CHUNK_BYTES >> 3));
+		}
+		
+		// The FASTA features are then lifted and formatted by the workers too, and written in order.
+		// Each one's data lines are kept as they are until its worker adds them.
+		LinkedList<Future<ByteArrayOutputStream>> pendingFasta = null;
+		ByteArrayOutputStream fastaLines = null;
+		if (pool != null) {
+			pendingFasta = new LinkedList<Future<ByteArrayOutputStream>>();
 		}
 		
 		long fileSize =  gffFile.length();
@@ -228,67 +313,92 @@ public class GFFUpdater extends AbstractUpdater {
 		boolean fastaMode = false ; // Are we processing the FASTA section (if it exists) ?
 		try {
 			String line;
-			while ((line = reader.readLine()) != null) {
-				bytesProcessed += line.length()+1;
+			while (reader.nextLine()) {
+				bytesProcessed += reader.length()+1;
 				this.updateProgress(bytesProcessed/(double)fileSize);
-				if (line.matches("^\\s*##.*")) {
+				LineType type = LineClassifier.classify(reader);
+				if (!fastaMode && type != LineType.FASTA_HEADER) {
+					if (pool != null) {
+						reader.writeLine(chunk);
+						chunk.write('\n');
+						if (chunk.size() >= CHUNK_BYTES) {
+							pending.add(pool.submit(new ChunkLifter(chunk.toByteArray(), hasFasta)));
+							chunk.reset();
+							// Don't let the reader run too far ahead of the writer
+							while (pending.size() > getThreads() * 2) {
+								writeChunk(pending.removeFirst(), writer, fasta_updater);
+							}
+						}
+					} else {
+						liftLine(reader, type, writer, fastaIDs);
+						addFASTAIDs(fasta_updater, fastaIDs);
+						writer.newLine();
+					}
+					continue;
+				}
+				if (pool != null && !fastaMode) {
+					// Start of the FASTA section, which needs every GFF ID first
+					if (chunk.size() > 0) {
+						pending.add(pool.submit(new ChunkLifter(chunk.toByteArray(), hasFasta)));
+						chunk.reset();
+					}
+					while (!pending.isEmpty()) {
+						writeChunk(pending.removeFirst(), writer, fasta_updater);
+					}
+				}
+				if (fastaLines != null && type != LineType.FASTA_HEADER && !type.isBlankOrComment()) {
+					// Data line - kept for the worker that lifts the current FASTA feature
+					reader.writeLine(fastaLines);
+					fastaLines.write('\n');
+					continue;
+				}
+				if (pendingFasta != null && type.isBlankOrComment()) {
+					// Written after the features before it, as it would be without the workers
+					while (!pendingFasta.isEmpty()) {
+						writeFASTA(pendingFasta.removeFirst(), writer);
+					}
+				}
+				// The FASTA section is handled a line at a time as text
+				line = reader.getLine();
+				if (type == LineType.DIRECTIVE) {
 					writer.write(this.processHeader(line)); //directives
 				} else {
-					if (line.matches("^\\s*$") || line.matches("^\\s*#.*")) {
+					if (type == LineType.BLANK || type == LineType.COMMENT) {
 						writer.write(line); // blank line or comments
 					} else { 
-						if (line.matches("^>.*")) {
+						if (type == LineType.FASTA_HEADER && !fastaMode) {
 							fastaMode = true;
+							if (fasta_updater != null) { fasta_updater.foundFasta(); }
 						}
 						if( fastaMode){
-							if (line.matches("^>.*")) {
+							if (type == LineType.FASTA_HEADER) {
 								// Lift an existing feature and write it to the file
 								if(fasta_feature != null){
-									String toWrite = fasta_updater.liftFeature(fasta_feature).toString();
-									if (toWrite != null) {
-										writer.write(toWrite);
+									if (pendingFasta != null) {
+										pendingFasta.add(pool.submit(new FASTALifter(fasta_feature, fasta_updater, fastaLines.toByteArray())));
+										// Don't let the reader run too far ahead of the writer
+										while (pendingFasta.size() > getThreads() * 2) {
+											writeFASTA(pendingFasta.removeFirst(), writer);
+										}
+									} else if (fasta_updater.liftFeature(fasta_feature).write(writer)) {
 										writer.newLine();
 									}
 									// Then, remove that feature's ID from the FastaUpdater to catch duplicates
 									fasta_updater.clearID(fasta_feature.getID()) ;
 								}
 								// Start up a new fasta feature
-								// ID is everything between the first > and the next whitespace (or end of line) after that.
-								Pattern fastaID = Pattern.compile(">(.*?)([\\s]|$)");
-								Matcher fastaIDMatcher = fastaID.matcher(line);
-								String foundID = "";
-								while (fastaIDMatcher.find()){
-									foundID = fastaIDMatcher.group(1);
-								}
-								//String fastaID = line.substring(line.indexOf(">")+1);
+								String foundID = getFastaID(line);
 								int[] fastaFeatureInfo = fasta_updater.getFeatureInfo(foundID);
 								fasta_feature = new FASTAFeature(foundID, fastaFeatureInfo, line);
+								if (pendingFasta != null) {
+									fastaLines = new ByteArrayOutputStream();
+								}
 							} else {
 								fasta_feature.addContent(line);	// Data line - add to current FASTA feature
 							}
 						} else {
-							GFFFeature currFeature = this.processLine(line);
-							// pull out start and end BEFORE updating the feature
-							// because it modifies itself
-							if (!currFeature.hasLocation()) {
-								writer.write(currFeature.toString());
-							} else {
-								int orig_start = currFeature.getStart() ;
-								int orig_end = currFeature.getEnd() ;
-								writer.write(updateFeature(currFeature).toString());
-								String featureID = currFeature.getID();
-								if(hasFasta && featureID != ""){
-									fasta_updater.addID(
-											featureID, 
-											orig_start, 
-											orig_end,
-											currFeature.getChromosome(),
-											currFeature.getStart(),
-											currFeature.getEnd(),
-											currFeature.getDroppedOrIndeterminate()
-									);	
-								}
-							}
+							writer.write(this.liftFeatureLine(line, fastaIDs));
+							addFASTAIDs(fasta_updater, fastaIDs);
 						}
 					}
 				}
@@ -298,18 +408,33 @@ public class GFFUpdater extends AbstractUpdater {
 					writer.newLine();
 				}
 			}
+			if (pool != null) {
+				if (chunk.size() > 0) {
+					pending.add(pool.submit(new ChunkLifter(chunk.toByteArray(), hasFasta)));
+				}
+				while (!pending.isEmpty()) {
+					writeChunk(pending.removeFirst(), writer, fasta_updater);
+				}
+			}
 			// Then, process the last FASTAfeature (since they're only processed above when a new one comes in)
 			if(fasta_feature != null){
-				String toWrite = fasta_updater.liftFeature(fasta_feature).toString();
-				if (toWrite != null) {
-					writer.write(toWrite);
+				if (pendingFasta != null) {
+					pendingFasta.add(pool.submit(new FASTALifter(fasta_feature, fasta_updater, fastaLines.toByteArray())));
+				} else if (fasta_updater.liftFeature(fasta_feature).write(writer)) {
 					writer.newLine();
 				}
 			}
+			if (pendingFasta != null) {
+				while (!pendingFasta.isEmpty()) {
+					writeFASTA(pendingFasta.removeFirst(), writer);
+				}
+			}
 			
 		} catch (IOException e) {
 			System.err.println("Couldn't read line from " + gffFile);
 			throw new MappingException("Couldn't read line from " + gffFile, e);
+		} finally {
+			if (pool != null) { pool.shutdownNow(); }
 		}
 		try {
 			reader.close();
@@ -318,37 +443,254 @@ public class GFFUpdater extends AbstractUpdater {
 			throw new MappingException("Couldn't close file handles", e);
 		}
 	}
+	
+	// Write the output for a line from before the FASTA section, without the newline. Plain ASCII
+	// feature lines are lifted straight from the bytes where that gives the same output.
+	private void liftLine(LineScanner line, LineType type, TextOutputStream writer, List<FASTAReference> fastaIDs) throws MappingException, IOException {
+		if (type == LineType.DIRECTIVE) {
+			writer.write(this.processHeader(line.getLine())); //directives
+		} else if (!line.isAscii()) {
+			// Written as decoded, like everything else that isn't plain ASCII
+			if (type == LineType.BLANK || type == LineType.COMMENT) {
+				writer.write(line.getLine()); // blank line or comments
+			} else {
+				writer.write(this.liftFeatureLine(line.getLine(), fastaIDs));
+			}
+		} else if (type == LineType.BLANK || type == LineType.COMMENT) {
+			line.writeLine(writer); // blank line or comments
+		} else if (!liftFeatureLine(line, writer, fastaIDs)) {
+			writer.write(this.liftFeatureLine(line.getLine(), fastaIDs));
+		}
+	}
+	
+	// Lift a nine column feature line with plain coordinates by replacing the coordinates in place.
+	// Returns false, having written nothing, if the feature needs GFFFeature.toString.
+	private boolean liftFeatureLine(LineScanner line, TextOutputStream writer, List<FASTAReference> fastaIDs) throws MappingException, IOException {
+		// Only lines GFFFeature.toString would write back as they were, apart from the coordinates
+		if (line.split((byte)'\t') != 9 || !line.isCanonicalPositiveInt(3) || !line.isCanonicalPositiveInt(4)) {
+			return false;
+		}
+		int orig_start = line.parseInt(3);
+		int orig_end = line.parseInt(4);
+		String chromosome = line.getField(0);
+		long res = lift(chromosome, orig_start, orig_end);
+		if ((LiftResult.getFlags(res) & ~(LiftResult.START_SET | LiftResult.END_SET)) != 0) {
+			return false; // Changed features get commented
+		}
+		int start = LiftResult.getStart(res, orig_start);
+		int end = LiftResult.getEnd(res, orig_end);
+		if (start <= 0 || end <= 0) {
+			return false; // Written as "."
+		}
+		line.writeFields(0, 2, writer);
+		writer.write('\t');
+		writer.writeInt(start);
+		writer.write('\t');
+		writer.writeInt(end);
+		writer.write('\t');
+		line.writeFields(5, 8, writer);
+		if (fastaIDs != null) {
+			String featureID = getID(line.getField(8));
+			if (featureID != "") {
+				fastaIDs.add(new FASTAReference(featureID, orig_start, orig_end, chromosome, start, end, false));
+			}
+		}
+		return true;
+	}
+	
+	// Lift a GFF feature line (not a directive, comment or FASTA line) and return the text to write.
+	// If fastaIDs isn't null, the feature's ID and coordinates are added to it for the FASTAUpdater.
+	private String liftFeatureLine(String line, List<FASTAReference> fastaIDs) throws MappingException {
+		GFFFeature currFeature = this.processLine(line);
+		// pull out start and end BEFORE updating the feature
+		// because it modifies itself
+		if (!currFeature.hasLocation()) {
+			return currFeature.toString();
+		}
+		int orig_start = currFeature.getStart() ;
+		int orig_end = currFeature.getEnd() ;
+		String res = updateFeature(currFeature).toString();
+		String featureID = currFeature.getID();
+		if(fastaIDs != null && featureID != ""){
+			fastaIDs.add(new FASTAReference(
+					featureID, 
+					orig_start, 
+					orig_end,
+					currFeature.getChromosome(),
+					currFeature.getStart(),
+					currFeature.getEnd(),
+					currFeature.getDroppedOrIndeterminate()
+			));
+		}
+		return res;
+	}
+	
+	// Hand collected IDs to the FASTAUpdater, in the order they were found
+	private void addFASTAIDs(FASTAUpdater fasta_updater, List<FASTAReference> fastaIDs) throws MappingException {
+		if (fastaIDs == null) { return; }
+		for (FASTAReference ref : fastaIDs) {
+			fasta_updater.addID(ref.id, ref.start, ref.end, ref.chromosome, ref.liftedStart, ref.liftedEnd, ref.dropped);
+		}
+		fastaIDs.clear();
+	}
+	
+	// Wait for a chunk lifted by a worker, write it, and record its IDs
+	private void writeChunk(Future<LiftedChunk> future, TextOutputStream writer, FASTAUpdater fasta_updater) throws MappingException, IOException {
+		LiftedChunk lifted;
+		try {
+			lifted = future.get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while lifting GFF", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't lift GFF chunk", e);
+		}
+		lifted.text.writeTo(writer);
+		addFASTAIDs(fasta_updater, lifted.fastaIDs);
+	}
+	
+	private void writeFASTA(Future<ByteArrayOutputStream> future, TextOutputStream writer) throws MappingException, IOException {
+		ByteArrayOutputStream lifted;
+		try {
+			lifted = future.get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while lifting FASTA", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't lift FASTA feature", e);
+		}
+		lifted.writeTo(writer);
+	}
+	
+	// The arguments to FASTAUpdater.addID for one lifted feature
+	private static class FASTAReference {
+		private String id, chromosome;
+		private int start, end, liftedStart, liftedEnd;
+		private boolean dropped;
+		
+		private FASTAReference(String id, int start, int end, String chromosome, int liftedStart, int liftedEnd, boolean dropped) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.chromosome = chromosome;
+			this.liftedStart = liftedStart;
+			this.liftedEnd = liftedEnd;
+			this.dropped = dropped;
+		}
+	}
+	
+	private static class LiftedChunk {
+		private ByteArrayOutputStream text;
+		private List<FASTAReference> fastaIDs;
+	}
+	
+	// Lifts a run of lines (each ending in \n) from before the FASTA section, the same way processFile does
+	private class ChunkLifter implements Callable<LiftedChunk> {
+		private byte[] lines;
+		private boolean hasFasta;
+		
+		private ChunkLifter(byte[] lines, boolean hasFasta) {
+			this.lines = lines;
+			this.hasFasta = hasFasta;
+		}
+		public LiftedChunk call() throws MappingException, IOException {
+			LiftedChunk res = new LiftedChunk();
+			res.fastaIDs = hasFasta ? new ArrayList<FASTAReference>() : null;
+			res.text = new ByteArrayOutputStream(lines.length + (lines.length >> 3));
+			TextOutputStream text = new TextOutputStream(res.text);
+			LineScanner scanner = new LineScanner(ByteBuffer.wrap(lines));
+			while (scanner.nextLine()) {
+				liftLine(scanner, LineClassifier.classify(scanner), text, res.fastaIDs);
+				text.newLine();
+			}
+			text.flush();
+			return res;
+		}
+	}
+
+	// Adds the data lines (each ending in \n) to a FASTA feature, then lifts and formats it, the same way processFile does
+	private class FASTALifter implements Callable<ByteArrayOutputStream> {
+		private FASTAFeature feature;
+		private FASTAUpdater fasta_updater;
+		private byte[] lines;
+		
+		private FASTALifter(FASTAFeature feature, FASTAUpdater fasta_updater, byte[] lines) {
+			this.feature = feature;
+			this.fasta_updater = fasta_updater;
+			this.lines = lines;
+		}
+		public ByteArrayOutputStream call() throws MappingException, IOException {
+			LineScanner scanner = new LineScanner(ByteBuffer.wrap(lines));
+			while (scanner.nextLine()) {
+				feature.addContent(scanner.getLine());
+			}
+			lines = null;
+			ByteArrayOutputStream res = new ByteArrayOutputStream();
+			TextOutputStream text = new TextOutputStream(res);
+			if (fasta_updater.liftFeature(feature).write(text)) {
+				text.newLine();
+			}
+			text.flush();
+			return res;
+		}
+	}
 
 	private class FASTAUpdater {
-		// A list of IDs found in the GFF file that may refer to FASTA sequences.
-		// Format:
-		// <ID_name, fasta_info_array]>
-		// fasta_info_array has assorted information about the fasta sequence
-		// in order:
+		// The IDs found in the GFF file that may refer to FASTA sequences, each with an
+		// array of assorted information about the fasta sequence, in order:
 		//		feature_start, 
 		//		feature end,
 		//		chrom_index,
 		//		target_start (where it is expected to start once fully lifted, based on GFF),
 		//		target_end,
 		//		dropped_feature (0 if it has not been dropped or made indeterminate ; 1 if it has.)
-		// The feature's chromosome is chromosomes[chrom_index]
-		private HashMap <String, int[]> id_references;
+		// The feature's chromosome is chromosomes.get(chrom_index)
+		private IDRecordTable id_references;
+		// The IDs of the FASTA headers, if they're known before the FASTA data is reached;
+		// only those IDs are kept. If not, every ID is.
+		private Set<String> fastaHeaderIDs;
+		
+		// The chromosomes of the features, each interned as its index in chromosomes
+		private List<String> chromosomes = new ArrayList<String>();
+		private HashMap<String, Integer> chromosomeIndexes = new HashMap<String, Integer>();
+		// The mapping data's chromosomes by their lower case names
+		private HashMap<String, String> mappedChromosomes = new HashMap<String, String>();
 		
-		// Worm chromosomes to provide an index to locate each feature on.
-		private String[] chromosomes = {"I", "II", "III","IV","V","X"};
+		// When it isn't known yet whether the file has FASTA data, a duplicate ID is only failed
+		// on once it turns up. If it never does, the IDs are never needed.
+		private boolean deferDuplicates ;
+		private String firstDuplicate = null ;
 		
-		public FASTAUpdater() {
-			id_references = new HashMap<String, int[]>() ;
+		public FASTAUpdater(Set<String> fastaHeaderIDs, boolean deferDuplicates) {
+			id_references = new IDRecordTable(6) ;
+			this.fastaHeaderIDs = fastaHeaderIDs ;
+			this.deferDuplicates = deferDuplicates ;
+			for (MappingData md : mappingData) {
+				for (String chr : md.getChromosomes()) {
+					mappedChromosomes.put(chr.toLowerCase(), chr) ;
+				}
+			}
+		}
+		
+		// Called on reaching the FASTA data
+		public void foundFasta() throws MappingException {
+			deferDuplicates = false ;
+			if (firstDuplicate != null) {
+				throw new MappingException("Can't process file that contains duplicate feature ID " + firstDuplicate);
+			}
 		}
 		
 		// remove the info associated with id from the fasta updater
 		// once the fasta line has been written
 		public void clearID(String id) {
-			id_references.put(id, null);		
+			id_references.clear(id);		
 		}
 
-		// you cannot add an ID that is already in the HashMap.
+		// you cannot add an ID that is already in the table.
 		// IDs are guaranteed to be unique within a gff.
+		// Returns false if the ID can't be a FASTA header's, so isn't kept.
 		public boolean addID
 							(
 								String IDname, 
@@ -359,18 +701,21 @@ public class GFFUpdater extends AbstractUpdater {
 								int liftedEnd,
 								boolean isDropped
 							) throws MappingException {			
-			if( id_references.containsKey(IDname)) {
-				throw new MappingException("Can't process file that contains duplicate feature ID " + IDname);
+			if (fastaHeaderIDs != null && !fastaHeaderIDs.contains(IDname)) {
+				return false ;
 			}
-			int chromIndex = -1 ;
-			// Pull out the chromosome from chromosomes
-			for (int i = 0; i < this.chromosomes.length ; ++i){
-				if ( chrom.equalsIgnoreCase(this.chromosomes[i])) {
-					chromIndex = i;
+			Integer chromIndex = chromosomeIndexes.get(chrom) ;
+			if (chromIndex == null) {
+				// A chromosome in the mapping data is lifted under its name there, whatever the case;
+				// any other is kept as it is, with nothing to lift it by
+				String name = mappedChromosomes.get(chrom.toLowerCase()) ;
+				if (name == null) { name = chrom ; }
+				chromIndex = chromosomes.indexOf(name) ;
+				if (chromIndex < 0) {
+					chromIndex = chromosomes.size() ;
+					chromosomes.add(name) ;
 				}
-			}
-			if (chromIndex == -1){
-				throw new MappingException("Couldn't find chromosome " + chrom + "in lifting data!");
+				chromosomeIndexes.put(chrom, chromIndex) ;
 			}
 			int[] contentArray = new int[6];
 			contentArray[0] = start ;
@@ -379,8 +724,14 @@ public class GFFUpdater extends AbstractUpdater {
 			contentArray[3] = liftedStart ;
 			contentArray[4] = liftedEnd ;
 			contentArray[5] = (isDropped)? 1 : 0 ;
-			// Adds the start and end to the hashMap under that ID
-			id_references.put(IDname, contentArray);
+			// Adds the start and end to the table under that ID
+			if (!id_references.put(IDname, contentArray)) {
+				if (deferDuplicates) {
+					if (firstDuplicate == null) { firstDuplicate = IDname ; }
+					return true ;
+				}
+				throw new MappingException("Can't process file that contains duplicate feature ID " + IDname);
+			}
 			return true;
 		}
 		
@@ -389,7 +740,7 @@ public class GFFUpdater extends AbstractUpdater {
 		}
 		public String getChrom(FASTAFeature feature)
 		{
-			return this.chromosomes[id_references.get(feature.getID())[2]];
+			return this.chromosomes.get(feature.getChromIndex());
 		}
 		
 		// This method actually does the heavy lifting.
@@ -434,11 +785,13 @@ public class GFFUpdater extends AbstractUpdater {
 	}
 
 	private class FASTAFeature {
-		private String FASTA_UNKNOWN_BASE = "X" ;
+		private static final byte FASTA_UNKNOWN_BASE = 'X' ;
+		private static final int FASTA_LINE_LENGTH = 70 ;
 		private String id ;
 		private String fullHeaderLine ; // original header of the feature
-		private StringBuilder fasta_content;
-		private StringBuilder original_fasta_content ;
+		private PackedSequence original_fasta_content ; // as read, two bits a base
+		// The lifted content, as edits to the original; only put together when written
+		private PieceTable fasta_content ;
 		// 1-based closed coordinates for the feature, taken from the gff line.
 		private int start ;
 		private int end ;
@@ -446,6 +799,7 @@ public class GFFUpdater extends AbstractUpdater {
 		private int target_start ;
 		private int target_end ;
 		private boolean is_dropped ;
+		private int chrom_index ; // in FASTAUpdater.chromosomes
 		
 		public FASTAFeature(String new_id, int[] info, String headerLine) throws MappingException{
 			// Info format :
@@ -462,22 +816,22 @@ public class GFFUpdater extends AbstractUpdater {
 			this.target_start = info[3];
 			this.target_end = info[4];
 			this.is_dropped = (info[5] != 0) ;
+			this.chrom_index = info[2] ;
 			
-			this.fasta_content = new StringBuilder();
-			this.original_fasta_content = new StringBuilder();
+			this.original_fasta_content = new PackedSequence();
 			this.fullHeaderLine = headerLine ;
 		}
 		
 		// Checks that the reported start & end are consistent with the length of the fasta content
 		public boolean hasInconsistentLength(boolean verbose){
 			int lengthFromCoords = this.end - this.start + 1 ;
-			boolean inconsistent = (lengthFromCoords != this.fasta_content.length());
+			boolean inconsistent = (lengthFromCoords != this.getContentLength());
 			if (verbose && inconsistent){
 				System.err.println( 
 									"Feature " +
 									this.id +
 									" is inconsistent! The content length is " +
-									this.fasta_content.length() +
+									this.getContentLength() +
 									" but the length reported from the gff line is " +
 									lengthFromCoords 
 									);
@@ -488,12 +842,19 @@ public class GFFUpdater extends AbstractUpdater {
 			return this.is_dropped ;
 		}
 		public boolean isChanged(){
-			return ! this.fasta_content.toString().equals(this.original_fasta_content.toString()) ;
+			// X can't be in the original content, so any edit changes it
+			return this.fasta_content != null && this.fasta_content.isChanged() ;
 		}
 		
 		public String getID() {
 			return id;
 		}
+		public int getChromIndex() {
+			return chrom_index;
+		}
+		private int getContentLength(){
+			return (this.fasta_content == null) ? this.original_fasta_content.length() : this.fasta_content.length() ;
+		}
 		public int getStart(){
 			return this.start;
 		}
@@ -514,6 +875,9 @@ public class GFFUpdater extends AbstractUpdater {
 		// A mismatch with end = start - 1 indicates a 0-length site.
 		public FASTAFeature doIncrementalLift(MappingData.MismatchPair liftPair) throws MappingException{
 			assert !this.hasInconsistentLength(true);
+			if (this.fasta_content == null) {
+				this.fasta_content = new PieceTable(this.original_fasta_content.length());
+			}
 			
 			int mm_start = liftPair.previousMismatch.start;
 			int mm_end = liftPair.previousMismatch.end;
@@ -575,18 +939,11 @@ public class GFFUpdater extends AbstractUpdater {
 			// Removing bases: we don't know which bases are gone so replace all remaining bases with "N" for unknown
 			// ALSO UPDATE START AND END
 			if (length_diff <= 0) {
-				String newBases = buildFillerString(overlap_new_length, FASTA_UNKNOWN_BASE);
-				// delete(s, e) deletes contents at index s through e - 1 .
-				// if s = e deletes nothing.
-				// if s > e crashes.
-				// Remove the existing overlap content (ois through oie inclusive)
-				this.fasta_content.delete(overlap_index_start, overlap_index_end + 1);
-				// Insert the new bases 
-				this.fasta_content.insert(overlap_index_start, newBases);
+				// Replace the existing overlap content (ois through oie inclusive) with the new bases
+				this.fasta_content.splice(overlap_index_start, overlap_index_end + 1 - overlap_index_start, overlap_new_length);
 			} else {
 				// add new bases as "X" to the end of the overlap zone
-				String addedBases = buildFillerString(length_diff, FASTA_UNKNOWN_BASE);
-				this.fasta_content.insert(overlap_index_end + 1 , addedBases);
+				this.fasta_content.splice(overlap_index_end + 1, 0, length_diff);
 			}
 			// Then, update end to account for the added or removed bases
 			// If overlap was < 0 this has already happened
@@ -596,70 +953,72 @@ public class GFFUpdater extends AbstractUpdater {
 			assert !this.hasInconsistentLength(true) ;
 			return this ;
 		}
-		// returns the pass stringBuilder formatted to 70 characters, prefixed by prefix if given.
-		// The length will be (70 + prefix.length) characters.
-		public StringBuilder formatContent(String prefix, StringBuilder content){
+		// Writes the content 70 characters to a line, each line prefixed by prefix if given,
+		// without a newline after the last. The lifted content is put together a line at a time.
+		private void formatContent(String prefix, boolean lifted, TextOutputStream writer) throws IOException {
 			prefix = (prefix == null ? "" : prefix);
-			StringBuilder formatted_content = new StringBuilder( prefix ) ;
-			String separator = "\n" + prefix ;
-			// insert a newline every 70th char
-			for (int start = 0 ; start < content.length(); start += 70) {
-				int end = start + 70 ;
+			int length = lifted ? this.getContentLength() : this.original_fasta_content.length();
+			byte[] line = new byte[FASTA_LINE_LENGTH];
+			writer.write(prefix);
+			for (int start = 0 ; start < length; start += FASTA_LINE_LENGTH) {
+				int end = Math.min(start + FASTA_LINE_LENGTH, length);
+				if (lifted && this.fasta_content != null) {
+					this.fasta_content.getBytes(start, end, line, 0, this.original_fasta_content, FASTA_UNKNOWN_BASE);
+				} else {
+					this.original_fasta_content.getBytes(start, end, line, 0);
+				}
+				writer.write(line, 0, end - start);
 				// If we've reached the last line, don't add a newline at the end
-				if(end >= content.length()) {
-					end = content.length() ;
-					separator = "";
+				if (end < length) {
+					writer.write('\n');
+					writer.write(prefix);
 				}
-				formatted_content.append(content.substring(start, end) + separator);
 			}
-			return formatted_content ;
 		}
-		// Returns the FASTAFeature formatted for writing to file
-		public String toString(){
-			StringBuilder res = new StringBuilder("") ;
+		// Writes the FASTAFeature to the file, without a newline at the end.
+		// Returns false, having written nothing, if it's dropped.
+		public boolean write(TextOutputStream writer) throws IOException {
 			String pfx = (new GFFFeature()).getCommentPrefix() ;
 			
 			if(isVerbose()){
 				// If the feature is dropped, comment it out completely
 				if(this.isDroppedOrIndeterminate()){
-					res.append( pfx +  "Following FASTA feature dropped due to indeterminate content:\n" );
-					res.append(pfx + this.fullHeaderLine + "\n");
-					res.append(formatContent(pfx, this.original_fasta_content));
-					return res.toString() ;
+					writer.write( pfx +  "Following FASTA feature dropped due to indeterminate content:\n" );
+					writer.write(pfx + this.fullHeaderLine + "\n");
+					formatContent(pfx, false, writer);
+					return true ;
 					// if the feature is changed, attach the original internal structure
 				} else if (this.isChanged()) {
-					res.append(pfx + "The following feature's internal structure changed:\n");
-					res.append(pfx+ this.fullHeaderLine + "\n");
-					res.append(formatContent(pfx, this.original_fasta_content)) ;
-					res.append("\n");
+					writer.write(pfx + "The following feature's internal structure changed:\n");
+					writer.write(pfx+ this.fullHeaderLine + "\n");
+					formatContent(pfx, false, writer) ;
+					writer.write('\n');
 				}
 			} else {
 				// Without verbose, drop or change the feature silently
 				if(this.isDroppedOrIndeterminate()){
-					return null ;
+					return false ;
 				}
 			}
 			// Add the full header line and the actual content
-			res.append(this.fullHeaderLine + "\n");
-			res.append(formatContent("", this.fasta_content));
-			return res.toString() ;
+			writer.write(this.fullHeaderLine + "\n");
+			formatContent("", true, writer);
+			return true ;
 		}
 		
 		// Adds content to FASTA, stripping newlines
 		public boolean addContent(String new_content) throws MappingException
 		{
 			// Strip newlines
-			new_content = new_content.replaceAll("(\n|\r)", "") ;
+			new_content = FASTA_LINE_BREAKS.matcher(new_content).replaceAll("") ;
 			// Make sure this is a DNA / RNA string.
 			// Allowed: ACGT, U, and N for any/unknown.
 			// No multi-base chars or '-' (indeterminate length) allowed,
 			// so that we don't have to handle them later.
-			String allowed_chars = "[acgntuACGNTU]*";
-			if (! new_content.matches(allowed_chars)){
+			if (! FASTA_BASES.matcher(new_content).matches()){
 				throw new MappingException(
 					"Feature " + this.id + ":  Illegal character found in FASTA content\n\"" + new_content + "\"\nAllowed characters are: acgntuACGNTU");
 			}
-			fasta_content.append(new_content);
 			original_fasta_content.append(new_content);
 			return true;
 		}
@@ -692,19 +1051,7 @@ public class GFFUpdater extends AbstractUpdater {
 		}
 
 		public String getID(){
-			if (this.attributes == null) {
-				return "";
-			}
-			String id = "" ;
-			// We're looking for a pattern of ID=target;
-			// Attribute names are case sensitive
-			Pattern idAttribute = Pattern.compile(".*ID=(.*?)(;.*|$)");
-			Matcher matchId = idAttribute.matcher(this.attributes);
-			while (matchId.find()) {
-			    id = matchId.group(1);
-			}
-			
-			return id;
+			return GFFUpdater.getID(this.attributes);
 		}
 		
 		public String toString() {
@@ -752,11 +1099,33 @@ public class GFFUpdater extends AbstractUpdater {
 			return res;
 		}
 	}
-	// Returns a String consisting of length instances of FillerChar 
-	private static String buildFillerString(int length, String FillerChar) {
-		String[] tempArray = new String[length];
-		Arrays.fill(tempArray, FillerChar) ;
-		return join("", Arrays.asList(tempArray));
+	// The ID attribute from a GFF attributes column, or "" if there isn't one
+	private static String getID(String attributes) {
+		if (attributes == null || attributes.indexOf("ID=") < 0) {
+			return "";
+		}
+		if (!hasLineTerminator(attributes)) {
+			// What ID_ATTRIBUTE finds: from the last ID= up to the next ; or the end
+			int start = attributes.lastIndexOf("ID=") + 3;
+			int end = attributes.indexOf(';', start);
+			return attributes.substring(start, (end < 0) ? attributes.length() : end);
+		}
+		String id = "" ;
+		// We're looking for a pattern of ID=target;
+		Matcher matchId = ID_ATTRIBUTE.matcher(attributes);
+		while (matchId.find()) {
+		    id = matchId.group(1);
+		}
+		
+		return id;
+	}
+	// True if "." in a Pattern wouldn't match all of s
+	private static boolean hasLineTerminator(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') { return true; }
+		}
+		return false;
 	}
 	private static String join(Object delimiter, Iterable<?> elements) {
 		StringBuilder b = new StringBuilder();
@@ -0,0 +1,185 @@
+package org.modencode.tools.liftover.updater;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+
+import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.RuntimeIOException;
+import net.sf.samtools.util.SortingCollection;
+
+/**
+ * Where each read of a pair was lifted to, for filling in its mate's fields. Built on a first
+ * pass through the file: addRead for each primary alignment, and addMateRequest for each
+ * record that wants its mate. After doneAdding, getMate gives the mate for each record in
+ * file order on a second pass. Reads are found by name and segment (first or second of the
+ * pair); both sets are sorted on disk with SortingCollection, so memory use doesn't grow
+ * with the file.
+ */
+public class SAMMateIndex {
+	public static final int FIRST_OF_PAIR = 1;
+	public static final int SECOND_OF_PAIR = 2;
+
+	// Reads and requests, sorted by name and segment to join them
+	private SortingCollection<Entry> byName;
+	// The joined mates, sorted back into file order
+	private SortingCollection<Entry> byRecord;
+	private CloseableIterator<Entry> mates = null;
+	private Entry nextMate = null;
+
+	public SAMMateIndex(int maxRecordsInRam) {
+		byName = SortingCollection.newInstance(Entry.class, new EntryCodec(), new ByNameComparator(), maxRecordsInRam);
+		byRecord = SortingCollection.newInstance(Entry.class, new EntryCodec(), new ByRecordComparator(), maxRecordsInRam);
+	}
+
+	// A read as lifted; referenceIndex is -1 and start 0 for a read with no position
+	public void addRead(String name, int segment, int referenceIndex, int start, int end, boolean unmapped) {
+		byName.add(new Entry(name, segment, false, -1, referenceIndex, start, end, unmapped));
+	}
+	// Record number recordNumber wants the read name's mateSegment
+	public void addMateRequest(String name, int mateSegment, long recordNumber) {
+		byName.add(new Entry(name, mateSegment, true, recordNumber, -1, 0, 0, false));
+	}
+
+	// Join the requests to their reads; requests for reads that weren't added get no mate
+	public void doneAdding() {
+		byName.doneAdding();
+		CloseableIterator<Entry> entries = byName.iterator();
+		Entry read = null;
+		while (entries.hasNext()) {
+			Entry e = entries.next();
+			if (!e.request) {
+				// The first read with this name and segment, if it's in more than once
+				if (read == null || !read.hasSameKey(e)) { read = e; }
+			} else if (read != null && read.hasSameKey(e)) {
+				byRecord.add(new Entry("", read.segment, false, e.recordNumber, read.referenceIndex, read.start, read.end, read.unmapped));
+			}
+		}
+		entries.close();
+		byName.cleanup();
+		byRecord.doneAdding();
+		mates = byRecord.iterator();
+	}
+
+	// The mate for record number recordNumber, or null; record numbers must be asked for in order
+	public Mate getMate(long recordNumber) {
+		while (nextMate == null || nextMate.recordNumber < recordNumber) {
+			if (!mates.hasNext()) { return null; }
+			nextMate = mates.next();
+		}
+		return (nextMate.recordNumber == recordNumber) ? nextMate : null;
+	}
+
+	// Remove any temporary files
+	public void cleanup() {
+		if (mates != null) { mates.close(); }
+		byName.cleanup();
+		byRecord.cleanup();
+	}
+
+	public interface Mate {
+		public int getReferenceIndex();
+		public int getStart();
+		public int getEnd();
+		public boolean isUnmapped();
+	}
+
+	private static class Entry implements Mate {
+		private String name;
+		private int segment;
+		private boolean request;
+		private long recordNumber;
+		private int referenceIndex, start, end;
+		private boolean unmapped;
+
+		private Entry(String name, int segment, boolean request, long recordNumber, int referenceIndex, int start, int end, boolean unmapped) {
+			this.name = name;
+			this.segment = segment;
+			this.request = request;
+			this.recordNumber = recordNumber;
+			this.referenceIndex = referenceIndex;
+			this.start = start;
+			this.end = end;
+			this.unmapped = unmapped;
+		}
+		private boolean hasSameKey(Entry e) {
+			return segment == e.segment && name.equals(e.name);
+		}
+		public int getReferenceIndex() {
+			return referenceIndex;
+		}
+		public int getStart() {
+			return start;
+		}
+		public int getEnd() {
+			return end;
+		}
+		public boolean isUnmapped() {
+			return unmapped;
+		}
+	}
+
+	// Name, then segment, then reads before the requests for them, then file order
+	private static class ByNameComparator implements Comparator<Entry> {
+		public int compare(Entry a, Entry b) {
+			int cmp = a.name.compareTo(b.name);
+			if (cmp != 0) { return cmp; }
+			if (a.segment != b.segment) { return a.segment - b.segment; }
+			if (a.request != b.request) { return a.request ? 1 : -1; }
+			return (a.recordNumber < b.recordNumber) ? -1 : (a.recordNumber == b.recordNumber ? 0 : 1);
+		}
+	}
+	private static class ByRecordComparator implements Comparator<Entry> {
+		public int compare(Entry a, Entry b) {
+			return (a.recordNumber < b.recordNumber) ? -1 : (a.recordNumber == b.recordNumber ? 0 : 1);
+		}
+	}
+
+	private static class EntryCodec implements SortingCollection.Codec<Entry> {
+		private DataOutputStream out;
+		private DataInputStream in;
+
+		public void setOutputStream(OutputStream os) {
+			out = new DataOutputStream(os);
+		}
+		public void setInputStream(InputStream is) {
+			in = new DataInputStream(is);
+		}
+		public void encode(Entry e) {
+			try {
+				out.writeUTF(e.name);
+				out.writeByte(e.segment | (e.request ? 4 : 0) | (e.unmapped ? 8 : 0));
+				out.writeLong(e.recordNumber);
+				out.writeInt(e.referenceIndex);
+				out.writeInt(e.start);
+				out.writeInt(e.end);
+			} catch (IOException ex) {
+				throw new RuntimeIOException(ex);
+			}
+		}
+		// The next entry, or null at the end of the stream
+		public Entry decode() {
+			String name;
+			try {
+				name = in.readUTF();
+			} catch (EOFException ex) {
+				return null;
+			} catch (IOException ex) {
+				throw new RuntimeIOException(ex);
+			}
+			try {
+				int flags = in.readByte();
+				return new Entry(name, flags & 3, (flags & 4) != 0, in.readLong(), in.readInt(), in.readInt(), in.readInt(), (flags & 8) != 0);
+			} catch (IOException ex) {
+				throw new RuntimeIOException(ex);
+			}
+		}
+		public EntryCodec clone() {
+			return new EntryCodec();
+		}
+	}
+}
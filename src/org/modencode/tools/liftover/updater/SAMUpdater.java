@@ -1,8 +1,27 @@
 package org.modencode.tools.liftover.updater;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import net.sf.samtools.Cigar;
 import net.sf.samtools.CigarElement;
@@ -10,17 +29,39 @@ import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFormatException;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.StringLineReader;
 
 import org.modencode.tools.liftover.AbstractFeature;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.MismatchTable;
+import org.modencode.tools.liftover.io.BAMIndexReader;
+import org.modencode.tools.liftover.io.LineScanner;
+import org.modencode.tools.liftover.io.ParallelBAMFileReader;
+import org.modencode.tools.liftover.io.ParallelBAMFileWriter;
+import org.modencode.tools.liftover.io.RawBAMRecord;
 import org.modencode.tools.liftover.io.SAMFileWriterFactoryCompressed;
+import org.modencode.tools.liftover.io.TextOutputStream;
 
 public class SAMUpdater extends AbstractUpdater {
 
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int NOT_JUST_SHIFTED = Integer.MIN_VALUE;
+	// Mate index entries kept in memory before they're sorted out to disk
+	private static final int MATE_INDEX_RECORDS_IN_RAM = 500000;
+	private static final int SAM_TEXT_COLUMNS = 11; // QNAME through QUAL; tags follow
+	private static final int SAM_NO_MAPPING_QUALITY = 255;
+
 	SAMFileReader.ValidationStringency stringency = SAMFileReader.ValidationStringency.DEFAULT_STRINGENCY;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private boolean syncMates = false;
+	private int sortWindow = 0;
+	private boolean createIndex = false;
+	private boolean byReference = false;
 	public SAMUpdater(List<MappingData> mappingData) {
 		super(mappingData);
 	}
@@ -29,6 +70,57 @@ public class SAMUpdater extends AbstractUpdater {
 		this.stringency = stringency;
 	}
 	
+	// Number of records each lift worker takes at a time when lifting in parallel
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Lift each read on its own and then take its mate's position, reference and unmapped flag
+	 * from where the mate itself was lifted to, over two passes through the file (see
+	 * processFileSyncingMates). This handles mates on other chromosomes and mates before the
+	 * read, which the usual rules can't.
+	 */
+	public void setSyncMates(boolean syncMates) {
+		this.syncMates = syncMates;
+	}
+	public boolean getSyncMates() {
+		return syncMates;
+	}
+	
+	/**
+	 * Put BAM output back in coordinate order as it's written, holding back this many records
+	 * at a time (0 to write records in the order they're lifted). Lifting moves reads only a
+	 * little, so a small window usually does; see ParallelBAMFileWriter.
+	 */
+	public void setSortWindow(int sortWindow) {
+		this.sortWindow = Math.max(0, sortWindow);
+	}
+	public int getSortWindow() {
+		return sortWindow;
+	}
+	// Write a BAI index alongside BAM output
+	public void setCreateIndex(boolean createIndex) {
+		this.createIndex = createIndex;
+	}
+	public boolean getCreateIndex() {
+		return createIndex;
+	}
+	
+	/**
+	 * Lift a coordinate-sorted BAM file that has a BAI index one reference sequence at a time,
+	 * several at once (see processFileByReference). Other input is lifted as usual.
+	 */
+	public void setByReference(boolean byReference) {
+		this.byReference = byReference;
+	}
+	public boolean getByReference() {
+		return byReference;
+	}
+	
 	public SAMFileHeader updateHeader(SAMFileHeader header) throws MappingException {
 		/**This function loops through all SQ headers and updates the length 
 		 * coordinate by adding the net change in length calculated from the
@@ -54,29 +146,734 @@ public class SAMUpdater extends AbstractUpdater {
 	}
 	
 	public void processFile(File samFile, File outFile) throws MappingException {
-		SAMFileReader reader = new SAMFileReader(samFile);
+		if (syncMates) {
+			processFileSyncingMates(samFile, outFile);
+			return;
+		}
+		if (byReference && outFile.getName().endsWith(".bam") && processFileByReference(samFile, outFile)) {
+			return;
+		}
+		// Without validation, SAM text can be lifted without parsing the rest of each line
+		if (stringency == SAMFileReader.ValidationStringency.SILENT && isSAMText(samFile, outFile)) {
+			processSAMText(samFile, outFile);
+			return;
+		}
+		// Without validation, BAM records that are only shifted can be copied without decoding them
+		boolean bamToBAM = outFile.getName().endsWith(".bam") && stringency == SAMFileReader.ValidationStringency.SILENT;
+		SAMFileReader reader = null;
+		ParallelBAMFileReader bamReader = null;
+		SAMFileHeader header;
+		if ((getThreads() > 1 || bamToBAM) && ParallelBAMFileReader.isBAMFile(samFile)) {
+			// Decompress BAM on several threads too
+			try {
+				bamReader = new ParallelBAMFileReader(samFile, getThreads(), stringency);
+			} catch (IOException e) {
+				throw new MappingException("Couldn't read BAM file " + samFile, e);
+			}
+			header = bamReader.getFileHeader();
+		} else {
+			reader = openReader(samFile);
+			header = reader.getFileHeader();
+		}
+		header = this.updateHeader(header);
+		SAMFileWriterFactoryCompressed writerFactory = makeWriterFactory();
 		
+		if (bamReader != null && bamToBAM) {
+			ParallelBAMFileWriter writer = writerFactory.makeParallelBAMWriter(header, true, outFile);
+			processRawRecords(bamReader, writer);
+			writer.close();
+		} else {
+			SAMFileWriter writer = writerFactory.makeSAMOrBAMWriter(header, true, outFile);
+			if (getThreads() > 1) {
+				processRecordsInParallel(bamReader != null ? bamReader : reader, writer);
+			} else {
+				try {
+					for (SAMRecord r : reader) {
+						SAMFeature f = new SAMFeature(r);
+						f = (SAMFeature)this.updateFeature(f);
+						writer.addAlignment(r);
+					}
+				} catch (SAMFormatException e) {
+					reportFormatError(e);
+				}
+			}
+			writer.close();
+		}
+		if (bamReader != null) {
+			try {
+				bamReader.close();
+			} catch (IOException ignore) { }
+		}
+	}
+	private SAMFileWriterFactoryCompressed makeWriterFactory() {
+		return new SAMFileWriterFactoryCompressed().setThreads(getThreads()).setSortWindow(sortWindow).setCreateIndex(createIndex);
+	}
+	private SAMFileReader openReader(File samFile) {
+		SAMFileReader reader = new SAMFileReader(samFile);
 		reader.setValidationStringency(stringency);
+		return reader;
+	}
+	
+	/*
+	 * The first pass lifts every read on its own and notes where it went in a SAMMateIndex,
+	 * along with which records want which mate. The second pass lifts the reads again, the same
+	 * way, and fills in RNEXT, PNEXT, TLEN and the mate unmapped flag from the index. Records
+	 * whose mate isn't in the file (or that aren't marked as one read of a pair) keep their mate
+	 * fields as they were. Secondary alignments look up their mate but aren't added themselves.
+	 */
+	private void processFileSyncingMates(File samFile, File outFile) throws MappingException {
+		SAMMateIndex index = new SAMMateIndex(MATE_INDEX_RECORDS_IN_RAM);
+		try {
+			SAMFileReader reader = openReader(samFile);
+			long recordNumber = 0;
+			try {
+				for (SAMRecord r : reader) {
+					int segment = getSegment(r);
+					liftReadAlone(r);
+					if (segment != 0) {
+						if (!r.getNotPrimaryAlignmentFlag()) {
+							index.addRead(r.getReadName(), segment, r.getReferenceIndex(), r.getAlignmentStart(), r.getAlignmentEnd(), r.getReadUnmappedFlag());
+						}
+						index.addMateRequest(r.getReadName(), SAMMateIndex.FIRST_OF_PAIR + SAMMateIndex.SECOND_OF_PAIR - segment, recordNumber);
+					}
+					recordNumber++;
+				}
+			} catch (SAMFormatException e) {
+				// The second pass stops at the same record and reports it
+			}
+			reader.close();
+			index.doneAdding();
+			
+			reader = openReader(samFile);
+			SAMFileHeader header = this.updateHeader(reader.getFileHeader());
+			SAMFileWriter writer = makeWriterFactory().makeSAMOrBAMWriter(header, true, outFile);
+			recordNumber = 0;
+			try {
+				for (SAMRecord r : reader) {
+					boolean paired = r.getReadPairedFlag();
+					int segment = getSegment(r);
+					String mateChromosome = r.getMateReferenceName();
+					int mateStart = r.getMateAlignmentStart();
+					boolean mateUnmapped = paired && r.getMateUnmappedFlag();
+					int insertSize = r.getInferredInsertSize();
+					liftReadAlone(r);
+					
+					SAMMateIndex.Mate mate = (segment != 0) ? index.getMate(recordNumber) : null;
+					if (mate != null) {
+						setMate(r, mate, insertSize);
+					} else if (paired) {
+						r.setMateReferenceName(mateChromosome);
+						r.setMateAlignmentStart(mateStart);
+						r.setMateUnmappedFlag(mateUnmapped);
+						r.setInferredInsertSize(insertSize);
+					}
+					recordNumber++;
+					writer.addAlignment(r);
+				}
+			} catch (SAMFormatException e) {
+				reportFormatError(e);
+			}
+			writer.close();
+			reader.close();
+		} finally {
+			index.cleanup();
+		}
+	}
+	// SAM (or gzipped SAM) to SAM, which processSAMText can do without Picard's reader and writer
+	private static boolean isSAMText(File samFile, File outFile) {
+		String name = outFile.getName();
+		return (name.endsWith(".sam") || name.endsWith(".sam.gz")) && !ParallelBAMFileReader.isBAMFile(samFile);
+	}
+	
+	/*
+	 * SAM text is lifted a line at a time straight from a LineScanner. Only the columns lifting
+	 * looks at (QNAME through TLEN) are parsed, into a SAMRecord with no sequence, qualities or
+	 * tags, and the lifted line is written the way SAMTextWriter writes those columns, with
+	 * SEQ, QUAL and the tags copied from the input as they are. The header is decoded and
+	 * encoded with Picard's codec, as SAMFileReader and SAMTextWriter do. Since nothing but the
+	 * alignment columns is read, this is only for SILENT validation; lines are checked as
+	 * SAMTextReader checks them then (see parseSAMLine). With more than one thread the records
+	 * are lifted on a pool; see liftSAMTextInParallel.
+	 */
+	private void processSAMText(File samFile, File outFile) throws MappingException {
+		LineScanner reader;
+		try {
+			GZIPInputStream gzStream = getGZIPInputStream(samFile);
+			reader = (gzStream != null) ? new LineScanner(gzStream) : new LineScanner(samFile);
+		} catch (IOException e) {
+			throw new MappingException("Couldn't open " + samFile, e);
+		}
+		TextOutputStream writer = null;
+		try {
+			OutputStream out = new FileOutputStream(outFile);
+			if (outFile.getName().endsWith(".gz")) {
+				out = new GZIPOutputStream(out, 16384);
+			}
+			writer = new TextOutputStream(out);
+			
+			StringBuilder headerText = new StringBuilder();
+			long lineNumber = 0;
+			boolean more;
+			while ((more = reader.nextLine()) && reader.startsWith("@")) {
+				headerText.append(reader.getLine()).append('\n');
+				lineNumber++;
+			}
+			SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+			headerCodec.setValidationStringency(stringency);
+			SAMFileHeader header = this.updateHeader(headerCodec.decode(new StringLineReader(headerText.toString()), samFile.toString()));
+			// As the writer's setHeader does, given the header's own sort order as presorted
+			header.setSortOrder(header.getSortOrder());
+			StringWriter headerWriter = new StringWriter();
+			new SAMTextHeaderCodec().encode(headerWriter, header);
+			writer.write(headerWriter.toString());
+			
+			if (more && getThreads() > 1) {
+				liftSAMTextInParallel(reader, header, writer, samFile, lineNumber);
+				return;
+			}
+			try {
+				String previousReference = null;
+				for (; more; more = reader.nextLine()) {
+					lineNumber++;
+					SAMRecord r = parseSAMLine(reader, header, previousReference, samFile + " line " + lineNumber);
+					previousReference = r.getReferenceName();
+					this.updateFeature(new SAMFeature(r));
+					writeSAMLine(reader, r, writer);
+				}
+			} catch (SAMFormatException e) {
+				reportFormatError(e);
+			}
+		} catch (IOException e) {
+			throw new MappingException("Couldn't lift " + samFile + " to " + outFile, e);
+		} finally {
+			try {
+				reader.close();
+				if (writer != null) { writer.close(); }
+			} catch (IOException ignore) { }
+		}
+	}
+	
+	/*
+	 * The records of SAM text, from the reader's current line on, are copied in batches of
+	 * batchSize lines and each batch is parsed, lifted and formatted by a TextBatchLifter on the
+	 * pool. This thread writes the lifted batches in file order, and doesn't read more than a
+	 * few batches ahead of them. Like the sequential lift, it stops at the first line that can't
+	 * be read, having written the lines before it.
+	 */
+	private void liftSAMTextInParallel(LineScanner reader, SAMFileHeader header, TextOutputStream writer, File samFile, long lineNumber) throws MappingException, IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(getThreads());
+		LinkedList<Future<LiftedText>> pending = new LinkedList<Future<LiftedText>>();
+		try {
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			int lines = 0;
+			boolean more = true;
+			for (; more; more = reader.nextLine()) {
+				reader.writeLine(batch);
+				batch.write('\n');
+				if (++lines >= batchSize) {
+					pending.add(pool.submit(new TextBatchLifter(batch.toByteArray(), header, samFile, lineNumber)));
+					lineNumber += lines;
+					batch.reset();
+					lines = 0;
+					// Don't let the reader run too far ahead of the writer
+					while (pending.size() > getThreads() * 2) {
+						if (!writeSAMText(pending.removeFirst(), writer)) { return; }
+					}
+				}
+			}
+			if (lines > 0) {
+				pending.add(pool.submit(new TextBatchLifter(batch.toByteArray(), header, samFile, lineNumber)));
+			}
+			while (!pending.isEmpty()) {
+				if (!writeSAMText(pending.removeFirst(), writer)) { return; }
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	// Wait for a batch of SAM text to be lifted and write it; false if it stopped at a line that couldn't be read
+	private boolean writeSAMText(Future<LiftedText> future, TextOutputStream writer) throws MappingException, IOException {
+		LiftedText lifted;
+		try {
+			lifted = future.get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while lifting SAM", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't lift SAM text", e);
+		}
+		lifted.text.writeTo(writer);
+		if (lifted.error != null) {
+			reportFormatError(lifted.error);
+			return false;
+		}
+		return true;
+	}
+	
+	private static class LiftedText {
+		private ByteArrayOutputStream text;
+		private SAMFormatException error; // The line the batch stopped at, if any
+	}
+	
+	// Lifts a batch of SAM lines (each ending in \n) the same way processSAMText does
+	private class TextBatchLifter implements Callable<LiftedText> {
+		private byte[] lines;
+		private SAMFileHeader header;
+		private File samFile;
+		private long lineNumber; // Of the line before the batch
 		
+		private TextBatchLifter(byte[] lines, SAMFileHeader header, File samFile, long lineNumber) {
+			this.lines = lines;
+			this.header = header;
+			this.samFile = samFile;
+			this.lineNumber = lineNumber;
+		}
+		public LiftedText call() throws MappingException, IOException {
+			LiftedText res = new LiftedText();
+			res.text = new ByteArrayOutputStream(lines.length + (lines.length >> 3));
+			TextOutputStream text = new TextOutputStream(res.text);
+			LineScanner line = new LineScanner(ByteBuffer.wrap(lines));
+			try {
+				String previousReference = null;
+				while (line.nextLine()) {
+					lineNumber++;
+					SAMRecord r = parseSAMLine(line, header, previousReference, samFile + " line " + lineNumber);
+					previousReference = r.getReferenceName();
+					updateFeature(new SAMFeature(r));
+					writeSAMLine(line, r, text);
+				}
+			} catch (SAMFormatException e) {
+				res.error = e;
+			}
+			text.flush();
+			return res;
+		}
+	}
+	
+	/*
+	 * The alignment columns of the current line as a SAMRecord, checked as SAMTextReader checks
+	 * them under SILENT validation: a line that can't be read at all (too few columns, a
+	 * coordinate that isn't a number) fails, and nothing else is looked at.
+	 */
+	private SAMRecord parseSAMLine(LineScanner line, SAMFileHeader header, String previousReference, String where) {
+		int fields = line.split((byte)'\t', SAM_TEXT_COLUMNS + 1);
+		if (fields < SAM_TEXT_COLUMNS) {
+			throw new SAMFormatException(getSAMLineError("Not enough fields", line, where));
+		}
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName(line.getField(0));
+		r.setFlags(parseSAMInt(line, 1, "FLAG", where));
+		String reference = line.getField(2, 0, previousReference);
+		if (!SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(reference)) {
+			r.setReferenceName(reference);
+		}
+		r.setAlignmentStart(parseSAMInt(line, 3, "POS", where));
+		try {
+			r.setMappingQuality(line.parseInt(4));
+		} catch (NumberFormatException e) {
+			// Lifting doesn't need it, so it's just marked as unavailable
+			r.setMappingQuality(SAM_NO_MAPPING_QUALITY);
+		}
+		r.setCigarString(line.getField(5));
+		
+		if (line.fieldEquals(6, "=")) {
+			r.setMateReferenceName(r.getReferenceName());
+		} else if (line.fieldEquals(6, SAMRecord.NO_ALIGNMENT_REFERENCE_NAME)) {
+			r.setMateReferenceName(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME);
+		} else {
+			r.setMateReferenceName(line.getField(6, 0, reference));
+		}
+		r.setMateAlignmentStart(parseSAMInt(line, 7, "MPOS", where));
+		r.setInferredInsertSize(parseSAMInt(line, 8, "ISIZE", where));
+		return r;
+	}
+	private int parseSAMInt(LineScanner line, int f, String column, String where) {
+		try {
+			return line.parseInt(f);
+		} catch (NumberFormatException e) {
+			throw new SAMFormatException(getSAMLineError("Non-numeric value in " + column + " column", line, where));
+		}
+	}
+	private static String getSAMLineError(String reason, LineScanner line, String where) {
+		return "Error parsing text SAM file. " + reason + "; " + where + "\nLine: " + line.getLine();
+	}
+	
+	// Write the lifted record's columns as SAMTextWriter would, then the rest of line as it is
+	private static void writeSAMLine(LineScanner line, SAMRecord r, TextOutputStream writer) throws IOException {
+		line.writeField(0, writer);
+		writer.write('\t');
+		writer.writeInt(r.getFlags());
+		writer.write('\t');
+		writer.write(r.getReferenceName());
+		writer.write('\t');
+		writer.writeInt(r.getAlignmentStart());
+		writer.write('\t');
+		writer.writeInt(r.getMappingQuality());
+		writer.write('\t');
+		writer.write(r.getCigarString());
+		writer.write('\t');
+		if (r.getReferenceName().equals(r.getMateReferenceName()) && !SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(r.getReferenceName())) {
+			writer.write('=');
+		} else {
+			writer.write(r.getMateReferenceName());
+		}
+		writer.write('\t');
+		writer.writeInt(r.getMateAlignmentStart());
+		writer.write('\t');
+		writer.writeInt(r.getInferredInsertSize());
+		writer.write('\t');
+		line.writeFields(9, line.getFieldCount() - 1, writer);
+		writer.write('\n');
+	}
+	
+	// SAMMateIndex's segment for one read of a pair, or 0 if it isn't clearly one or the other
+	private static int getSegment(SAMRecord r) {
+		if (!r.getReadPairedFlag() || r.getFirstOfPairFlag() == r.getSecondOfPairFlag()) {
+			return 0;
+		}
+		return r.getFirstOfPairFlag() ? SAMMateIndex.FIRST_OF_PAIR : SAMMateIndex.SECOND_OF_PAIR;
+	}
+	// Lift the read with its mate hidden, so only the rules for the read itself apply
+	private void liftReadAlone(SAMRecord r) throws MappingException {
+		if (r.getReadPairedFlag()) {
+			r.setMateUnmappedFlag(true);
+			r.setMateAlignmentStart(0);
+			r.setInferredInsertSize(0);
+		}
+		this.updateFeature(new SAMFeature(r));
+	}
+	// Point a lifted read at its lifted mate. The TLEN is worked out again from the two of them,
+	// keeping the sign of the original insertSize; it stays 0 if that was 0.
+	private static void setMate(SAMRecord r, SAMMateIndex.Mate mate, int insertSize) {
+		r.setMateReferenceIndex(mate.getReferenceIndex());
+		r.setMateAlignmentStart(mate.getStart());
+		r.setMateUnmappedFlag(mate.isUnmapped());
+		if (insertSize == 0 || mate.isUnmapped() || r.getReadUnmappedFlag() || r.getReferenceIndex() != mate.getReferenceIndex()) {
+			r.setInferredInsertSize(0);
+		} else {
+			int span = Math.max(r.getAlignmentEnd(), mate.getEnd()) - Math.min(r.getAlignmentStart(), mate.getStart()) + 1;
+			r.setInferredInsertSize(insertSize > 0 ? span : -span);
+		}
+	}
+	
+	// Patch and copy the records that are only shifted; decode and lift the rest
+	private void processRawRecords(ParallelBAMFileReader reader, ParallelBAMFileWriter writer) throws MappingException {
 		SAMFileHeader header = reader.getFileHeader();
+		try {
+			byte[] record;
+			while ((record = reader.readRawRecord()) != null) {
+				if (liftRawRecord(record, header)) {
+					writer.writeRawRecord(record);
+				} else {
+					SAMRecord r = reader.decode(record);
+					SAMFeature f = new SAMFeature(r);
+					f = (SAMFeature)this.updateFeature(f);
+					writer.addAlignment(r);
+				}
+			}
+		} catch (IOException e) {
+			throw new MappingException("Couldn't read BAM record", e);
+		} catch (SAMFormatException e) {
+			reportFormatError(e);
+		}
+	}
+	/*
+	 * Each reference sequence's records, found from the input's BAI index, are lifted by a
+	 * ReferenceLifter into a BAM file of their own, as are the unplaced records after them; any
+	 * records the lift leaves unplaced go into files of their own that come last. The parts all
+	 * start with the same header blocks, so the output is made by copying the header and then
+	 * each part's record blocks, in reference order, without recompressing them. The biggest
+	 * references are started first so no thread is left lifting a long one at the end. Returns
+	 * false, having done nothing, if the input isn't a coordinate-sorted BAM file with an index.
+	 */
+	private boolean processFileByReference(File samFile, File outFile) throws MappingException {
+		File indexFile = findIndex(samFile);
+		if (indexFile == null || !ParallelBAMFileReader.isBAMFile(samFile)) {
+			System.err.println("No BAI index for " + samFile + ", so lifting it in one piece");
+			return false;
+		}
+		BAMIndexReader index;
+		SAMFileHeader header;
+		try {
+			index = new BAMIndexReader(indexFile);
+			ParallelBAMFileReader reader = new ParallelBAMFileReader(samFile, 1, stringency);
+			header = reader.getFileHeader();
+			reader.close();
+		} catch (IOException e) {
+			throw new MappingException("Couldn't read BAM file " + samFile + " or its index", e);
+		}
+		if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate || index.getUnplacedStart() < 0) {
+			System.err.println(samFile + " isn't sorted by coordinate or has no placed reads, so lifting it in one piece");
+			return false;
+		}
+		if (createIndex) {
+			System.err.println("Not indexing " + outFile + "; it's lifted by reference");
+		}
 		header = this.updateHeader(header);
-		SAMFileWriter writer = new SAMFileWriterFactoryCompressed().makeSAMOrBAMWriter(header, true, outFile);
 		
+		File directory = outFile.getAbsoluteFile().getParentFile();
+		List<File> parts = new ArrayList<File>();
+		List<ReferenceLifter> lifters = new ArrayList<ReferenceLifter>();
+		ExecutorService pool = Executors.newFixedThreadPool(getThreads());
 		try {
-			for (SAMRecord r : reader) {
-				SAMFeature f = new SAMFeature(r);
-				f = (SAMFeature)this.updateFeature(f);
-				writer.addAlignment(r);
+			File headerFile = File.createTempFile("liftover", ".header.bam", directory);
+			parts.add(headerFile);
+			new SAMFileWriterFactoryCompressed().setSortWindow(sortWindow).makeParallelBAMWriter(header, true, headerFile).close();
+			for (int reference = 0; reference < index.getReferenceCount(); reference++) {
+				if (index.getStart(reference) >= 0) {
+					long size = (index.getEnd(reference) >>> 16) - (index.getStart(reference) >>> 16);
+					lifters.add(new ReferenceLifter(samFile, header, reference, index.getStart(reference), size, File.createTempFile("liftover", ".part.bam", directory)));
+				}
+			}
+			long unplacedStart = index.getUnplacedStart();
+			lifters.add(new ReferenceLifter(samFile, header, -1, unplacedStart, samFile.length() - (unplacedStart >>> 16), File.createTempFile("liftover", ".part.bam", directory)));
+			
+			List<ReferenceLifter> biggestFirst = new ArrayList<ReferenceLifter>(lifters);
+			Collections.sort(biggestFirst, new Comparator<ReferenceLifter>() {
+				public int compare(ReferenceLifter a, ReferenceLifter b) {
+					return (a.size > b.size) ? -1 : (a.size == b.size ? 0 : 1);
+				}
+			});
+			for (ReferenceLifter lifter : biggestFirst) {
+				parts.add(lifter.part);
+				lifter.result = pool.submit(lifter);
+			}
+			
+			// Like the sequential lift, stop at the first record that can't be read; the records
+			// the lift left unplaced go after the unplaced part, as a sort window puts them last
+			List<File> lifted = new ArrayList<File>();
+			List<File> unplaced = new ArrayList<File>();
+			for (ReferenceLifter lifter : lifters) {
+				lifted.add(lifter.part);
+				boolean read = waitForReference(lifter);
+				if (lifter.unplaced != null) {
+					unplaced.add(lifter.unplaced);
+				}
+				if (!read) {
+					break;
+				}
 			}
-		} catch (net.sf.samtools.SAMFormatException e) {
-			// Okay, really can't parse this line
-			System.err.println("Can't process SAM line, closing SAM writer here.");
-			System.err.println("The error was:");
-			e.printStackTrace();
-			System.err.println("Continuing...");
+			lifted.addAll(unplaced);
+			ParallelBAMFileWriter.concatenate(headerFile, lifted, outFile);
+		} catch (IOException e) {
+			throw new MappingException("Couldn't write lifted BAM file " + outFile, e);
+		} finally {
+			pool.shutdownNow();
+			for (File part : parts) {
+				part.delete();
+			}
+			for (ReferenceLifter lifter : lifters) {
+				if (lifter.unplaced != null) {
+					lifter.unplaced.delete();
+				}
+			}
+		}
+		return true;
+	}
+	// The input's index, as samtools (input.bam.bai) or Picard (input.bai) names it, or null
+	private static File findIndex(File samFile) {
+		File index = new File(samFile.getPath() + ".bai");
+		if (!index.exists() && samFile.getName().endsWith(".bam")) {
+			String path = samFile.getPath();
+			index = new File(path.substring(0, path.length() - ".bam".length()) + ".bai");
 		}
-		writer.close();
+		return index.exists() ? index : null;
 	}
+	// Wait for one reference to be lifted; false if it stopped at a record that couldn't be read
+	private boolean waitForReference(ReferenceLifter lifter) throws MappingException {
+		try {
+			return lifter.result.get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while lifting BAM", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't lift BAM records on reference " + lifter.reference, e);
+		}
+	}
+	
+	// Lifts the records of one reference (-1 for the unplaced ones) into a BAM file of their own,
+	// and any the lift leaves unplaced into another, so they can go at the end
+	private class ReferenceLifter implements Callable<Boolean> {
+		private File samFile;
+		private SAMFileHeader header;
+		private int reference;
+		private long start;
+		private long size; // Roughly, in compressed bytes
+		private File part;
+		private volatile File unplaced = null;
+		private ParallelBAMFileWriter unplacedWriter = null;
+		private Future<Boolean> result;
+		
+		private ReferenceLifter(File samFile, SAMFileHeader header, int reference, long start, long size, File part) {
+			this.samFile = samFile;
+			this.header = header;
+			this.reference = reference;
+			this.start = start;
+			this.size = size;
+			this.part = part;
+		}
+		// False if a record couldn't be read; the part ends with the records before it
+		public Boolean call() throws IOException, MappingException {
+			ParallelBAMFileReader reader = new ParallelBAMFileReader(samFile, 1, stringency, start);
+			ParallelBAMFileWriter writer = makeWriter(part);
+			boolean raw = (stringency == SAMFileReader.ValidationStringency.SILENT);
+			try {
+				byte[] record;
+				while ((record = reader.readRawRecord()) != null && RawBAMRecord.getReferenceIndex(record) == reference) {
+					if (raw && liftRawRecord(record, reader.getFileHeader())) {
+						writerFor(writer, RawBAMRecord.getReferenceIndex(record)).writeRawRecord(record);
+					} else {
+						SAMRecord r = reader.decode(record);
+						updateFeature(new SAMFeature(r));
+						writerFor(writer, r.getReferenceIndex()).addAlignment(r);
+					}
+				}
+				return true;
+			} catch (SAMFormatException e) {
+				reportFormatError(e);
+				return false;
+			} finally {
+				writer.close();
+				if (unplacedWriter != null) {
+					unplacedWriter.close();
+				}
+				reader.close();
+			}
+		}
+		// The part's writer, or for a placed record the lift left unplaced, the unplaced one
+		private ParallelBAMFileWriter writerFor(ParallelBAMFileWriter writer, int liftedReference) throws IOException {
+			if (liftedReference >= 0 || reference < 0) {
+				return writer;
+			}
+			if (unplacedWriter == null) {
+				unplaced = File.createTempFile("liftover", ".unplaced.bam", part.getParentFile());
+				unplacedWriter = makeWriter(unplaced);
+			}
+			return unplacedWriter;
+		}
+		private ParallelBAMFileWriter makeWriter(File file) {
+			synchronized (header) {
+				// The header is shared, and writing it sets its sort order
+				return new SAMFileWriterFactoryCompressed().setSortWindow(sortWindow).makeParallelBAMWriter(header, true, file);
+			}
+		}
+	}
+	
+	private void reportFormatError(SAMFormatException e) {
+		// Okay, really can't parse this line
+		System.err.println("Can't process SAM line, closing SAM writer here.");
+		System.err.println("The error was:");
+		e.printStackTrace();
+		System.err.println("Continuing...");
+	}
+	
+	/*
+	 * Three stages: a RecordReader thread reads batches of records and hands each to a pool of
+	 * lift workers, queueing the futures in file order; this thread takes them off the queue in
+	 * turn and writes the lifted records. The queue is bounded so the reader can't run too far
+	 * ahead of the writer.
+	 */
+	private void processRecordsInParallel(Iterable<SAMRecord> reader, SAMFileWriter writer) throws MappingException {
+		ExecutorService pool = Executors.newFixedThreadPool(getThreads());
+		BlockingQueue<Future<List<SAMRecord>>> lifted = new ArrayBlockingQueue<Future<List<SAMRecord>>>(getThreads() * 2);
+		RecordReader recordReader = new RecordReader(reader, pool, lifted);
+		Thread readerThread = new Thread(recordReader, "SAM reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+		try {
+			List<SAMRecord> batch;
+			while (!(batch = takeBatch(lifted)).isEmpty()) {
+				for (SAMRecord r : batch) {
+					writer.addAlignment(r);
+				}
+			}
+		} catch (SAMFormatException e) {
+			reportFormatError(e);
+		} finally {
+			readerThread.interrupt();
+			pool.shutdownNow();
+		}
+		
+		// Problems reading come after the last batch read before them
+		Throwable failure = recordReader.failure;
+		if (failure instanceof SAMFormatException) {
+			reportFormatError((SAMFormatException)failure);
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		} else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+	}
+	// Wait for the next batch in file order to be lifted
+	private List<SAMRecord> takeBatch(BlockingQueue<Future<List<SAMRecord>>> lifted) throws MappingException {
+		try {
+			return lifted.take().get();
+		} catch (InterruptedException e) {
+			throw new MappingException("Interrupted while lifting SAM", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MappingException) { throw (MappingException)e.getCause(); }
+			if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+			throw new MappingException("Couldn't lift SAM records", e);
+		}
+	}
+	
+	// Reads records in batches of batchSize and submits each batch to the pool, queueing the
+	// futures in order and ending with an empty batch
+	private class RecordReader implements Runnable {
+		private Iterable<SAMRecord> reader;
+		private ExecutorService pool;
+		private BlockingQueue<Future<List<SAMRecord>>> lifted;
+		private volatile Throwable failure = null;
+		
+		private RecordReader(Iterable<SAMRecord> reader, ExecutorService pool, BlockingQueue<Future<List<SAMRecord>>> lifted) {
+			this.reader = reader;
+			this.pool = pool;
+			this.lifted = lifted;
+		}
+		public void run() {
+			List<SAMRecord> batch = new ArrayList<SAMRecord>(batchSize);
+			try {
+				for (SAMRecord r : reader) {
+					batch.add(r);
+					if (batch.size() >= batchSize) {
+						lifted.put(pool.submit(new BatchLifter(batch)));
+						batch = new ArrayList<SAMRecord>(batchSize);
+					}
+				}
+			} catch (InterruptedException e) {
+				return; // The writer has stopped
+			} catch (Throwable t) {
+				failure = t; // Still write the records read before it
+			}
+			try {
+				if (!batch.isEmpty()) {
+					lifted.put(pool.submit(new BatchLifter(batch)));
+				}
+				lifted.put(pool.submit(new BatchLifter(new ArrayList<SAMRecord>())));
+			} catch (InterruptedException e) {
+			} catch (RejectedExecutionException e) {
+				// The writer has stopped and shut the pool down
+			}
+		}
+	}
+	
+	// Lifts a batch of records in place, the same way processFile does
+	private class BatchLifter implements Callable<List<SAMRecord>> {
+		private List<SAMRecord> records;
+		
+		private BatchLifter(List<SAMRecord> records) {
+			this.records = records;
+		}
+		public List<SAMRecord> call() throws MappingException {
+			for (SAMRecord r : records) {
+				updateFeature(new SAMFeature(r));
+			}
+			return records;
+		}
+	}
+	
 	@Override
 	public AbstractFeature updateFeature(AbstractFeature af) throws MappingException {
 		SAMFeature f = (SAMFeature)af;
@@ -84,326 +881,512 @@ public class SAMUpdater extends AbstractUpdater {
 			return f; // No need to continue for unlocated features
 		}
 		for (MappingData md : mappingData) {
-			/*
-			 * The mismatch_start value is the start of the mismatch, it is the first position which doesn't match.
-			 * The mismatch_end value is the base past the end of the mismatch region, the first base which matches again 
-			 * ($mismatch_start1, $mismatch_end1, $len1, $mismatch_start2, $mismatch_end2, $len2, $flipped)
+			MismatchTable mt = md.getMismatchTable(f.getChromosome());
+			if (mt == null || shiftPastMismatches(f, mt)) {
+				continue; // Nothing on this chromosome, or nothing the read or its mate overlaps
+			}
+			for (MappingData.MismatchPair mm : md.getMismatchPairs(f.getChromosome())) {
+				updateFeature(f, mm);
+			}
+		}
+		return f;
+	}
+	/**
+	 * The same lift as updateFeature, but always walking every mismatch pair with the full set of
+	 * rules, never shifting past them as shiftPastMismatches does. Slower; it's what the shortcut
+	 * has to agree with.
+	 */
+	public AbstractFeature updateFeatureByPairs(AbstractFeature af) throws MappingException {
+		SAMFeature f = (SAMFeature)af;
+		if (f.getStart() == null || f.getEnd() == null || f.getReadUnmapped()) {
+			return f;
+		}
+		for (MappingData md : mappingData) {
+			for (MappingData.MismatchPair mm : md.getMismatchPairs(f.getChromosome())) {
+				updateFeature(f, mm);
+			}
+		}
+		return f;
+	}
+	/**
+	 * Move the read and its mate past every mismatch in mt, if none of them overlaps either one:
+	 * the mismatches that start after both of them change nothing, and the rest only shift the
+	 * start and mate start. Returns false, having changed nothing, if any mismatch needs the full
+	 * set of rules in updateFeature(SAMFeature, MismatchPair). The shifts are the ones those rules
+	 * would make walking the mismatches in order, including a shift moving the read or mate back
+	 * into a later one; mismatch ends are never before their starts.
+	 */
+	private boolean shiftPastMismatches(SAMFeature f, MismatchTable mt) {
+		int start = f.getStart(), end = f.getEnd(), mateStart = f.getMateStart();
+		int low = Math.min(start, end), high = Math.max(start, end);
+		boolean mateMapped = f.isPaired() && !f.getMateUnmapped();
+		if (mateMapped) {
+			if (f.getMateChromosome() != f.getChromosome()) {
+				return false; // Can't be remapped; the full rules throw for this
+			}
+			low = Math.min(low, mateStart);
+			high = Math.max(high, mateStart);
+			if (start < mateStart) {
+				if (f.getInferredInsertSize() == 0) {
+					return false; // No mate end; the full rules throw for this too
+				}
+				int mateEnd = f.getMateEnd();
+				low = Math.min(low, mateEnd);
+				high = Math.max(high, mateEnd);
+			}
+		} else if (mateStart > 0) {
+			return false; // A mate start that's ignored but still compared with the start
+		}
+		
+		int shift = getShiftPastMismatches(mt, low, high);
+		if (shift == NOT_JUST_SHIFTED) {
+			return false;
+		}
+		if (shift != 0) {
+			f.setStart(start + shift);
+			if (mateMapped) {
+				f.setMateStart(mateStart + shift);
+			}
+		}
+		return true;
+	}
+	// The shift past every mismatch in mt for a read and mate covering low..high, or
+	// NOT_JUST_SHIFTED if any of them needs the full rules
+	private static int getShiftPastMismatches(MismatchTable mt, int low, int high) {
+		// All of the read, mate and anything between them moves together, so it's enough that low
+		// stays past each mismatch at or before high
+		int count = mt.countAtOrBefore(high);
+		int after = mt.getUnflippedShift(count);
+		if (mt.getMaxShiftedEnd(count) > low - after) {
+			return NOT_JUST_SHIFTED;
+		}
+		return mt.getUnflippedShift(0) - after;
+	}
+	
+	/**
+	 * Lift a BAM record in its binary form (from ParallelBAMFileReader.readRawRecord) if the
+	 * releases just shift it, as shiftPastMismatches would for its SAMFeature: the position,
+	 * mate position and bin are patched in place. Returns false, having changed nothing, if the
+	 * record needs decoding and updateFeature.
+	 */
+	private boolean liftRawRecord(byte[] record, SAMFileHeader header) {
+		int flags = RawBAMRecord.getFlags(record);
+		if ((flags & RawBAMRecord.FLAG_UNMAPPED) != 0) {
+			return true; // updateFeature leaves these alone
+		}
+		int referenceLength = RawBAMRecord.getReferenceLength(record);
+		int referenceIndex = RawBAMRecord.getReferenceIndex(record);
+		if (referenceLength < 0 || referenceIndex < 0 || referenceIndex >= header.getSequenceDictionary().size()) {
+			return false;
+		}
+		String chromosome = header.getSequence(referenceIndex).getSequenceName();
+		
+		// The same span and checks as shiftPastMismatches, from the 1-based positions SAMRecord gives
+		int start = RawBAMRecord.getPosition(record) + 1;
+		int end = start + referenceLength - 1;
+		int mateStart = RawBAMRecord.getNextPosition(record) + 1;
+		int low = Math.min(start, end), high = Math.max(start, end);
+		boolean mateMapped = (flags & RawBAMRecord.FLAG_PAIRED) != 0 && (flags & RawBAMRecord.FLAG_MATE_UNMAPPED) == 0;
+		boolean canShift = true;
+		if (mateMapped) {
+			canShift = RawBAMRecord.getNextReferenceIndex(record) == referenceIndex;
+			low = Math.min(low, mateStart);
+			high = Math.max(high, mateStart);
+			if (start < mateStart) {
+				int insertSize = RawBAMRecord.getInferredInsertSize(record);
+				canShift &= insertSize != 0;
+				int mateEnd = start + insertSize - 1;
+				low = Math.min(low, mateEnd);
+				high = Math.max(high, mateEnd);
+			}
+		} else {
+			canShift = mateStart <= 0;
+		}
+		
+		int shift = 0;
+		for (MappingData md : mappingData) {
+			MismatchTable mt = md.getMismatchTable(chromosome);
+			if (mt == null) {
+				continue;
+			}
+			int releaseShift = canShift ? getShiftPastMismatches(mt, low + shift, high + shift) : NOT_JUST_SHIFTED;
+			if (releaseShift == NOT_JUST_SHIFTED) {
+				return false;
+			}
+			shift += releaseShift;
+		}
+		if (shift != 0) {
+			// SAMRecord works the bin out again when the start moves
+			int position = start - 1 + shift;
+			int binEnd = (end + shift <= 0) ? position + 1 : end + shift;
+			RawBAMRecord.setPosition(record, position);
+			RawBAMRecord.setBin(record, RawBAMRecord.reg2bin(position, binEnd));
+			if (mateMapped) {
+				RawBAMRecord.setNextPosition(record, mateStart - 1 + shift);
+			}
+		}
+		return true;
+	}
+	/**
+	 * Apply one mismatch to the read, its mate, the ISIZE and the cigar.
+	 * The mismatch_start value is the start of the mismatch, it is the first position which doesn't match.
+	 * The mismatch_end value is the base past the end of the mismatch region, the first base which matches again 
+	 * ($mismatch_start1, $mismatch_end1, $len1, $mismatch_start2, $mismatch_end2, $len2, $flipped)
+	 */
+	private void updateFeature(SAMFeature f, MappingData.MismatchPair mm) {
+		if (!mm.flipped) {
+			/**
+			 * Simple insertions (insert in between reads)
 			 */
-			for (MappingData.MismatchPair mm_orig : md.getMismatchPairs(f.getChromosome())) {
-				MappingData.MismatchPair mm = mm_orig.clone();
-				if (!mm.flipped) {
-					/**
-					 * Simple insertions (insert in between reads)
-					 */
-					// The read
-					int orig_start = f.getStart();
-					int orig_end = f.getEnd();
-					int orig_mate_start = f.getMateStart();
-					int orig_mate_end = 0;
-					String orig_ref_seq = f.getChromosome();
-					if (f.getStart() < f.getMateStart()) {
-						orig_mate_end = f.getMateEnd();
-					}
-					if (f.getStart() >= mm.previousMismatch.end) {
-						// The start is past the end of the mismatch, so just shift the start right
-						// by the difference in length of the old and new regions
-						f.setStart(f.getStart() + (mm.thisMismatch.length - mm.previousMismatch.length));
-					} else if (f.getStart() >= mm.previousMismatch.start && f.getEnd() <= mm.previousMismatch.end && mm.thisMismatch.length < mm.previousMismatch.length) {
-						// Deleted the whole read
-						f.setInferredInsertSize(0);
-						f.setChromosome("*");
-						f.setStart(0);
-						f.setCigar(new Cigar());
-						f.setReadUnmapped(true);
-						f.setFirstRead(false);
-						f.setSecondRead(false);
-					} else if (f.getStart() >= mm.previousMismatch.start && (f.getStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
-						// The start was somewhere inside the changed region and is now outside because the new region is smaller,
-						// so lock the start to the end of the new region (it's really somewhere between the last base of the new region
-						// and the first base of the following unchanged region.)
-						f.setStart(mm.previousMismatch.start + mm.thisMismatch.length);
-					}
+			// The read
+			int orig_start = f.getStart();
+			int orig_end = f.getEnd();
+			int orig_mate_start = f.getMateStart();
+			int orig_mate_end = 0;
+			String orig_ref_seq = f.getChromosome();
+			if (f.getStart() < f.getMateStart()) {
+				orig_mate_end = f.getMateEnd();
+			}
+			if (f.getStart() >= mm.previousMismatch.end) {
+				// The start is past the end of the mismatch, so just shift the start right
+				// by the difference in length of the old and new regions
+				f.setStart(f.getStart() + (mm.thisMismatch.length - mm.previousMismatch.length));
+			} else if (f.getStart() >= mm.previousMismatch.start && f.getEnd() <= mm.previousMismatch.end && mm.thisMismatch.length < mm.previousMismatch.length) {
+				// Deleted the whole read
+				f.setInferredInsertSize(0);
+				f.setChromosome("*");
+				f.setStart(0);
+				f.setCigar(new Cigar());
+				f.setReadUnmapped(true);
+				f.setFirstRead(false);
+				f.setSecondRead(false);
+			} else if (f.getStart() >= mm.previousMismatch.start && (f.getStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
+				// The start was somewhere inside the changed region and is now outside because the new region is smaller,
+				// so lock the start to the end of the new region (it's really somewhere between the last base of the new region
+				// and the first base of the following unchanged region.)
+				f.setStart(mm.previousMismatch.start + mm.thisMismatch.length);
+			}
 
-					// What about the mate?
-					if (f.isPaired() && !f.getMateUnmapped()) {
-						if (f.getMateChromosome() != orig_ref_seq) {
-							// TODO: Deal with remapping mates on different chromosomes
-							throw new RuntimeException("Can't yet deal with remapping mate on another chromosome: " + f.getMateChromosome() + " != " + orig_ref_seq);
+			// What about the mate?
+			if (f.isPaired() && !f.getMateUnmapped()) {
+				if (f.getMateChromosome() != orig_ref_seq) {
+					// TODO: Deal with remapping mates on different chromosomes
+					throw new RuntimeException("Can't yet deal with remapping mate on another chromosome: " + f.getMateChromosome() + " != " + orig_ref_seq);
+				} else {
+					if (f.getMateStart() >= mm.previousMismatch.end) {
+						// Mate start after any changes
+						int shift = mm.thisMismatch.length - mm.previousMismatch.length;
+						f.setMateStart(f.getMateStart() + shift);
+					} else if (f.getMateStart() >= mm.previousMismatch.start && (f.getMateStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
+						if (orig_start > orig_mate_start) {
+							// Start of mate was inside changed region, which means we're in the
+							// ambiguous situation where we may or may not have deleted the whole mate, 
+							// since we can't see the end of the mate
+							f.setMateStart(0);
+							f.setInferredInsertSize(0);
+							f.setMateUnmapped(true);
+							f.setFirstRead(false);
+							f.setSecondRead(false);
 						} else {
-							if (f.getMateStart() >= mm.previousMismatch.end) {
-								// Mate start after any changes
-								int shift = mm.thisMismatch.length - mm.previousMismatch.length;
-								f.setMateStart(f.getMateStart() + shift);
-							} else if (f.getMateStart() >= mm.previousMismatch.start && (f.getMateStart() - mm.previousMismatch.start) > mm.thisMismatch.length) {
-								if (orig_start > orig_mate_start) {
-									// Start of mate was inside changed region, which means we're in the
-									// ambiguous situation where we may or may not have deleted the whole mate, 
-									// since we can't see the end of the mate
-									f.setMateStart(0);
-									f.setInferredInsertSize(0);
-									f.setMateUnmapped(true);
-									f.setFirstRead(false);
-									f.setSecondRead(false);
-								} else {
-									// We know both ends of the mate, and so it's not ambiguous.
-									if (mm.previousMismatch.start <= orig_mate_start && mm.previousMismatch.end >= orig_mate_end) {
-										// We deleted the whole mate!
-										f.setMateStart(0);
-										f.setInferredInsertSize(0);
-										f.setMateUnmapped(true);
-										f.setFirstRead(false);
-										f.setSecondRead(false);
-									} else {
-										// We deleted across the start of the mate, so we want to lock the start
-										// to the edge of the deleted region
-										f.setMateStart(mm.previousMismatch.start + mm.thisMismatch.length);
-									}
-								}
-							}
-							if (mm.previousMismatch.length != mm.thisMismatch.length && !f.getMateUnmapped()) { 
-								if (
-										(orig_start < orig_mate_start && mm.previousMismatch.start > orig_start && mm.previousMismatch.end < f.getMateEnd()) ||
-										(orig_start > orig_mate_start && mm.previousMismatch.start > orig_mate_start && mm.previousMismatch.end < orig_end)
-								) {
-									// Change in ISIZE; something changed between beginning of read and end of mate
-									int shift = mm.thisMismatch.length - mm.previousMismatch.length;
-									/*
-									if (offset < 0) {
-										shift -= offset;
-									}*/
-									if (orig_mate_start > orig_start) {
-										// Mate after read; add shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + shift);
-									} else {
-										// Mate before read; add -shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
-									}
-								} else if (orig_start < orig_mate_start && mm.previousMismatch.start < orig_start && mm.previousMismatch.end > orig_start && f.getChromosome() != "*") {
-									int offset = mm.previousMismatch.start - orig_start;
-									int shift = mm.thisMismatch.length - mm.previousMismatch.length;
-									if (offset < 0) {
-										shift -= offset;
-									}
-									if (orig_mate_start > orig_start) {
-										// Mate after read; add shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + shift);
-									} else {
-										// Mate before read; add -shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
-									}
-								} else if (orig_start > orig_mate_start && mm.previousMismatch.start < orig_mate_start && mm.previousMismatch.end > orig_mate_start) {
-									int offset = mm.previousMismatch.start - orig_mate_start;
-									int shift = mm.thisMismatch.length - mm.previousMismatch.length;
-									if (offset < 0) {
-										shift -= offset;
-									}
-									if (orig_mate_start > orig_start) {
-										// Mate after read; add shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + shift);
-									} else {
-										// Mate before read; add -shift to isize
-										f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
-									}									
-								} else if (orig_start > orig_mate_start && (f.isFirstRead() || f.isSecondRead()) && mm.previousMismatch.start <= orig_end && mm.previousMismatch.end > orig_end) {
-									// Deleted end of read
-									int length = mm.thisMismatch.length - mm.previousMismatch.length;
-									length = length - (-((mm.previousMismatch.end-1) - orig_end));
-									f.setInferredInsertSize(f.getInferredInsertSize() - length);
-								}
+							// We know both ends of the mate, and so it's not ambiguous.
+							if (mm.previousMismatch.start <= orig_mate_start && mm.previousMismatch.end >= orig_mate_end) {
+								// We deleted the whole mate!
+								f.setMateStart(0);
+								f.setInferredInsertSize(0);
+								f.setMateUnmapped(true);
+								f.setFirstRead(false);
+								f.setSecondRead(false);
+							} else {
+								// We deleted across the start of the mate, so we want to lock the start
+								// to the edge of the deleted region
+								f.setMateStart(mm.previousMismatch.start + mm.thisMismatch.length);
 							}
 						}
 					}
-										
-					/**
-					 * A change in length
-					 */
-					// ... of the read
-					if (orig_start < mm.previousMismatch.end && orig_end > mm.previousMismatch.end) {
-						if (mm.previousMismatch.length != mm.thisMismatch.length) {
+					if (mm.previousMismatch.length != mm.thisMismatch.length && !f.getMateUnmapped()) { 
+						if (
+								(orig_start < orig_mate_start && mm.previousMismatch.start > orig_start && mm.previousMismatch.end < f.getMateEnd()) ||
+								(orig_start > orig_mate_start && mm.previousMismatch.start > orig_mate_start && mm.previousMismatch.end < orig_end)
+						) {
+							// Change in ISIZE; something changed between beginning of read and end of mate
+							int shift = mm.thisMismatch.length - mm.previousMismatch.length;
+							/*
+							if (offset < 0) {
+								shift -= offset;
+							}*/
+							if (orig_mate_start > orig_start) {
+								// Mate after read; add shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + shift);
+							} else {
+								// Mate before read; add -shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
+							}
+						} else if (orig_start < orig_mate_start && mm.previousMismatch.start < orig_start && mm.previousMismatch.end > orig_start && f.getChromosome() != "*") {
 							int offset = mm.previousMismatch.start - orig_start;
-							//if (offset < 0) { throw new MappingException("Pure insert seems to be outside the read it's inserting into"); }
 							int shift = mm.thisMismatch.length - mm.previousMismatch.length;
 							if (offset < 0) {
-								if (shift > 0) { shift += offset; } else { shift -= offset; }
-								offset = 0;
+								shift -= offset;
 							}
-							Cigar newCigar = f.getCigar();
-							if (shift > 0) {
-								// Pure insertion
-								// add cigar element
-								newCigar = updateCigarForInsertedReference(f.getCigar(), offset, shift);
-							} else if (shift < 0) {
-								// Pure deletion
-								// delete cigar element
-								newCigar = updateCigarForDeletedReference(f.getCigar(), offset, Math.abs(shift));
+							if (orig_mate_start > orig_start) {
+								// Mate after read; add shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + shift);
+							} else {
+								// Mate before read; add -shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
 							}
-							f.setCigar(newCigar);
-						}
-					} else if (orig_end < mm.previousMismatch.end && orig_end >= mm.previousMismatch.start && orig_start < mm.previousMismatch.start) {
-						if (mm.previousMismatch.length != mm.thisMismatch.length) {
-							int offset = mm.previousMismatch.start - orig_start;
-							int length = mm.previousMismatch.length - mm.thisMismatch.length;
-							length = length - ((mm.previousMismatch.end-1) - orig_end);
-							Cigar newCigar = f.getCigar();
-							newCigar = updateCigarForDeletedReference(f.getCigar(), offset, length);
-							f.setCigar(newCigar);
-						}
-					}
-					// ... of the mate
-					// Only applies if we're looking at a change to the mate from the perspective of the read
-					// (and we haven't deleted the whole mate)
-					if (orig_start < orig_mate_start && (f.isFirstRead() || f.isSecondRead())) {
-						if (orig_mate_end < mm.previousMismatch.end && orig_mate_end >= mm.previousMismatch.start) {
-							int length = mm.previousMismatch.length - mm.thisMismatch.length;
-							length = length - ((mm.previousMismatch.end-1) - orig_mate_end);
-							// All we can change is the isize
+						} else if (orig_start > orig_mate_start && mm.previousMismatch.start < orig_mate_start && mm.previousMismatch.end > orig_mate_start) {
+							int offset = mm.previousMismatch.start - orig_mate_start;
+							int shift = mm.thisMismatch.length - mm.previousMismatch.length;
+							if (offset < 0) {
+								shift -= offset;
+							}
+							if (orig_mate_start > orig_start) {
+								// Mate after read; add shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + shift);
+							} else {
+								// Mate before read; add -shift to isize
+								f.setInferredInsertSize(f.getInferredInsertSize() + (-shift));
+							}									
+						} else if (orig_start > orig_mate_start && (f.isFirstRead() || f.isSecondRead()) && mm.previousMismatch.start <= orig_end && mm.previousMismatch.end > orig_end) {
+							// Deleted end of read
+							int length = mm.thisMismatch.length - mm.previousMismatch.length;
+							length = length - (-((mm.previousMismatch.end-1) - orig_end));
 							f.setInferredInsertSize(f.getInferredInsertSize() - length);
 						}
 					}
 				}
 			}
+								
+			/**
+			 * A change in length
+			 */
+			// ... of the read
+			if (orig_start < mm.previousMismatch.end && orig_end > mm.previousMismatch.end) {
+				if (mm.previousMismatch.length != mm.thisMismatch.length) {
+					int offset = mm.previousMismatch.start - orig_start;
+					//if (offset < 0) { throw new MappingException("Pure insert seems to be outside the read it's inserting into"); }
+					int shift = mm.thisMismatch.length - mm.previousMismatch.length;
+					if (offset < 0) {
+						if (shift > 0) { shift += offset; } else { shift -= offset; }
+						offset = 0;
+					}
+					Cigar newCigar = f.getCigar();
+					if (shift > 0) {
+						// Pure insertion
+						// add cigar element
+						newCigar = updateCigarForInsertedReference(f.getCigar(), offset, shift);
+					} else if (shift < 0) {
+						// Pure deletion
+						// delete cigar element
+						newCigar = updateCigarForDeletedReference(f.getCigar(), offset, Math.abs(shift));
+					}
+					f.setCigar(newCigar);
+				}
+			} else if (orig_end < mm.previousMismatch.end && orig_end >= mm.previousMismatch.start && orig_start < mm.previousMismatch.start) {
+				if (mm.previousMismatch.length != mm.thisMismatch.length) {
+					int offset = mm.previousMismatch.start - orig_start;
+					int length = mm.previousMismatch.length - mm.thisMismatch.length;
+					length = length - ((mm.previousMismatch.end-1) - orig_end);
+					Cigar newCigar = f.getCigar();
+					newCigar = updateCigarForDeletedReference(f.getCigar(), offset, length);
+					f.setCigar(newCigar);
+				}
+			}
+			// ... of the mate
+			// Only applies if we're looking at a change to the mate from the perspective of the read
+			// (and we haven't deleted the whole mate)
+			if (orig_start < orig_mate_start && (f.isFirstRead() || f.isSecondRead())) {
+				if (orig_mate_end < mm.previousMismatch.end && orig_mate_end >= mm.previousMismatch.start) {
+					int length = mm.previousMismatch.length - mm.thisMismatch.length;
+					length = length - ((mm.previousMismatch.end-1) - orig_mate_end);
+					// All we can change is the isize
+					f.setInferredInsertSize(f.getInferredInsertSize() - length);
+				}
+			}
 		}
-		return f;
 	}
+	/**
+	 * Add length bases of reference to the alignment after position bases of the read's reference,
+	 * as a D (or by lengthening the D or N the position falls in). The cigar is rewritten an
+	 * element at a time; positions are counted as the original base-by-base version of this
+	 * method counted them, so the results are the same: every operator but I and S counts as
+	 * reference, a cigar that starts with I or S puts the insertion one base further on, and an
+	 * insertion after a base of I, S or H goes after the whole element.
+	 */
 	public Cigar updateCigarForInsertedReference(Cigar cigar, int position, int length) throws IndexOutOfBoundsException {
-		StringBuilder cigarExtender = new StringBuilder();
-		Cigar newCigar = new Cigar();
-		
-		for (CigarElement elem : cigar.getCigarElements()) {
-			for (int i = 0; i < elem.getLength(); i++)
-				cigarExtender.append(elem.getOperator());
+		List<CigarElement> elements = mergeCigarElements(cigar);
+		int cigarLength = getCigarLength(elements);
+		if (position > cigarLength) {
+			throw new IndexOutOfBoundsException("Can't add to cigar string at or past the end of the original cigar (" + position + " > " + cigarLength + ")");
 		}
-		String extendedCigar = cigarExtender.toString();
-		if (position > extendedCigar.length()) {
-			throw new IndexOutOfBoundsException("Can't add to cigar string at or past the end of the original cigar (" + position + " > " + extendedCigar.length() + ")");
+		if (elements.isEmpty()) {
+			throw new IndexOutOfBoundsException("Can't add to an empty cigar");
 		}
-		int curOpLength = 1;
-		int iRelativeToReference = 0;
 		
-		CigarOperator curOp = CigarOperator.characterToEnum(extendedCigar.charAt(0));
-		curOpLength = 0;
-		for (int i = 0; i < extendedCigar.length(); i++) {
-			if (curOp != CigarOperator.INSERTION && curOp != CigarOperator.SOFT_CLIP) {
-				iRelativeToReference++;
-			}
-			if (curOp == CigarOperator.characterToEnum(extendedCigar.charAt(i))) {
-				curOpLength++;
-			} else {
-				newCigar.add(new CigarElement(curOpLength, curOp));
-				curOpLength = 1;
-				curOp = CigarOperator.characterToEnum(extendedCigar.charAt(i));
-			}
-			if (iRelativeToReference == position) {
-				// Insert D if amid Ms, insert D if among Ds, insert N if among Ns
-				if (curOp == CigarOperator.DELETION) {
-					curOpLength += length;
-				} else if (curOp == CigarOperator.SKIPPED_REGION) {
-					curOpLength += length;
-				} else if (curOp == CigarOperator.MATCH_OR_MISMATCH) {
-					newCigar.add(new CigarElement(curOpLength, curOp));
-					curOp = CigarOperator.DELETION;
-					curOpLength = length;
-				} else if (curOp == CigarOperator.INSERTION || curOp == CigarOperator.SOFT_CLIP || curOp == CigarOperator.HARD_CLIP) {
-					// Scan to the end of the Is.
-					while (i < extendedCigar.length() && CigarOperator.characterToEnum(extendedCigar.charAt(++i)) == curOp) {
-						curOpLength++;
+		// Find the element, and the base within it, that the insertion goes after
+		int target = position - (isReferenceForInsert(elements.get(0).getOperator()) ? 1 : 0);
+		int index = -1, offset = 0;
+		if (target == 0) {
+			index = 0;
+		} else if (target > 0) {
+			int counted = 0;
+			for (int i = 0; i < elements.size() && index < 0; i++) {
+				CigarElement elem = elements.get(i);
+				if (!isReferenceForInsert(elem.getOperator())) { continue; }
+				if (counted + elem.getLength() >= target) {
+					// The base after the target'th reference base
+					index = i;
+					offset = target - counted;
+					if (offset == elem.getLength()) {
+						index++;
+						offset = 0;
 					}
-					// Attach the insertion and then start a deletion
-					if (i == extendedCigar.length() && (curOp == CigarOperator.SOFT_CLIP || curOp == CigarOperator.HARD_CLIP)) {
-						newCigar.add(new CigarElement(length, CigarOperator.DELETION));
-					} else {
-						newCigar.add(new CigarElement(curOpLength, curOp));
-						curOp = CigarOperator.DELETION;
-						curOpLength = length;
-					}
-					i--;
-				} else {
-					throw new RuntimeException("Shouldn't be able to insert into " + curOp + " section of cigar: " + cigar.toString() + "!");
 				}
-				iRelativeToReference += length;
+				counted += elem.getLength();
+			}
+			if (index == elements.size()) { index = -1; } // Past the last base, so nothing to insert into
+		}
+		if (index < 0) {
+			return new Cigar(elements);
+		}
+		
+		List<CigarElement> newElements = new ArrayList<CigarElement>(elements.size() + 2);
+		newElements.addAll(elements.subList(0, index));
+		CigarElement elem = elements.get(index);
+		CigarOperator op = elem.getOperator();
+		int next = index + 1;
+		if (op == CigarOperator.DELETION || op == CigarOperator.SKIPPED_REGION) {
+			// Insert D if among Ds, insert N if among Ns
+			newElements.add(new CigarElement(elem.getLength() + length, op));
+		} else if (op == CigarOperator.MATCH_OR_MISMATCH) {
+			// Insert D amid Ms
+			newElements.add(new CigarElement(offset + 1, op));
+			if (offset + 1 < elem.getLength()) {
+				newElements.add(new CigarElement(length, CigarOperator.DELETION));
+				newElements.add(new CigarElement(elem.getLength() - offset - 1, op));
+			} else {
+				next = addDeletion(newElements, elements, next, length);
+			}
+		} else if (op == CigarOperator.INSERTION || op == CigarOperator.SOFT_CLIP || op == CigarOperator.HARD_CLIP) {
+			// Attach the whole insertion and then start a deletion
+			if (next == elements.size()) {
+				throw new IndexOutOfBoundsException("Can't add to cigar string after its last " + op + " element");
 			}
+			newElements.add(elem);
+			next = addDeletion(newElements, elements, next, length);
+		} else {
+			throw new RuntimeException("Shouldn't be able to insert into " + op + " section of cigar: " + cigar.toString() + "!");
 		}
-		newCigar.add(new CigarElement(curOpLength, curOp));
-		return newCigar;
+		newElements.addAll(elements.subList(next, elements.size()));
+		return new Cigar(newElements);
 	}
-	public Cigar updateCigarForDeletedReference(Cigar cigar, int position, int length) {
-		StringBuilder cigarExtender = new StringBuilder();
-		StringBuilder newCigarExtender = new StringBuilder();
-		for (CigarElement elem : cigar.getCigarElements()) {
-			for (int i = 0; i < elem.getLength(); i++)
-				cigarExtender.append(elem.getOperator());
+	// Add a D of length to newElements, merged with elements[next] if that's a D. Returns the index of
+	// the first element of elements still to be added.
+	private static int addDeletion(List<CigarElement> newElements, List<CigarElement> elements, int next, int length) {
+		if (next < elements.size() && elements.get(next).getOperator() == CigarOperator.DELETION) {
+			newElements.add(new CigarElement(length + elements.get(next).getLength(), CigarOperator.DELETION));
+			return next + 1;
 		}
-		String extendedCigar = cigarExtender.toString();
-		if (extendedCigar == "*") { extendedCigar = ""; }
-		if (position > extendedCigar.length()) {
-			throw new IndexOutOfBoundsException("Can't delete from cigar string at or past the end of the original cigar (" + position + " > " + extendedCigar.length() + ")");
+		newElements.add(new CigarElement(length, CigarOperator.DELETION));
+		return next;
+	}
+	private static boolean isReferenceForInsert(CigarOperator op) {
+		return op != CigarOperator.INSERTION && op != CigarOperator.SOFT_CLIP;
+	}
+	
+	/**
+	 * Remove length bases of reference from the alignment, starting after position bases of the
+	 * read's reference: Ms in the removed stretch become Is, and Ds, Ns and clips there are dropped.
+	 * Every operator but I counts as reference. The cigar is rewritten an element at a time.
+	 */
+	public Cigar updateCigarForDeletedReference(Cigar cigar, int position, int length) {
+		List<CigarElement> elements = cigar.getCigarElements();
+		int cigarLength = getCigarLength(elements);
+		if (position > cigarLength) {
+			throw new IndexOutOfBoundsException("Can't delete from cigar string at or past the end of the original cigar (" + position + " > " + cigarLength + ")");
 		}
 		if (position < 0) {
 			throw new IllegalArgumentException("Can't delete from cigar with offset < 0!");
 		}
-		int curOpLength = 1;
-		int iRelativeToReference = 0;
-		int cursor = -1;
-		for (int i = 0; iRelativeToReference < position; i++) {
-			CigarOperator curOp = CigarOperator.characterToEnum(extendedCigar.charAt(i));
-			if (curOp != CigarOperator.INSERTION) { iRelativeToReference++; }
-			newCigarExtender.append(extendedCigar.charAt(i));
-			cursor = i;
-		}
-
-		ArrayList<CigarOperator> insertsInDeletedRegion = new ArrayList<CigarOperator>();
-		for (int i = cursor+1; iRelativeToReference < position+length; i++) {
-			// Inside region to insert
-			CigarOperator curOp = CigarOperator.characterToEnum(extendedCigar.charAt(i));
-			if (curOp != CigarOperator.INSERTION) { iRelativeToReference++; }
-			if (curOp == CigarOperator.MATCH_OR_MISMATCH) {
-				// Replace M with I
-				newCigarExtender.append(CigarOperator.INSERTION);
-			} else if (curOp == CigarOperator.DELETION || curOp == CigarOperator.SKIPPED_REGION) {
-				// Drop D or N
-			} else if (curOp == CigarOperator.INSERTION) {
-				// Keep any I and append to the end
-				insertsInDeletedRegion.add(CigarOperator.INSERTION);
-			}
-			cursor = i;
-		}
-		for (CigarOperator oper : insertsInDeletedRegion) {
-			newCigarExtender.append(oper.toString());
-		}
 		
-		for (int i = cursor+1; i < extendedCigar.length(); i++) {
-			newCigarExtender.append(extendedCigar.charAt(i));
+		List<CigarElement> newElements = new ArrayList<CigarElement>(elements.size() + 1);
+		int i = 0;
+		int remaining = 0; // Bases of elements[i] not yet used
+		if (!elements.isEmpty()) { remaining = elements.get(0).getLength(); }
+		
+		// Keep everything up to the position'th reference base
+		int toKeep = position;
+		while (toKeep > 0) {
+			if (i == elements.size()) {
+				throw new IndexOutOfBoundsException("Cigar " + cigar + " doesn't cover " + position + " bases of reference");
+			}
+			CigarOperator op = elements.get(i).getOperator();
+			int take = (op == CigarOperator.INSERTION) ? remaining : Math.min(remaining, toKeep);
+			addCigarElement(newElements, take, op);
+			if (op != CigarOperator.INSERTION) { toKeep -= take; }
+			remaining -= take;
+			if (remaining == 0 && ++i < elements.size()) { remaining = elements.get(i).getLength(); }
 		}
 		
-		// Translate newCigarExtender to Cigar
-		String newExtendedCigar = newCigarExtender.toString();
-		Cigar newCigar = new Cigar();
+		// Count the read bases in the deleted stretch; they all become an insertion
+		int inserted = 0;
+		int toDelete = length;
+		while (toDelete > 0) {
+			if (i == elements.size()) {
+				throw new IndexOutOfBoundsException("Cigar " + cigar + " doesn't cover " + (position + length) + " bases of reference");
+			}
+			CigarOperator op = elements.get(i).getOperator();
+			int take = (op == CigarOperator.INSERTION) ? remaining : Math.min(remaining, toDelete);
+			if (op == CigarOperator.MATCH_OR_MISMATCH || op == CigarOperator.INSERTION) { inserted += take; }
+			if (op != CigarOperator.INSERTION) { toDelete -= take; }
+			remaining -= take;
+			if (remaining == 0 && ++i < elements.size()) { remaining = elements.get(i).getLength(); }
+		}
+		addCigarElement(newElements, inserted, CigarOperator.INSERTION);
 		
-		CigarOperator curOp = CigarOperator.characterToEnum(newExtendedCigar.charAt(0));
-		curOpLength = 0;
-		for (int i = 0; i < newExtendedCigar.length(); i++) {
-			if (curOp == CigarOperator.characterToEnum(newExtendedCigar.charAt(i)))
-				curOpLength++;
-			else {
-				newCigar.add(new CigarElement(curOpLength, curOp));
-				curOpLength = 1;
-				curOp = CigarOperator.characterToEnum(newExtendedCigar.charAt(i));
+		// And everything after it
+		if (i < elements.size()) {
+			addCigarElement(newElements, remaining, elements.get(i).getOperator());
+			for (i++; i < elements.size(); i++) {
+				addCigarElement(newElements, elements.get(i).getLength(), elements.get(i).getOperator());
 			}
 		}
-		newCigar.add(new CigarElement(curOpLength, curOp));
-		return newCigar;
+		if (newElements.isEmpty()) {
+			throw new IndexOutOfBoundsException("Nothing left of cigar " + cigar + " after deleting reference");
+		}
+		return new Cigar(newElements);
+	}
+	
+	// The elements of cigar with neighbours of the same operator merged, and empty ones left out
+	private static List<CigarElement> mergeCigarElements(Cigar cigar) {
+		List<CigarElement> elements = new ArrayList<CigarElement>(cigar.numCigarElements());
+		for (CigarElement elem : cigar.getCigarElements()) {
+			addCigarElement(elements, elem.getLength(), elem.getOperator());
+		}
+		return elements;
+	}
+	// Append an element to elements, merging it with the last one if they have the same operator
+	private static void addCigarElement(List<CigarElement> elements, int length, CigarOperator op) {
+		if (length == 0) { return; }
+		int last = elements.size() - 1;
+		if (last >= 0 && elements.get(last).getOperator() == op) {
+			elements.set(last, new CigarElement(elements.get(last).getLength() + length, op));
+		} else {
+			elements.add(new CigarElement(length, op));
+		}
+	}
+	// Total length of all the elements, whatever their operators
+	private static int getCigarLength(List<CigarElement> elements) {
+		int length = 0;
+		for (CigarElement elem : elements) { length += elem.getLength(); }
+		return length;
 	}
 
 	public class SAMFeature extends AbstractFeature {
-		private SAMRecord originalRecord = null;
 		private SAMRecord thisRecord = null;
-		public SAMFeature(SAMRecord record) throws MappingException {
+		// Wraps record without copying it; updateFeature changes it in place
+		public SAMFeature(SAMRecord record) {
 			this.thisRecord = record;
-			try {
-				this.originalRecord = (SAMRecord)this.thisRecord.clone();
-			} catch (CloneNotSupportedException e) {
-				throw new MappingException("Couldn't clone a SAMRecord", e);
-			}
 		}
 		public String getChromosome() {
 			return thisRecord.getReferenceName();
@@ -511,9 +1494,5 @@ public class SAMUpdater extends AbstractUpdater {
 		public Cigar getCigar() {
 			return thisRecord.getCigar();
 		}
-		@Deprecated
-		public SAMRecord getOriginalRecord() {
-			return this.originalRecord;
-		}
 	}
 }
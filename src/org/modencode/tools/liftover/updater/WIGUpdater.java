@@ -1,22 +1,20 @@
 package org.modencode.tools.liftover.updater;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.modencode.tools.liftover.AbstractFeature;
+import org.modencode.tools.liftover.LiftResult;
 import org.modencode.tools.liftover.MappingData;
 import org.modencode.tools.liftover.MappingException;
+import org.modencode.tools.liftover.io.LineClassifier;
+import org.modencode.tools.liftover.io.LineClassifier.LineType;
+import org.modencode.tools.liftover.io.LineScanner;
+import org.modencode.tools.liftover.io.TextOutputStream;
 
 public class WIGUpdater extends AbstractUpdater {
 
@@ -36,32 +34,28 @@ public class WIGUpdater extends AbstractUpdater {
 	}
 
 	public void processFile(File wigFile, File outFile) throws MappingException {
-		BufferedReader reader;
+		LineScanner reader;
 		boolean isGZIP = false;
 		try {
 			GZIPInputStream gzStream = getGZIPInputStream(wigFile);
 			if (gzStream != null) {
-				InputStreamReader streamReader = new InputStreamReader(gzStream);
-				reader = new BufferedReader(streamReader);
+				reader = new LineScanner(gzStream);
 				System.out.println("File is compressesed (GZIP), and percentage completion will be incorrect.");
 			} else {
-				FileReader fileReader = new FileReader(wigFile);
-				reader = new BufferedReader(fileReader);
+				reader = new LineScanner(wigFile);
 			}
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			System.err.println("Couldn't open " + wigFile + " for reading.");
 			throw new MappingException("Couldn't open " + wigFile, e);
 		}
 
-		BufferedWriter writer;
+		TextOutputStream writer;
 		try {
 			if (isGZIP) {
 				GZIPOutputStream gzStream = new GZIPOutputStream(new FileOutputStream(outFile));
-				OutputStreamWriter osw = new OutputStreamWriter(gzStream);
-				writer = new BufferedWriter(osw);
+				writer = new TextOutputStream(gzStream);
 			} else {
-				FileWriter fileWriter = new FileWriter(outFile);
-				writer = new BufferedWriter(fileWriter);
+				writer = new TextOutputStream(new FileOutputStream(outFile));
 			}
 		} catch (IOException e) {
 			System.err.println("Couldn't open " + outFile + " for writing.");
@@ -74,14 +68,21 @@ public class WIGUpdater extends AbstractUpdater {
 			long fileSize =  wigFile.length();
 			long bytesProcessed = 0;
 
-			while ((line = reader.readLine()) != null) {
-				bytesProcessed += line.length()+1;
+			while (reader.nextLine()) {
+				bytesProcessed += reader.length()+1;
 				this.updateProgress(bytesProcessed/(double)fileSize);
 
-				if (line.matches("^\\s*$") || line.matches("^\\s*#.*")) {
+				LineType type = LineClassifier.classify(reader);
+				// Data lines are lifted straight from the bytes when possible
+				if (reader.isAscii() && liftLine(reader, type, lineParser, writer)) {
+					writer.newLine();
+					continue;
+				}
+				line = reader.getLine();
+				if (type.isBlankOrComment()) {
 					writer.write(line); //Comment
 				} else {
-					if (line.matches("^\\s*track .*")) {
+					if (type == LineType.TRACK) {
 						writer.write(line);
 					} else {
 						String fields[] = line.split("\\s+");
@@ -138,6 +139,19 @@ public class WIGUpdater extends AbstractUpdater {
 			throw new MappingException("Couldn't close file handles", e);
 		}		
 	}
+	// Write the current (ASCII) line the way processFile would if it's a comment or a data line
+	// lineParser can lift from the bytes. Returns false, having written nothing, otherwise.
+	private boolean liftLine(LineScanner line, LineType type, WiggleLineParser lineParser, TextOutputStream writer) throws MappingException, IOException {
+		if (type.isBlankOrComment()) {
+			line.writeLine(writer); //Comment
+			return true;
+		}
+		if (lineParser == null || type == LineType.TRACK ||
+				line.startsWith(WIGType.VARIABLE_STEP.toString()) || line.startsWith(WIGType.FIXED_STEP.toString())) {
+			return false;
+		}
+		return lineParser.liftLine(line, writer);
+	}
 	private String getVarValue(String[] fields, String startsWith) {
 		for (String field : fields) {
 			if (field.startsWith(startsWith)) {
@@ -150,6 +164,9 @@ public class WIGUpdater extends AbstractUpdater {
 	private abstract class WiggleLineParser {
 		protected String chr;
 		public abstract WIGFeature processLine(String line) throws MappingException;
+		// Lift and write a data line without making Strings of it; returns false, having written
+		// nothing and changed no state, if it has to go through processLine instead
+		public abstract boolean liftLine(LineScanner line, TextOutputStream writer) throws MappingException, IOException;
 		public WiggleLineParser(String chr) { this.chr = chr; }
 		public WiggleLineParser() {};
 	}
@@ -167,6 +184,21 @@ public class WIGUpdater extends AbstractUpdater {
 			
 			return (WIGFeature)updateFeature(f);
 		}
+		public boolean liftLine(LineScanner line, TextOutputStream writer) throws MappingException, IOException {
+			if (line.splitWhitespace() < 2) { return false; }
+			int start;
+			try {
+				start = line.parseInt(0);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			long res = lift(chr, start, start + span);
+			if (!isUnchanged(res)) { return false; }
+			writer.writeInt(LiftResult.getStart(res, start));
+			writer.write('\t');
+			line.writeField(1, writer);
+			return true;
+		}
 	}
 	private class FixedStepParser extends WiggleLineParser {
 		private int step;
@@ -187,6 +219,15 @@ public class WIGUpdater extends AbstractUpdater {
 			
 			return (WIGFeature)updateFeature(f);
 		}
+		public boolean liftLine(LineScanner line, TextOutputStream writer) throws MappingException, IOException {
+			long res = lift(chr, currentStart, currentStart + span);
+			if (!isUnchanged(res)) { return false; }
+			writer.writeInt(LiftResult.getStart(res, currentStart));
+			writer.write('\t');
+			line.writeLine(writer);
+			currentStart += step;
+			return true;
+		}
 	}
 	private class BEDParser extends WiggleLineParser {
 		public BEDParser() {}
@@ -201,6 +242,34 @@ public class WIGUpdater extends AbstractUpdater {
 			
 			return (WIGFeature)updateFeature(f);
 		}
+		public boolean liftLine(LineScanner line, TextOutputStream writer) throws MappingException, IOException {
+			int fields = line.splitWhitespace();
+			if (fields < 3) { return false; }
+			int start, end;
+			try {
+				start = line.parseInt(1);
+				end = line.parseInt(2);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			// The last chromosome read is reused while it doesn't change
+			int prefix = (line.getFieldLength(0) >= 3 && line.byteAt(0) == 'c' && line.byteAt(1) == 'h' && line.byteAt(2) == 'r') ? 3 : 0;
+			chr = line.getField(0, prefix, chr);
+			long res = lift(chr, start, end);
+			if (!isUnchanged(res)) { return false; }
+			writer.write(chr);
+			writer.write('\t');
+			writer.writeInt(LiftResult.getStart(res, start));
+			writer.write('\t');
+			writer.writeInt(LiftResult.getEnd(res, end));
+			writer.write('\t');
+			if (fields >= 4) { line.writeField(3, writer); }
+			return true;
+		}
+	}
+	// True if a lift result leaves nothing for WIGFeature.toString to comment on
+	private static boolean isUnchanged(long res) {
+		return (LiftResult.getFlags(res) & ~(LiftResult.START_SET | LiftResult.END_SET)) == 0;
 	}
 	public class WIGFeature extends AbstractFeature {
 		private String score;